@@ -0,0 +1,84 @@
+package meika.poika.cubli;
+
+import java.lang.management.ManagementFactory;
+
+import static meika.poika.cubli.MPU6050.*;
+
+/**
+ * <b>Check that the steady-state sampling path and the fill getters don't allocate.</b>
+ *
+ * <p>Each iteration reads and processes a sample from a simulated MPU6050 on a zero-latency bus, processes a
+ * raw sample, then reads the frame and every vector through the fill getters, as a control loop would.
+ * After a warm-up compiling the path, the bytes allocated by the thread over the measured iterations must
+ * be 0. The check exits with 1 otherwise, failing the build of the jmh profile:</p>
+ * <pre>
+ *     mvn -P jmh test
+ * </pre>
+ */
+public class AllocationCheck {
+
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int MEASURED_ITERATIONS = 100_000;
+    private static final long PERIOD_NANOS = 1_000_000;
+
+    private final MPU6050 mpu6050;
+    private final int[] rawValues = new int[SENSOR_BLOCK_WORDS];
+    private final SensorFrame frame = new SensorFrame();
+    private final double[] values = new double[3];
+    private long timestamp = 0;
+
+    private AllocationCheck() {
+        SimulatedMPU6050 simulator = new SimulatedMPU6050();
+        simulator.setBusClockHz(0);
+        // no calibration cache: the check must not write in the home directory
+        mpu6050 = new MPU6050(new SimulatedI2CBus(simulator), DEFAULT_MPU6050_ADDRESS,
+                DEFAULT_DLPF_CFG, DEFAULT_SMPLRT_DIV, null);
+        simulator.setMotionProfile(MotionProfile.swinging(20., 1.));
+        mpu6050.startExternalSampling();
+        for (int i = 0; i < rawValues.length; i++)
+            rawValues[i] = 100 * i - 300;
+    }
+
+    private double iterate() {
+        mpu6050.updateValues();
+        timestamp += PERIOD_NANOS;
+        mpu6050.processSample(rawValues, 0, timestamp);
+        double sum = mpu6050.readFrame(frame);
+        mpu6050.getAccelAccelerations(values);
+        sum += values[0];
+        mpu6050.getAccelAngles(values);
+        sum += values[0];
+        mpu6050.getGyroAngularSpeeds(values);
+        sum += values[0];
+        mpu6050.getGyroAngles(values);
+        sum += values[0];
+        mpu6050.getFilteredAngles(values);
+        return sum + values[0];
+    }
+
+    /**
+     * Runs the check on each fusion algorithm.
+     * @param args not used.
+     */
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AllocationCheck check = new AllocationCheck();
+        boolean allocated = false;
+        double sink = 0.;
+        for (FusionAlgorithm algorithm : FusionAlgorithm.values()) {
+            check.mpu6050.setFusionFilter(algorithm.create());
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                sink += check.iterate();
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < MEASURED_ITERATIONS; i++)
+                sink += check.iterate();
+            long bytes = threads.getCurrentThreadAllocatedBytes() - before;
+            System.out.printf("%s: %d bytes allocated in %d iterations%n", algorithm, bytes, MEASURED_ITERATIONS);
+            allocated |= bytes > 0;
+        }
+        check.mpu6050.stopExternalSampling();
+        if (Double.isNaN(sink))
+            System.out.println("NaN values");
+        System.exit(allocated ? 1 : 0);
+    }
+}
@@ -0,0 +1,82 @@
+package meika.poika.cubli;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <b>Angle math of the sample processing: exact and fast atan2, tilt angles and quaternion updates.</b>
+ *
+ * <p>The inputs cycle through random vectors in all the quadrants, so the branch predictor can't learn them.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AngleMathBenchmark {
+
+    private static final int INPUTS = 1024;
+
+    private final double[] x = new double[INPUTS];
+    private final double[] y = new double[INPUTS];
+    private final double[] z = new double[INPUTS];
+    private final Quaternion quaternion = new Quaternion();
+    private final double[] angles = new double[3];
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        for (int i = 0; i < INPUTS; i++) {
+            x[i] = random.nextGaussian();
+            y[i] = random.nextGaussian();
+            z[i] = random.nextGaussian();
+        }
+    }
+
+    private int next() {
+        return index = (index + 1) & (INPUTS - 1);
+    }
+
+    @Benchmark
+    public double mathAtan2() {
+        int i = next();
+        return Math.atan2(y[i], x[i]);
+    }
+
+    @Benchmark
+    public double fastAtan2() {
+        int i = next();
+        return FastMath.atan2(y[i], x[i]);
+    }
+
+    @Benchmark
+    public double accelXAngle() {
+        int i = next();
+        return AngleMath.accelXAngle(x[i], y[i], z[i]);
+    }
+
+    @Benchmark
+    public double fastAccelXAngle() {
+        int i = next();
+        return AngleMath.fastAccelXAngle(x[i], y[i], z[i]);
+    }
+
+    @Benchmark
+    public Quaternion quaternionIntegrate() {
+        int i = next();
+        quaternion.integrate(x[i], y[i], z[i], 0.001);
+        return quaternion;
+    }
+
+    @Benchmark
+    public double[] quaternionEulerAngles() {
+        int i = next();
+        quaternion.set(1., x[i] * 0.1, y[i] * 0.1, z[i] * 0.1);
+        quaternion.getEulerAngles(angles);
+        return angles;
+    }
+}
@@ -0,0 +1,49 @@
+package meika.poika.cubli;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <b>Decoding of the raw big endian two's complement words read from the MPU6050.</b>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private final byte[] fifo = new byte[MPU6050.FIFO_MAX_FRAMES * MPU6050.SENSOR_BLOCK_LENGTH];
+    private final int[] values = new int[MPU6050.FIFO_MAX_FRAMES * MPU6050.SENSOR_BLOCK_WORDS];
+
+    @Setup
+    public void setUp() {
+        new Random(0).nextBytes(fifo);
+    }
+
+    @Benchmark
+    public int word() {
+        return MPU6050.decodeWord2C(fifo, 0);
+    }
+
+    @Benchmark
+    public int[] sensorBlock() {
+        MPU6050.decodeSensorBlock(fifo, 0, values);
+        return values;
+    }
+
+    /**
+     * A full FIFO, as drained in FIFO acquisition mode.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MPU6050.FIFO_MAX_FRAMES)
+    public int[] fifoFrames() {
+        for (int i = 0; i < MPU6050.FIFO_MAX_FRAMES; i++)
+            for (int w = 0; w < MPU6050.SENSOR_BLOCK_WORDS; w++)
+                values[i * MPU6050.SENSOR_BLOCK_WORDS + w] = MPU6050.decodeWord2C(fifo, i * MPU6050.SENSOR_BLOCK_LENGTH + 2 * w);
+        return values;
+    }
+}
@@ -0,0 +1,56 @@
+package meika.poika.cubli;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>One fusion step (update and angles) of each fusion algorithm, on noisy samples of a tilted sensor.</b>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FusionBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final double DT = 0.001;
+
+    @Param({"COMPLEMENTARY", "MADGWICK", "MAHONY", "KALMAN"})
+    public FusionAlgorithm algorithm;
+
+    private FusionFilter filter;
+    private final SensorFrame[] samples = new SensorFrame[SAMPLES];
+    private final double[] angles = new double[3];
+    private int index = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        for (int i = 0; i < SAMPLES; i++) {
+            SensorFrame sample = new SensorFrame();
+            sample.accelAccelerations[X] = 0.01 * random.nextGaussian();
+            sample.accelAccelerations[Y] = 0.34 + 0.01 * random.nextGaussian();
+            sample.accelAccelerations[Z] = -0.94 + 0.01 * random.nextGaussian();
+            for (int axis = X; axis <= Z; axis++)
+                sample.gyroAngularSpeeds[axis] = 0.1 * random.nextGaussian();
+            samples[i] = sample;
+        }
+        filter = algorithm.create();
+    }
+
+    @Benchmark
+    public double[] step() {
+        index = (index + 1) & (SAMPLES - 1);
+        filter.update(samples[index], DT);
+        filter.getAngles(angles);
+        return angles;
+    }
+}
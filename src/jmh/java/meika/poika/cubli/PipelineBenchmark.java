@@ -0,0 +1,63 @@
+package meika.poika.cubli;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <b>The full per-sample pipeline of the MPU6050, on a simulated bus.</b>
+ *
+ * <p>The simulated bus has no transfer time, so the results are the processor cost of the pipeline:
+ * {@code sample} covers the burst read through the bus abstraction, the decoding, the scaling, the
+ * gyroscope attitude, the fusion and the publication; {@code processSample} covers the same without the read.
+ * The simulator generating the samples is included in {@code sample}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final long PERIOD_NANOS = 1_000_000;
+
+    @Param({"COMPLEMENTARY", "MADGWICK"})
+    public FusionAlgorithm algorithm;
+
+    private MPU6050 mpu6050;
+    private final int[] rawValues = new int[SAMPLES * MPU6050.SENSOR_BLOCK_WORDS];
+    private int index = 0;
+    private long timestamp = 0;
+
+    @Setup
+    public void setUp() {
+        SimulatedMPU6050 simulator = new SimulatedMPU6050();
+        simulator.setBusClockHz(0);
+        // no calibration cache: the benchmark must not read or write the calibrations of the real sensors
+        mpu6050 = new MPU6050(new SimulatedI2CBus(simulator), MPU6050.DEFAULT_MPU6050_ADDRESS,
+                MPU6050.DEFAULT_DLPF_CFG, MPU6050.DEFAULT_SMPLRT_DIV, null);
+        simulator.setMotionProfile(MotionProfile.swinging(20., 1.));
+        mpu6050.setFusionFilter(algorithm.create());
+
+        Random random = new Random(0);
+        for (int i = 0; i < rawValues.length; i++)
+            rawValues[i] = random.nextInt(2000) - 1000;
+    }
+
+    @Benchmark
+    public long sample() {
+        mpu6050.updateValues();
+        return mpu6050.getSampleCount();
+    }
+
+    @Benchmark
+    public long processSample() {
+        index = (index + 1) & (SAMPLES - 1);
+        timestamp += PERIOD_NANOS;
+        mpu6050.processSample(rawValues, index * MPU6050.SENSOR_BLOCK_WORDS, timestamp);
+        return mpu6050.getSampleCount();
+    }
+}
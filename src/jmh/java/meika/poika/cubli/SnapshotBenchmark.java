@@ -0,0 +1,73 @@
+package meika.poika.cubli;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <b>Contention between the updating thread publishing frames and several reader threads.</b>
+ *
+ * <p>In each group, one thread publishes frames as fast as it can while three threads read them:
+ * the latest frame through the seqlock ({@code latest}), or every frame through ring buffer cursors
+ * ({@code history}). The writer cost shows how much the readers slow the updating thread down.</p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    private static final int READERS = 3;
+
+    private final SensorFramePublisher publisher = new SensorFramePublisher();
+    private final SampleRingBuffer history = new SampleRingBuffer(MPU6050.DEFAULT_HISTORY_CAPACITY);
+    private final SensorFrame frame = new SensorFrame();
+
+    /**
+     * State of a reader thread.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        private final SensorFrame frame = new SensorFrame();
+        private SampleRingBuffer.Cursor cursor;
+
+        @Setup
+        public void setUp(SnapshotBenchmark benchmark) {
+            cursor = benchmark.history.newCursor();
+        }
+    }
+
+    @Benchmark
+    @Group("latest")
+    @GroupThreads(1)
+    public long latestWriter() {
+        frame.sequence++;
+        publisher.publish(frame);
+        return frame.sequence;
+    }
+
+    @Benchmark
+    @Group("latest")
+    @GroupThreads(READERS)
+    public long latestReader(Reader reader) {
+        return publisher.read(reader.frame);
+    }
+
+    @Benchmark
+    @Group("history")
+    @GroupThreads(1)
+    public long historyWriter() {
+        frame.sequence++;
+        history.publish(frame);
+        return frame.sequence;
+    }
+
+    @Benchmark
+    @Group("history")
+    @GroupThreads(READERS)
+    public boolean historyReader(Reader reader) {
+        return reader.cursor.poll(reader.frame);
+    }
+}
@@ -0,0 +1,106 @@
+package meika.poika.cubli;
+
+/**
+ * <b>The full scale ranges of the accelerometer, selected by AFS_SEL [datasheet 2 - p.15].</b>
+ *
+ * <p>The wider the range, the lower the resolution: ±2 g resolves 61 µg, but the shocks of a jump
+ * exceed it and the output saturates. The LSB sensitivities are the ones of the datasheet
+ * [datasheet 1 - p.13].</p>
+ */
+public enum AccelRange {
+    /**
+     * ±2 g, 16384 LSB per g.
+     */
+    G_2(0, 16384., 2.),
+    /**
+     * ±4 g, 8192 LSB per g.
+     */
+    G_4(1, 8192., 4.),
+    /**
+     * ±8 g, 4096 LSB per g.
+     */
+    G_8(2, 4096., 8.),
+    /**
+     * ±16 g, 2048 LSB per g.
+     */
+    G_16(3, 2048., 16.);
+
+    /**
+     * The ranges in AFS_SEL order, shared: each call of values() returns a new copy.
+     */
+    private static final AccelRange[] VALUES = values();
+
+    private final int afsSel;
+    private final double lsbSensitivity;
+    private final double fullScale;
+
+    AccelRange(int afsSel, double lsbSensitivity, double fullScale) {
+        this.afsSel = afsSel;
+        this.lsbSensitivity = lsbSensitivity;
+        this.fullScale = fullScale;
+    }
+
+    /**
+     * @return the AFS_SEL value selecting the range.
+     */
+    public int getAfsSel() {
+        return afsSel;
+    }
+
+    /**
+     * @return the value of the ACCEL_CONFIG register selecting the range (AFS_SEL in bits 4 and 3,
+     * no self-test, DHPF reset).
+     */
+    public int getConfigValue() {
+        return afsSel << 3;
+    }
+
+    /**
+     * @return the LSB sensitivity, in raw value per g.
+     */
+    public double getLSBSensitivity() {
+        return lsbSensitivity;
+    }
+
+    /**
+     * @return the largest measurable acceleration, in g.
+     */
+    public double getFullScale() {
+        return fullScale;
+    }
+
+    /**
+     * @return the next wider range, null if this one is the widest.
+     */
+    public AccelRange wider() {
+        return ordinal() == VALUES.length - 1 ? null : VALUES[ordinal() + 1];
+    }
+
+    /**
+     * @return the next narrower range, null if this one is the narrowest.
+     */
+    public AccelRange narrower() {
+        return ordinal() == 0 ? null : VALUES[ordinal() - 1];
+    }
+
+    /**
+     * @param afsSel an AFS_SEL value, in the 0..3 range.
+     * @return the range selected by the value.
+     */
+    public static AccelRange fromAfsSel(int afsSel) {
+        if (afsSel < 0 || afsSel > 3)
+            throw new IllegalArgumentException("AFS_SEL must be in the 0..3 range.");
+        return VALUES[afsSel];
+    }
+
+    /**
+     * @param lsbSensitivity a LSB sensitivity, in raw value per g.
+     * @return the range with this sensitivity.
+     */
+    public static AccelRange fromLSBSensitivity(double lsbSensitivity) {
+        for (AccelRange range : VALUES)
+            if (range.lsbSensitivity == lsbSensitivity)
+                return range;
+        throw new IllegalArgumentException("No accelerometer range has a sensitivity of " + lsbSensitivity + " LSB per g.");
+    }
+}
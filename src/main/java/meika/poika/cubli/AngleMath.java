@@ -0,0 +1,80 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Tilt angles calculated from an acceleration vector (gravity).</b>
+ *
+ * <p>The angles are in the 0..360 interval, with the convention of the original quadrant-based
+ * calculation of the MPU6050 driver: the quadrant is given by the sign of the z acceleration
+ * (stored with an inverted sign in the frames). Here the quadrant is folded into the sign of
+ * the atan2 abscissa, so the calculation is a single atan2 and a few selects, without branches.
+ * The angles are the same as the original ones, 0. included (never -0.), except the y angle of a null
+ * vector, 0. instead of NaN.</p>
+ *
+ * <p>The exact versions use {@link Math#atan2(double, double)}, the fast versions use
+ * {@link FastMath#atan2(double, double)} and are used on the hot path.</p>
+ */
+public final class AngleMath {
+
+    private AngleMath() {
+    }
+
+    /**
+     * Calculates the angle, in °, of the x axis from an acceleration vector.
+     * @param x the acceleration along the x axis.
+     * @param y the acceleration along the y axis.
+     * @param z the acceleration along the z axis (sign inverted, as in the frames).
+     * @return the angle of the x axis, in the 0..360 interval.
+     */
+    public static double accelXAngle(double x, double y, double z) {
+        return wrap(Math.atan2(y, xAbscissa(x, y, z)));
+    }
+
+    /**
+     * Calculates the angle, in °, of the y axis from an acceleration vector.
+     * @param x the acceleration along the x axis.
+     * @param y the acceleration along the y axis.
+     * @param z the acceleration along the z axis (sign inverted, as in the frames).
+     * @return the angle of the y axis, in the 0..360 interval.
+     */
+    public static double accelYAngle(double x, double y, double z) {
+        return wrap(Math.atan2(-x, yAbscissa(x, y, z)));
+    }
+
+    /**
+     * Same as {@link #accelXAngle(double, double, double)}, within FastMath.MAX_ATAN2_ERROR.
+     * @param x the acceleration along the x axis.
+     * @param y the acceleration along the y axis.
+     * @param z the acceleration along the z axis (sign inverted, as in the frames).
+     * @return the angle of the x axis, in the 0..360 interval.
+     */
+    public static double fastAccelXAngle(double x, double y, double z) {
+        return wrap(FastMath.atan2(y, xAbscissa(x, y, z)));
+    }
+
+    /**
+     * Same as {@link #accelYAngle(double, double, double)}, within FastMath.MAX_ATAN2_ERROR.
+     * @param x the acceleration along the x axis.
+     * @param y the acceleration along the y axis.
+     * @param z the acceleration along the z axis (sign inverted, as in the frames).
+     * @return the angle of the y axis, in the 0..360 interval.
+     */
+    public static double fastAccelYAngle(double x, double y, double z) {
+        return wrap(FastMath.atan2(-x, yAbscissa(x, y, z)));
+    }
+
+    private static double xAbscissa(double x, double y, double z) {
+        double distance = Math.sqrt(x * x + z * z);
+        return (y >= 0. ? z >= 0. : z > 0.) ? distance : -distance;
+    }
+
+    private static double yAbscissa(double x, double y, double z) {
+        double distance = Math.sqrt(y * y + z * z);
+        return (x <= 0. ? z >= 0. : z > 0.) ? distance : -distance;
+    }
+
+    private static double wrap(double radians) {
+        double degrees = radians * MPU6050.RADIAN_TO_DEGREE;
+        // + 0. turns the -0. of atan2(-0., x) into 0., as the quadrant offset did in the original calculation
+        return degrees < 0. ? degrees + 360. : degrees + 0.;
+    }
+}
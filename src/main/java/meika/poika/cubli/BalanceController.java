@@ -0,0 +1,373 @@
+package meika.poika.cubli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <b>Balance controller of a reaction-wheel Cubli, closing the loop right after each fused sample.</b>
+ *
+ * <p>The controller is a {@link SampleListener} of the {@link SensorPipeline}: it runs on the updating thread
+ * of the MPU6050, right after the fusion filter, on the timing path of the samples. There is no queue nor
+ * thread hand-off between the sensor and the motor, so the loop runs at the sample rate, with a latency
+ * bounded by the i2c read, the fusion and the motor write. The sensor-to-actuator latency is measured for
+ * each cycle, from the timestamp of the sample to the return of the motor write, in the time base of the
+ * samples; the cycles exceeding the latency budget are counted.</p>
+ *
+ * <p>The control law is a state feedback on the tilt θ, its rate θ' (the angular speed, in °/sec), its
+ * integral and the wheel speed ω:
+ * <pre>
+ *     command = kp.θ + ki.∫θ + kd.θ' + kw.ω
+ * </pre>
+ * The tilt is the rotation of the body from the balance point around the axis, in °, counted positively
+ * in the direction of the gyroscope: the opposite of the filtered angle minus the setpoint, as the filtered
+ * angles decrease when the sensor turns positively (see {@link AngleMath}). The positive direction of the
+ * motor must be the one of the gyroscope axis. With positive gains, the wheel is then accelerated in the
+ * direction of the fall, and its reaction torque rights the body.</p>
+ *
+ * <p>The motor doesn't report its speed: ω is estimated by integrating the torque commands (command.s),
+ * which is proportional to the wheel speed for a torque-driven wheel with little friction. The integral
+ * stops accumulating while the command is saturated.</p>
+ *
+ * <p>The controller only drives the motor near the balance point: it engages when the tilt drops below
+ * ENGAGE_TILT, and releases the motor when the tilt exceeds the maximum tilt (the Cubli fell).</p>
+ */
+public class BalanceController implements SampleListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BalanceController.class);
+
+    /**
+     * Default balance point, in °: the filtered angle of a sensor parallel to a face of the Cubli, balanced
+     * on an edge parallel to the axis (45° from level, the filtered angle of a level sensor being 180°).
+     */
+    public static final double DEFAULT_SETPOINT = 135.;
+
+    /**
+     * Tilt under which the controller starts driving the motor, in °.
+     */
+    public static final double ENGAGE_TILT = 2.;
+
+    /**
+     * Default tilt over which the Cubli is considered fallen, in °.
+     */
+    public static final double DEFAULT_MAX_TILT = 20.;
+
+    /**
+     * Default gains, a starting point to tune on the hardware.
+     */
+    public static final Gains DEFAULT_GAINS = new Gains(0.08, 0., 0.006, 0.);
+
+    private final SensorPipeline pipeline;
+    private final MotorOutput motor;
+    private final TimeSource timeSource;
+    private final int axis;
+
+    /**
+     * Distribution of the sensor-to-actuator latency, in ns.
+     */
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+    /*
+     * Settings, read by the updating thread at each sample.
+     */
+    private volatile Gains gains = DEFAULT_GAINS;
+    private volatile double setpoint = DEFAULT_SETPOINT;
+    private volatile double maxTilt = DEFAULT_MAX_TILT;
+    private volatile long latencyBudgetNanos;
+
+    /*
+     * State of the loop.
+     * (only accessed by the updating thread, or while the controller is stopped)
+     */
+    private long lastTimestamp = 0;
+    private double tiltIntegral = 0.;
+    private double wheelSpeed = 0.;
+    private boolean engaged = false;
+
+    /**
+     * Guarded by this: no command follows the stop of the motor.
+     */
+    private boolean running = false;
+
+    /*
+     * Counters, incremented by the updating thread only.
+     */
+    private volatile long cycleCount = 0;
+    private volatile long overBudgetCount = 0;
+    private volatile long fallCount = 0;
+    private volatile double lastTilt = 0.;
+
+    /**
+     * Constructor for a controller balancing around the x axis of an MPU6050. The latency budget is the sample period.
+     * @param mpu6050 the MPU6050 measuring the tilt, whose time source stamps the samples.
+     * @param motor the motor of the reaction wheel.
+     */
+    public BalanceController(MPU6050 mpu6050, MotorOutput motor) {
+        this(mpu6050.getPipeline(), motor, mpu6050.getTimeSource(), SensorFrame.X, mpu6050.getSamplePeriodNanos());
+    }
+
+    /**
+     * Constructor for a new controller.
+     * @param pipeline the pipeline processing the samples.
+     * @param motor the motor of the reaction wheel.
+     * @param timeSource the time base of the timestamps of the samples.
+     * @param axis the axis of the reaction wheel: SensorFrame.X or Y.
+     * @param latencyBudgetNanos the longest acceptable sensor-to-actuator latency, in ns.
+     */
+    public BalanceController(SensorPipeline pipeline, MotorOutput motor, TimeSource timeSource, int axis, long latencyBudgetNanos) {
+        if (axis != SensorFrame.X && axis != SensorFrame.Y)
+            throw new IllegalArgumentException("The axis must be X or Y: the tilt is measured against gravity.");
+        this.pipeline = pipeline;
+        this.motor = motor;
+        this.timeSource = timeSource;
+        this.axis = axis;
+        setLatencyBudgetNanos(latencyBudgetNanos);
+    }
+
+    /**
+     * Starts controlling the motor, from the next sample. The state of the loop is reset.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        lastTimestamp = 0;
+        tiltIntegral = 0.;
+        wheelSpeed = 0.;
+        engaged = false;
+        running = true;
+        pipeline.addSampleListener(this);
+    }
+
+    /**
+     * Stops controlling the motor, and stops the motor.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        pipeline.removeSampleListener(this);
+        motor.stop();
+    }
+
+    /**
+     * @return true while the controller drives the motor, or waits for the balance point.
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void onSample(SensorFrame sample) {
+        double dt = lastTimestamp == 0 ? 0. : Math.max(0, sample.timestampNanos - lastTimestamp) / 1e9; // s
+        lastTimestamp = sample.timestampNanos;
+        double tilt = -Math.IEEEremainder(sample.filteredAngles[axis] - setpoint, 360.);
+        double rate = sample.gyroAngularSpeeds[axis];
+        lastTilt = tilt;
+
+        double command = 0.;
+        if (engaged && Math.abs(tilt) > maxTilt) {
+            engaged = false;
+            fallCount++;
+        } else if (!engaged && Math.abs(tilt) < ENGAGE_TILT) {
+            engaged = true;
+            tiltIntegral = 0.;
+        }
+        if (engaged) {
+            Gains g = gains;
+            double demand = g.kp * tilt + g.ki * tiltIntegral + g.kd * rate + g.kw * wheelSpeed;
+            command = Math.max(-1., Math.min(1., demand));
+            // anti-windup: no accumulation while the torque is saturated
+            if (command == demand)
+                tiltIntegral += tilt * dt;
+        }
+        wheelSpeed += command * dt;
+
+        synchronized (this) {
+            if (!running)
+                return;
+            motor.setCommand(command);
+        }
+        long latency = timeSource.nanoTime() - sample.timestampNanos;
+        latencyHistogram.record(latency);
+        if (latency > latencyBudgetNanos)
+            overBudgetCount++;
+        cycleCount++;
+    }
+
+    /**
+     * Sets the gains of the control law, applied from the next sample.
+     * @param gains the gains.
+     */
+    public void setGains(Gains gains) {
+        if (gains == null)
+            throw new IllegalArgumentException("The gains can't be null.");
+        this.gains = gains;
+    }
+
+    /**
+     * @return the gains of the control law.
+     */
+    public Gains getGains() {
+        return gains;
+    }
+
+    /**
+     * Sets the balance point.
+     * @param setpoint the filtered angle of the balanced Cubli, in °.
+     */
+    public void setSetpoint(double setpoint) {
+        this.setpoint = setpoint;
+    }
+
+    /**
+     * @return the filtered angle of the balanced Cubli, in °.
+     */
+    public double getSetpoint() {
+        return setpoint;
+    }
+
+    /**
+     * Sets the tilt over which the Cubli is considered fallen, and the motor released.
+     * @param maxTilt the maximum tilt, in °, greater than ENGAGE_TILT.
+     */
+    public void setMaxTilt(double maxTilt) {
+        if (maxTilt <= ENGAGE_TILT)
+            throw new IllegalArgumentException("The maximum tilt must be greater than " + ENGAGE_TILT + "°.");
+        this.maxTilt = maxTilt;
+    }
+
+    /**
+     * @return the tilt over which the Cubli is considered fallen, in °.
+     */
+    public double getMaxTilt() {
+        return maxTilt;
+    }
+
+    /**
+     * Sets the longest acceptable sensor-to-actuator latency.
+     * @param latencyBudgetNanos the latency budget, in ns.
+     */
+    public void setLatencyBudgetNanos(long latencyBudgetNanos) {
+        if (latencyBudgetNanos <= 0)
+            throw new IllegalArgumentException("The latency budget must be positive.");
+        this.latencyBudgetNanos = latencyBudgetNanos;
+    }
+
+    /**
+     * @return the longest acceptable sensor-to-actuator latency, in ns.
+     */
+    public long getLatencyBudgetNanos() {
+        return latencyBudgetNanos;
+    }
+
+    /**
+     * @return the distribution of the sensor-to-actuator latency, in ns.
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /**
+     * @return the number of control cycles.
+     */
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * @return the number of cycles whose latency exceeded the budget.
+     */
+    public long getOverBudgetCount() {
+        return overBudgetCount;
+    }
+
+    /**
+     * @return the number of times the tilt exceeded the maximum tilt while the motor was driven.
+     */
+    public long getFallCount() {
+        return fallCount;
+    }
+
+    /**
+     * @return the tilt of the last sample, in °, positive in the direction of the gyroscope axis.
+     */
+    public double getTilt() {
+        return lastTilt;
+    }
+
+    /**
+     * @return the motor of the reaction wheel.
+     */
+    public MotorOutput getMotor() {
+        return motor;
+    }
+
+    /**
+     * Returns the state of the loop in one compact line, in the "cycles=n overBudget=n falls=n tilt=x°
+     * latency p50=xus p99=xus p99.9=xus max=xus" format.
+     * @return the summary of the loop.
+     */
+    public String summary() {
+        return String.format("cycles=%d overBudget=%d falls=%d tilt=%.2f° latency %s",
+                getCycleCount(), getOverBudgetCount(), getFallCount(), getTilt(), latencyHistogram.summary());
+    }
+
+    /**
+     * Logs the summary of the loop, as a warning if some cycles exceeded the latency budget.
+     */
+    public void logSummary() {
+        if (overBudgetCount > 0)
+            LOG.warn("Balance loop over the {} us budget: {}", latencyBudgetNanos / 1000, summary());
+        else
+            LOG.info("Balance loop: {}", summary());
+    }
+
+    /**
+     * <b>Gains of the control law.</b>
+     */
+    public static final class Gains {
+
+        /** Gain of the tilt, per °. */
+        final double kp;
+        /** Gain of the integral of the tilt, per °.s. */
+        final double ki;
+        /** Gain of the tilt rate, per °/sec. */
+        final double kd;
+        /** Gain of the estimated wheel speed, per command.s. */
+        final double kw;
+
+        /**
+         * Constructor for a set of gains.
+         * @param kp gain of the tilt, per °.
+         * @param ki gain of the integral of the tilt, per °.s.
+         * @param kd gain of the tilt rate, per °/sec.
+         * @param kw gain of the estimated wheel speed, per command.s.
+         */
+        public Gains(double kp, double ki, double kd, double kw) {
+            this.kp = kp;
+            this.ki = ki;
+            this.kd = kd;
+            this.kw = kw;
+        }
+
+        public double getKp() {
+            return kp;
+        }
+
+        public double getKi() {
+            return ki;
+        }
+
+        public double getKd() {
+            return kd;
+        }
+
+        public double getKw() {
+            return kw;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("kp=%s ki=%s kd=%s kw=%s", kp, ki, kd, kw);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package meika.poika.cubli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * <b>Small on-disk cache of the gyroscope calibrations, keyed by device.</b>
+ *
+ * <p>The calibrations are stored in a properties file, one group of keys per device
+ * (see I2CComponent#getDeviceName()), so a restarted unit reuses its last calibration instead of
+ * calibrating again. The file is rewritten atomically (temporary file, then rename).</p>
+ *
+ * <p>The cache is a best effort: a missing, unreadable or malformed entry is reported as absent,
+ * and a failed write is logged, never thrown.</p>
+ */
+public class CalibrationCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CalibrationCache.class);
+
+    /**
+     * Default location of the cache: ~/.cubli/calibration.properties.
+     */
+    public static final Path DEFAULT_PATH = Paths.get(System.getProperty("user.home"), ".cubli", "calibration.properties");
+
+    private static final String OFFSET_X = ".gyro.offset.x";
+    private static final String OFFSET_Y = ".gyro.offset.y";
+    private static final String OFFSET_Z = ".gyro.offset.z";
+    private static final String NOISE = ".gyro.noise";
+    private static final String TEMPERATURE = ".temperature";
+    private static final String SAMPLES = ".samples";
+    private static final String TIME = ".time";
+
+    private static CalibrationCache defaultCache;
+
+    private final Path path;
+
+    /**
+     * Constructor for a cache stored in a specific file.
+     * @param path the properties file. It is created on the first store.
+     */
+    public CalibrationCache(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * @return the cache stored in DEFAULT_PATH.
+     */
+    public static synchronized CalibrationCache getDefault() {
+        if (defaultCache == null)
+            defaultCache = new CalibrationCache(DEFAULT_PATH);
+        return defaultCache;
+    }
+
+    /**
+     * @return the properties file of the cache.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Loads the calibration of a device.
+     * @param deviceName the name of the device.
+     * @return the last stored calibration of the device, null if there is none.
+     */
+    public synchronized GyroCalibration load(String deviceName) {
+        Properties properties = read();
+        String x = properties.getProperty(deviceName + OFFSET_X);
+        if (x == null)
+            return null;
+        try {
+            return new GyroCalibration(
+                    Double.parseDouble(x),
+                    Double.parseDouble(properties.getProperty(deviceName + OFFSET_Y)),
+                    Double.parseDouble(properties.getProperty(deviceName + OFFSET_Z)),
+                    Double.parseDouble(properties.getProperty(deviceName + NOISE)),
+                    Double.parseDouble(properties.getProperty(deviceName + TEMPERATURE)),
+                    Integer.parseInt(properties.getProperty(deviceName + SAMPLES)),
+                    Long.parseLong(properties.getProperty(deviceName + TIME)));
+        } catch (NullPointerException | NumberFormatException e) {
+            LOG.warn("Ignoring the malformed calibration of {} in {}", deviceName, path);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the calibration of a device, replacing the previous one.
+     * @param deviceName the name of the device.
+     * @param calibration the calibration.
+     */
+    public synchronized void store(String deviceName, GyroCalibration calibration) {
+        Properties properties = read();
+        properties.setProperty(deviceName + OFFSET_X, Double.toString(calibration.getOffset(SensorFrame.X)));
+        properties.setProperty(deviceName + OFFSET_Y, Double.toString(calibration.getOffset(SensorFrame.Y)));
+        properties.setProperty(deviceName + OFFSET_Z, Double.toString(calibration.getOffset(SensorFrame.Z)));
+        properties.setProperty(deviceName + NOISE, Double.toString(calibration.getNoise()));
+        properties.setProperty(deviceName + TEMPERATURE, Double.toString(calibration.getTemperature()));
+        properties.setProperty(deviceName + SAMPLES, Integer.toString(calibration.getSamples()));
+        properties.setProperty(deviceName + TIME, Long.toString(calibration.getTimeMillis()));
+        try {
+            Path directory = path.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, "calibration", ".tmp");
+            try (OutputStream output = Files.newOutputStream(temporary)) {
+                properties.store(output, "Cubli gyroscope calibrations");
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Cannot store the calibration of {} in {}: {}", deviceName, path, e.toString());
+        }
+    }
+
+    private Properties read() {
+        Properties properties = new Properties();
+        if (Files.exists(path)) {
+            try (InputStream input = Files.newInputStream(path)) {
+                properties.load(input);
+            } catch (IOException e) {
+                LOG.warn("Cannot read the calibration cache {}: {}", path, e.toString());
+            }
+        }
+        return properties;
+    }
+}
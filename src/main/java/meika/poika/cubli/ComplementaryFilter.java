@@ -0,0 +1,74 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Complementary filter on the x and y angles.</b>
+ *
+ * <p>The angles integrated from the gyroscope are accurate on short periods but drift,
+ * while the angles from the accelerometer are noisy but don't drift. The filter combines them:
+ * <pre>angle = alpha * (angle - angular speed * dt) + (1 - alpha) * accelerometer angle</pre>
+ * The angular speed is subtracted: the accelerometer angles decrease when the sensor turns positively
+ * around their axis (see {@link AngleMath}). The z angle is only integrated from the gyroscope.</p>
+ *
+ * <p>This is the cheapest filter: a few multiplications per axis.</p>
+ */
+public class ComplementaryFilter implements FusionFilter {
+
+    /**
+     * Default weight of the gyroscope.
+     */
+    public static final double DEFAULT_ALPHA = 0.96;
+
+    /**
+     * Weight of the gyroscope, in the 0..1 interval.
+     */
+    private final double alpha;
+
+    private double angleX = 0.;
+    private double angleY = 0.;
+    private double angleZ = 0.;
+
+    /**
+     * Constructor for a new complementary filter with the DEFAULT_ALPHA gyroscope weight.
+     */
+    public ComplementaryFilter() {
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * Constructor for a new complementary filter.
+     * @param alpha the weight of the gyroscope, in the 0..1 interval.
+     */
+    public ComplementaryFilter(double alpha) {
+        if (alpha < 0 || alpha > 1)
+            throw new IllegalArgumentException("The weight of the gyroscope must be in the 0..1 interval.");
+        this.alpha = alpha;
+    }
+
+    @Override
+    public void update(SensorFrame sample, double dt) {
+        double ax = sample.accelAccelerations[X];
+        double ay = sample.accelAccelerations[Y];
+        double az = sample.accelAccelerations[Z];
+        angleX = alpha * (angleX - sample.gyroAngularSpeeds[X] * dt) + (1. - alpha) * AngleMath.fastAccelXAngle(ax, ay, az);
+        angleY = alpha * (angleY - sample.gyroAngularSpeeds[Y] * dt) + (1. - alpha) * AngleMath.fastAccelYAngle(ax, ay, az);
+        angleZ = angleZ + sample.gyroAngularSpeeds[Z] * dt;
+    }
+
+    @Override
+    public void getAngles(double[] angles) {
+        angles[X] = angleX;
+        angles[Y] = angleY;
+        angles[Z] = angleZ;
+    }
+
+    @Override
+    public void reset() {
+        angleX = 0.;
+        angleY = 0.;
+        angleZ = 0.;
+    }
+}
@@ -7,16 +7,78 @@ import com.pi4j.io.gpio.digital.DigitalState;
 import com.pi4j.io.i2c.I2C;
 import com.pi4j.io.i2c.I2CConfig;
 import com.pi4j.io.i2c.I2CProvider;
+import com.pi4j.plugin.gpiod.provider.gpio.digital.GpioDDigitalInputProvider;
+import com.pi4j.plugin.gpiod.provider.gpio.digital.GpioDDigitalOutputProvider;
 import com.pi4j.plugin.linuxfs.provider.i2c.LinuxFsI2CProvider;
+import com.pi4j.plugin.linuxfs.provider.pwm.LinuxFsPwmProvider;
 import com.pi4j.provider.impl.DefaultProviders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class CubliApp {
     private static final int PIN_LED = 22; // PIN 15 = BCM 22
+    private static final int PWM_CHIP = 0;
+    private static final int MOTOR_PWM_CHANNEL = 0; // PIN 12 = BCM 18
+    private static final int PIN_MOTOR_DIRECTION = 23; // PIN 16 = BCM 23
+    private static final long SENSOR_PERIOD_NANOS = 1_000_000; // 1 kHz
+    private static final long METRICS_PERIOD_MILLIS = 10_000;
+
+    private static final String SIMULATED_OPTION = "--simulated";
+    private static final String RECORD_OPTION = "--record";
+    private static final String HEADLESS_OPTION = "--headless";
+    private static final String TELEMETRY_OPTION = "--telemetry";
+    private static final String BALANCE_OPTION = "--balance";
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5_000;
+    private static final Path RECORDING_DIRECTORY = Paths.get("recordings");
 
     private static Logger LOG = LoggerFactory.getLogger(CubliApp.class);
-    public static Context PI4J_CONTEXT = Pi4J.newContextBuilder().add(LinuxFsI2CProvider.newInstance()).build();
+
+    /**
+     * Released by a signal or by the closing of the window, to stop the application.
+     */
+    private static final CountDownLatch SHUTDOWN_REQUESTED = new CountDownLatch(1);
+
+    /**
+     * Released once the application is stopped, the shutdown hook waits for it.
+     */
+    private static final CountDownLatch SHUTDOWN_COMPLETE = new CountDownLatch(1);
+
+    /**
+     * The Pi4J context of the application, built on first use only,
+     * so the application can run on simulated devices without the Raspberry Pi.
+     */
+    private static Context pi4jContext;
+
+    /**
+     * @return the Pi4J context of the application, with the linuxfs i2c and PWM providers, and the gpiod providers.
+     */
+    public static synchronized Context getPi4jContext() {
+        if (pi4jContext == null)
+            pi4jContext = Pi4J.newContextBuilder()
+                    .add(LinuxFsI2CProvider.newInstance())
+                    .add(LinuxFsPwmProvider.newInstance(PWM_CHIP))
+                    .add(GpioDDigitalInputProvider.newInstance())
+                    .add(GpioDDigitalOutputProvider.newInstance())
+                    .build();
+        return pi4jContext;
+    }
+
+    /**
+     * Shuts the Pi4J context of the application down, if it was built.
+     */
+    private static synchronized void shutdownPi4jContext() {
+        if (pi4jContext != null)
+            pi4jContext.shutdown();
+    }
 
     public static void main(String[] args) throws InterruptedException {
 
@@ -24,24 +86,128 @@ public class CubliApp {
 
         // Configure default logging level, accept a log level as the first program argument
         System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "INFO");
-        MPU6050 mpu6050 = new MPU6050();
-        System.out.println("Hello, Cubli!");
-        mpu6050.startUpdatingThread();
-        OrientationVisualization orientationVisualization = new OrientationVisualization(new java.awt.event.WindowAdapter() {
-            @Override
-            public void windowClosing(java.awt.event.WindowEvent windowEvent) {
+        List<String> options = Arrays.asList(args);
+        boolean headless = isHeadless(options);
+        if (headless)
+            // nothing on the control path needs AWT: any accidental use fails instead of opening a display
+            System.setProperty("java.awt.headless", "true");
+        // signals (SIGINT, SIGTERM) stop the application in order, as the window closing does
+        Runtime.getRuntime().addShutdownHook(new Thread(CubliApp::awaitShutdown, "cubli-shutdown"));
+
+        try {
+            // "--simulated" runs on a simulated MPU6050, without the Raspberry Pi
+            boolean simulated = options.contains(SIMULATED_OPTION);
+            I2CBus bus = simulated
+                    ? new SimulatedI2CBus(new SimulatedMPU6050())
+                    : new Pi4jI2CBus(Pi4jI2CBus.DEFAULT_BUS);
+            // the simulated sensor has no calibration cache: it must not share the calibrations of the real ones
+            MPU6050 mpu6050 = simulated
+                    ? new MPU6050(bus, MPU6050.DEFAULT_MPU6050_ADDRESS, MPU6050.DEFAULT_DLPF_CFG, MPU6050.DEFAULT_SMPLRT_DIV, null)
+                    : new MPU6050(bus);
+            LOG.info("Hello, Cubli! ({})", headless ? "headless" : "with orientation window");
+            mpu6050.setUpdatePeriodNanos(SENSOR_PERIOD_NANOS);
+            // "--record" records every sample in the recordings directory
+            FlightRecorder flightRecorder = null;
+            if (options.contains(RECORD_OPTION)) {
+                flightRecorder = new FlightRecorder(mpu6050, RECORDING_DIRECTORY);
+                flightRecorder.start();
+            }
+            // metrics published over JMX, and logged every METRICS_PERIOD_MILLIS
+            mpu6050.getMetrics().registerMBean();
+            mpu6050.getMetrics().startReporting(METRICS_PERIOD_MILLIS);
+            // "--telemetry" streams the samples on TelemetryServer.DEFAULT_PORT of the loopback interface,
+            // "--telemetry=<address>" on the interface of the address (0.0.0.0 for all of them)
+            TelemetryServer telemetryServer = null;
+            String telemetryOption = options.stream().filter(o -> o.equals(TELEMETRY_OPTION) || o.startsWith(TELEMETRY_OPTION + "="))
+                    .findFirst().orElse(null);
+            if (telemetryOption != null) {
                 try {
-                    mpu6050.stopUpdatingThread();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    telemetryServer = telemetryOption.equals(TELEMETRY_OPTION)
+                            ? new TelemetryServer(mpu6050)
+                            : new TelemetryServer(mpu6050, InetAddress.getByName(telemetryOption.substring(TELEMETRY_OPTION.length() + 1)),
+                                    TelemetryServer.DEFAULT_PORT);
+                    telemetryServer.start();
+                } catch (IOException e) {
+                    LOG.warn("Telemetry disabled: {}", e.toString());
+                    telemetryServer = null;
                 }
             }
-        });
-        while (!mpu6050.isUpdatingThreadStopped()) {
-            orientationVisualization.updateAngles(mpu6050.getGyroAngles());
-            Thread.sleep(100);
+            // "--balance" closes the loop on the reaction wheel, on the updating thread
+            BalanceController balanceController = null;
+            if (options.contains(BALANCE_OPTION)) {
+                // the complementary filter follows the tangential acceleration of the swinging cube, it doesn't balance
+                mpu6050.setFusionFilter(FusionAlgorithm.KALMAN.create());
+                MotorOutput motor = simulated ? new RecordingMotorOutput() : new PwmMotorOutput(MOTOR_PWM_CHANNEL, PIN_MOTOR_DIRECTION);
+                balanceController = new BalanceController(mpu6050, motor);
+                balanceController.start();
+            }
+            // an updating thread dying on an error stops the motor and the application, instead of holding the last command
+            BalanceController controller = balanceController;
+            mpu6050.setUpdatingThreadTerminationHandler(() -> {
+                if (controller != null)
+                    controller.stop();
+                requestShutdown();
+            });
+            mpu6050.startUpdatingThread();
+            if (!headless)
+                // the window renders the filtered orientation by itself, closing it stops the application
+                OrientationVisualization.attach(mpu6050.getPipeline(), CubliApp::requestShutdown);
+
+            SHUTDOWN_REQUESTED.await();
+            LOG.info("Stopping");
+            if (balanceController != null) {
+                // the motor is released before the sensor loop stops
+                balanceController.stop();
+                balanceController.getMotor().close();
+                balanceController.logSummary();
+            }
+            mpu6050.stopUpdatingThread();
+            mpu6050.getMetrics().stopReporting();
+            LOG.info("Sensor loop: {}", mpu6050.getScheduler().summary());
+            LOG.info("Sensor metrics: {}", mpu6050.getMetrics().summary());
+            mpu6050.getMetrics().unregisterMBean();
+            if (telemetryServer != null) {
+                telemetryServer.close();
+                LOG.info("Telemetry: {} frames sent, {} dropped", telemetryServer.getSentFrameCount(), telemetryServer.getDroppedFrameCount());
+            }
+            if (flightRecorder != null) {
+                flightRecorder.close();
+                LOG.info("Flight recording: {} samples, {} lost", flightRecorder.getRecordedCount(), flightRecorder.getLostCount());
+            }
+        } finally {
+            shutdownPi4jContext();
+            SHUTDOWN_COMPLETE.countDown();
         }
+    }
+
+    /**
+     * Asks the main thread to stop the application.
+     */
+    public static void requestShutdown() {
+        SHUTDOWN_REQUESTED.countDown();
+    }
+
+    /**
+     * Shutdown hook: asks the main thread to stop the application, and lets the JVM exit once it is done,
+     * or after SHUTDOWN_TIMEOUT_MILLIS.
+     */
+    private static void awaitShutdown() {
+        requestShutdown();
+        try {
+            SHUTDOWN_COMPLETE.await(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        PI4J_CONTEXT.shutdown();
+    /**
+     * The application runs headless with the "--headless" option, and on Linux when there is no display.
+     * The environment is checked without loading AWT.
+     */
+    private static boolean isHeadless(List<String> options) {
+        if (options.contains(HEADLESS_OPTION) || Boolean.getBoolean("java.awt.headless"))
+            return true;
+        return System.getProperty("os.name", "").startsWith("Linux")
+                && System.getenv("DISPLAY") == null && System.getenv("WAYLAND_DISPLAY") == null;
     }
 }
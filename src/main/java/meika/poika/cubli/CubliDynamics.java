@@ -0,0 +1,276 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.MPU6050.DEGREE_TO_RADIAN;
+import static meika.poika.cubli.MPU6050.RADIAN_TO_DEGREE;
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Rigid-body model of a Cubli balancing on an edge with one reaction wheel.</b>
+ *
+ * <p>The body pivots around its edge, which is parallel to the x axis of the sensor, and the wheel spins
+ * around the same axis. With φ the rotation of the body from the balance point and ψ' the speed of the
+ * wheel relative to the body:
+ * <pre>
+ *     J.φ''        = mgl.sin(φ) - T - Cb.φ' + Cw.ψ'
+ *     Jw.(φ'' + ψ'') = T - Cw.ψ'
+ * </pre>
+ * J is the inertia of the Cubli around the edge, Jw the one of the wheel around its axis, mgl the moment
+ * of its weight, T the torque of the motor on the wheel, Cb and Cw the friction of the edge and of the
+ * wheel bearing. The torque is the command times the maximum torque, and drops linearly to zero at the
+ * maximum wheel speed (back EMF of the motor). The body lands on a face at ±45°.</p>
+ *
+ * <p>The model is the {@link MotorOutput} driving its wheel, and the {@link MotionProfile} of the sensor,
+ * at the center of the Cubli and parallel to a face: it measures gravity and the tangential and centripetal
+ * accelerations of the center. The default parameters are those of the one-dimensional Cubli prototype
+ * of the ETH Zurich (Gajamohan et al., 2012).</p>
+ *
+ * <p>The model is integrated with a fourth order Runge-Kutta step per call of {@link #step(double)}, the
+ * command being held during the step. It is driven by a single thread.</p>
+ */
+public class CubliDynamics implements MotionProfile, MotorOutput {
+
+    /**
+     * Acceleration of gravity, in m/s².
+     */
+    public static final double GRAVITY = 9.81;
+
+    /**
+     * Rotation at which the body lands on a face, in rad.
+     */
+    public static final double LANDING_ANGLE = Math.PI / 4.;
+
+    /**
+     * Rotation of the sensor from level when the body is balanced, in rad: the sensor is parallel to a face.
+     */
+    public static final double SENSOR_MOUNTING_ANGLE = Math.PI / 4.;
+
+    /** Default distance from the edge to the center of the Cubli, in m. */
+    public static final double DEFAULT_CENTER_DISTANCE = 0.085;
+    /** Default moment of the weight of the body and the wheel around the edge, per radian, in N.m. */
+    public static final double DEFAULT_MGL = (0.419 * 0.075 + 0.204 * 0.085) * GRAVITY;
+    /** Default inertia of the Cubli around the edge, wheel mass included, in kg.m². */
+    public static final double DEFAULT_INERTIA = 3.34e-3 + 0.204 * 0.085 * 0.085;
+    /** Default inertia of the wheel around its axis, in kg.m². */
+    public static final double DEFAULT_WHEEL_INERTIA = 0.57e-3;
+    /** Default friction of the edge, in N.m.s. */
+    public static final double DEFAULT_BODY_FRICTION = 1.02e-3;
+    /** Default friction of the wheel bearing, in N.m.s. */
+    public static final double DEFAULT_WHEEL_FRICTION = 0.05e-3;
+    /** Default maximum torque of the motor, in N.m. */
+    public static final double DEFAULT_MAX_TORQUE = 0.3;
+    /** Default maximum speed of the wheel, in rad/s. */
+    public static final double DEFAULT_MAX_WHEEL_SPEED = 600.;
+
+    private final double centerDistance;
+    private final double mgl;
+    private final double inertia;
+    private final double wheelInertia;
+    private final double bodyFriction;
+    private final double wheelFriction;
+    private final double maxTorque;
+    private final double maxWheelSpeed;
+
+    /*
+     * State: rotation and speed of the body, speed of the wheel relative to the body, in rad and rad/s.
+     */
+    private double angle = 0.;
+    private double rate = 0.;
+    private double wheelSpeed = 0.;
+    private boolean held = false;
+    private boolean landed = false;
+
+    private volatile double command = 0.;
+
+    /**
+     * Derivatives of the Runge-Kutta stages: φ'', ψ''.
+     */
+    private final double[] derivatives = new double[2];
+
+    /**
+     * Constructor for the one-dimensional Cubli prototype.
+     */
+    public CubliDynamics() {
+        this(DEFAULT_CENTER_DISTANCE, DEFAULT_MGL, DEFAULT_INERTIA, DEFAULT_WHEEL_INERTIA, DEFAULT_BODY_FRICTION,
+                DEFAULT_WHEEL_FRICTION, DEFAULT_MAX_TORQUE, DEFAULT_MAX_WHEEL_SPEED);
+    }
+
+    /**
+     * Constructor for a specific Cubli.
+     * @param centerDistance the distance from the edge to the center, where the sensor is, in m.
+     * @param mgl the moment of the weight around the edge, per radian, in N.m.
+     * @param inertia the inertia of the Cubli around the edge, wheel mass included, in kg.m².
+     * @param wheelInertia the inertia of the wheel around its axis, in kg.m².
+     * @param bodyFriction the friction of the edge, in N.m.s.
+     * @param wheelFriction the friction of the wheel bearing, in N.m.s.
+     * @param maxTorque the maximum torque of the motor, in N.m.
+     * @param maxWheelSpeed the speed of the wheel at which the motor has no torque left, in rad/s.
+     */
+    public CubliDynamics(double centerDistance, double mgl, double inertia, double wheelInertia, double bodyFriction,
+                         double wheelFriction, double maxTorque, double maxWheelSpeed) {
+        if (inertia <= 0 || wheelInertia <= 0 || maxTorque <= 0 || maxWheelSpeed <= 0)
+            throw new IllegalArgumentException("The inertias, the torque and the wheel speed must be positive.");
+        this.centerDistance = centerDistance;
+        this.mgl = mgl;
+        this.inertia = inertia;
+        this.wheelInertia = wheelInertia;
+        this.bodyFriction = bodyFriction;
+        this.wheelFriction = wheelFriction;
+        this.maxTorque = maxTorque;
+        this.maxWheelSpeed = maxWheelSpeed;
+    }
+
+    /**
+     * Puts the body at rest at a specific rotation, with the wheel stopped.
+     * @param angle the rotation of the body from the balance point, in °.
+     */
+    public void reset(double angle) {
+        this.angle = Math.max(-LANDING_ANGLE, Math.min(LANDING_ANGLE, angle * DEGREE_TO_RADIAN));
+        this.rate = 0.;
+        this.wheelSpeed = 0.;
+        this.landed = Math.abs(this.angle) >= LANDING_ANGLE;
+        this.command = 0.;
+    }
+
+    /**
+     * Holds the body still, as a hand would: only the wheel moves.
+     * @param held true to hold the body, false to release it.
+     */
+    public void setHeld(boolean held) {
+        this.held = held;
+        if (held)
+            rate = 0.;
+    }
+
+    /**
+     * Adds a rotation speed to the body, as a tap would.
+     * @param rate the speed added, in °/sec.
+     */
+    public void kick(double rate) {
+        if (!held && !landed)
+            this.rate += rate * DEGREE_TO_RADIAN;
+    }
+
+    /**
+     * Moves the model forward, with the current command.
+     * @param dt the duration of the step, in s.
+     */
+    public void step(double dt) {
+        double a0 = angle, r0 = rate, w0 = wheelSpeed;
+        derive(a0, r0, w0);
+        double k1a = r0, k1r = derivatives[0], k1w = derivatives[1];
+        derive(a0 + k1a * dt / 2, r0 + k1r * dt / 2, w0 + k1w * dt / 2);
+        double k2a = r0 + k1r * dt / 2, k2r = derivatives[0], k2w = derivatives[1];
+        derive(a0 + k2a * dt / 2, r0 + k2r * dt / 2, w0 + k2w * dt / 2);
+        double k3a = r0 + k2r * dt / 2, k3r = derivatives[0], k3w = derivatives[1];
+        derive(a0 + k3a * dt, r0 + k3r * dt, w0 + k3w * dt);
+        double k4a = r0 + k3r * dt, k4r = derivatives[0], k4w = derivatives[1];
+        angle = a0 + (k1a + 2 * k2a + 2 * k3a + k4a) * dt / 6;
+        rate = r0 + (k1r + 2 * k2r + 2 * k3r + k4r) * dt / 6;
+        wheelSpeed = w0 + (k1w + 2 * k2w + 2 * k3w + k4w) * dt / 6;
+        if (Math.abs(angle) >= LANDING_ANGLE) {
+            angle = Math.copySign(LANDING_ANGLE, angle);
+            rate = 0.;
+            landed = true;
+        }
+    }
+
+    /**
+     * Computes φ'' and ψ'' in a state, into derivatives.
+     */
+    private void derive(double angle, double rate, double wheelSpeed) {
+        double torque = torque(wheelSpeed);
+        double acceleration = held || landed ? 0.
+                : (mgl * Math.sin(angle) - torque - bodyFriction * rate + wheelFriction * wheelSpeed) / inertia;
+        derivatives[0] = acceleration;
+        derivatives[1] = (torque - wheelFriction * wheelSpeed) / wheelInertia - acceleration;
+    }
+
+    private double torque(double wheelSpeed) {
+        double command = this.command;
+        double torque = command * maxTorque;
+        // the back EMF limits the torque accelerating the wheel
+        if (command * wheelSpeed > 0)
+            torque *= Math.max(0., 1. - Math.abs(wheelSpeed) / maxWheelSpeed);
+        return torque;
+    }
+
+    /**
+     * @return the rotation of the body from the balance point, in °.
+     */
+    public double getAngle() {
+        return angle * RADIAN_TO_DEGREE;
+    }
+
+    /**
+     * @return the rotation speed of the body, in °/sec.
+     */
+    public double getRate() {
+        return rate * RADIAN_TO_DEGREE;
+    }
+
+    /**
+     * @return the speed of the wheel relative to the body, in rad/s.
+     */
+    public double getWheelSpeed() {
+        return wheelSpeed;
+    }
+
+    /**
+     * @return the speed of the wheel at which the motor has no torque left, in rad/s.
+     */
+    public double getMaxWheelSpeed() {
+        return maxWheelSpeed;
+    }
+
+    /**
+     * @return true once the body lies on a face.
+     */
+    public boolean isLanded() {
+        return landed;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              SENSOR
+     * -----------------------------------------------------------------------*/
+
+    @Override
+    public void sample(double time, double[] acceleration, double[] angularSpeed) {
+        derive(angle, rate, wheelSpeed);
+        double sin = Math.sin(angle);
+        double cos = Math.cos(angle);
+        // acceleration of the center (0, -d.sin φ, d.cos φ), plus the opposite of gravity, in g
+        double fy = -centerDistance * (derivatives[0] * cos - rate * rate * sin) / GRAVITY;
+        double fz = -centerDistance * (derivatives[0] * sin + rate * rate * cos) / GRAVITY + 1.;
+        // in the sensor frame, rotated around x from level
+        double sensorAngle = SENSOR_MOUNTING_ANGLE + angle;
+        double sensorSin = Math.sin(sensorAngle);
+        double sensorCos = Math.cos(sensorAngle);
+        acceleration[X] = 0.;
+        acceleration[Y] = sensorCos * fy + sensorSin * fz;
+        acceleration[Z] = -sensorSin * fy + sensorCos * fz;
+        angularSpeed[X] = rate * RADIAN_TO_DEGREE;
+        angularSpeed[Y] = 0.;
+        angularSpeed[Z] = 0.;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              MOTOR
+     * -----------------------------------------------------------------------*/
+
+    @Override
+    public void setCommand(double command) {
+        this.command = Math.max(-1., Math.min(1., command));
+    }
+
+    @Override
+    public double getCommand() {
+        return command;
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+}
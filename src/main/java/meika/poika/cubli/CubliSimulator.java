@@ -0,0 +1,404 @@
+package meika.poika.cubli;
+
+import java.util.Random;
+
+import static meika.poika.cubli.MPU6050.*;
+
+/**
+ * <b>Closed-loop simulation of a balancing Cubli, running in lock-step faster than real time.</b>
+ *
+ * <p>The whole chain of the hardware runs, without the hardware: a {@link CubliDynamics} model moves the body
+ * and the wheel, a {@link SimulatedMPU6050} measures the motion (with noise, bias and quantization) into its
+ * registers, the {@link MPU6050} reads them over a {@link SimulatedI2CBus} and processes the samples, and the
+ * {@link BalanceController} sends its commands back to the model. Each step moves the model by one sample
+ * period, moves the simulated time forward, and samples the MPU6050 once: nothing waits for the real time,
+ * so a simulation runs as fast as the processor allows, and is reproducible from its seed.</p>
+ *
+ * <p>The MPU6050 is created once, and calibrated on the still model; the trials then reuse it. The time of
+ * the simulation is simulated from the start: during the calibration, each read of the sensor registers
+ * moves it forward by one sample period, so the calibration measures the same samples whatever the speed
+ * of the machine.
+ * A trial holds the body at an initial tilt while the fusion filter converges, releases it, taps it once
+ * midway, and checks that it never falls.</p>
+ *
+ * <p>The sensor being away from the edge, the accelerometer also measures the tangential acceleration of
+ * the body, which the motor torque causes: the complementary filter, with its DEFAULT_ALPHA weight of the
+ * gyroscope, follows it and doesn't balance. The trials run with the Kalman filter by default.</p>
+ */
+public class CubliSimulator {
+
+    /**
+     * Duration during which the body is held at its initial tilt, in s.
+     */
+    public static final double HOLD_DURATION = 0.5;
+
+    /**
+     * Default duration of a trial after the release, in s.
+     */
+    public static final double DEFAULT_TRIAL_DURATION = 5.;
+
+    /**
+     * Largest initial tilt of the random trials, in °, within BalanceController.ENGAGE_TILT.
+     */
+    public static final double MAX_INITIAL_TILT = 1.5;
+
+    /**
+     * Largest tap of the random trials, in °/sec.
+     */
+    public static final double MAX_KICK = 30.;
+
+    /**
+     * Largest residual bias of the accelerometer of the random trials, in g.
+     */
+    public static final double MAX_ACCEL_BIAS = 0.01;
+
+    private final ManualTimeSource clock = new ManualTimeSource();
+    private final CubliDynamics dynamics;
+    private final SimulatedMPU6050 chip;
+    private final MPU6050 mpu6050;
+    private final BalanceController controller;
+    private final long periodNanos;
+    private final double period;
+
+    /**
+     * Constructor for a simulation of the one-dimensional Cubli prototype.
+     * @param seed the seed of the sensor noise.
+     */
+    public CubliSimulator(long seed) {
+        this(new CubliDynamics(), seed);
+    }
+
+    /**
+     * Constructor for a new simulation. The MPU6050 is calibrated with the body lying on a face.
+     * @param dynamics the model of the Cubli, driven by the simulation only.
+     * @param seed the seed of the sensor noise.
+     */
+    public CubliSimulator(CubliDynamics dynamics, long seed) {
+        this.dynamics = dynamics;
+        dynamics.reset(-CubliDynamics.LANDING_ANGLE * RADIAN_TO_DEGREE);
+        chip = new SimulatedMPU6050(DEFAULT_MPU6050_ADDRESS, seed, clock);
+        chip.setBusClockHz(0);
+        chip.setMotionProfile(dynamics);
+        CalibrationClock calibrationClock = new CalibrationClock(chip, clock);
+        // no calibration cache: the simulated chip must not share the calibrations of the real ones
+        mpu6050 = new MPU6050(new SimulatedI2CBus("i2c-sim", calibrationClock), DEFAULT_MPU6050_ADDRESS,
+                DEFAULT_DLPF_CFG, DEFAULT_SMPLRT_DIV, null);
+        calibrationClock.stop();
+        mpu6050.setTimeSource(clock);
+        periodNanos = mpu6050.getSamplePeriodNanos();
+        period = periodNanos / 1e9;
+        controller = new BalanceController(mpu6050.getPipeline(), dynamics, clock, SensorFrame.X, periodNanos);
+        mpu6050.startExternalSampling();
+    }
+
+    /**
+     * @return the model of the Cubli.
+     */
+    public CubliDynamics getDynamics() {
+        return dynamics;
+    }
+
+    /**
+     * @return the simulated chip, to change its noise, bias or temperature.
+     */
+    public SimulatedMPU6050 getChip() {
+        return chip;
+    }
+
+    /**
+     * @return the MPU6050 reading the simulated chip.
+     */
+    public MPU6050 getMpu6050() {
+        return mpu6050;
+    }
+
+    /**
+     * @return the controller under test, to change its gains.
+     */
+    public BalanceController getController() {
+        return controller;
+    }
+
+    /**
+     * Moves the simulation forward by one sample period: the model moves with the last command, then the
+     * MPU6050 reads the new sample, and the controller updates the command.
+     */
+    public void step() {
+        dynamics.step(period);
+        clock.advance(periodNanos);
+        mpu6050.updateValues();
+    }
+
+    /**
+     * Runs one trial.
+     * @param trial the conditions of the trial.
+     * @return the outcome of the trial.
+     */
+    public TrialResult run(Trial trial) {
+        controller.stop();
+        chip.setAccelBias(0., trial.accelBias, 0.);
+        // a new filter, reset at the next sample
+        mpu6050.setFusionFilter(trial.fusionAlgorithm.create());
+        dynamics.reset(trial.initialTilt);
+        dynamics.setHeld(true);
+        for (long s = Math.round(HOLD_DURATION / period); s > 0; s--)
+            step();
+
+        // the fall count of the controller covers all the trials
+        long falls = controller.getFallCount();
+        controller.start();
+        dynamics.setHeld(false);
+        long steps = Math.round(trial.duration / period);
+        long kickStep = steps / 2;
+        double maxTilt = 0.;
+        double squaredTilts = 0.;
+        double maxWheelSpeed = 0.;
+        long s = 0;
+        while (s < steps && !dynamics.isLanded()) {
+            if (s == kickStep)
+                dynamics.kick(trial.kick);
+            step();
+            s++;
+            double tilt = dynamics.getAngle();
+            maxTilt = Math.max(maxTilt, Math.abs(tilt));
+            squaredTilts += tilt * tilt;
+            maxWheelSpeed = Math.max(maxWheelSpeed, Math.abs(dynamics.getWheelSpeed()));
+        }
+        controller.stop();
+        boolean balanced = !dynamics.isLanded() && controller.getFallCount() == falls;
+        return new TrialResult(balanced, s * period, maxTilt, Math.sqrt(squaredTilts / Math.max(1, s)), maxWheelSpeed);
+    }
+
+    /**
+     * Runs random trials: initial tilt, tap and accelerometer bias are drawn from a seed.
+     * @param count the number of trials.
+     * @param seed the seed of the conditions of the trials.
+     * @param algorithm the fusion algorithm of the trials.
+     * @return the summary of the trials.
+     */
+    public Summary runTrials(int count, long seed, FusionAlgorithm algorithm) {
+        Random random = new Random(seed);
+        Summary summary = new Summary();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Trial trial = new Trial(MAX_INITIAL_TILT * (2 * random.nextDouble() - 1),
+                    MAX_KICK * (2 * random.nextDouble() - 1), MAX_ACCEL_BIAS * (2 * random.nextDouble() - 1),
+                    DEFAULT_TRIAL_DURATION, algorithm);
+            summary.add(run(trial));
+        }
+        summary.wallTime = (System.nanoTime() - start) / 1e9;
+        return summary;
+    }
+
+    /**
+     * <b>Conditions of a trial.</b>
+     */
+    public static final class Trial {
+
+        final double initialTilt;
+        final double kick;
+        final double accelBias;
+        final double duration;
+        final FusionAlgorithm fusionAlgorithm;
+
+        /**
+         * Constructor for a trial.
+         * @param initialTilt the tilt at which the body is released, in °.
+         * @param kick the speed added by the tap, midway, in °/sec.
+         * @param accelBias the bias of the accelerometer along y, in g, shifting the measured balance point.
+         * @param duration the duration of the trial after the release, in s.
+         * @param fusionAlgorithm the fusion algorithm of the pipeline.
+         */
+        public Trial(double initialTilt, double kick, double accelBias, double duration, FusionAlgorithm fusionAlgorithm) {
+            this.initialTilt = initialTilt;
+            this.kick = kick;
+            this.accelBias = accelBias;
+            this.duration = duration;
+            this.fusionAlgorithm = fusionAlgorithm;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tilt=%.2f° kick=%.1f°/s accelBias=%.4fg %.1fs %s",
+                    initialTilt, kick, accelBias, duration, fusionAlgorithm);
+        }
+    }
+
+    /**
+     * <b>Outcome of a trial.</b>
+     */
+    public static final class TrialResult {
+
+        final boolean balanced;
+        final double duration;
+        final double maxTilt;
+        final double rmsTilt;
+        final double maxWheelSpeed;
+
+        TrialResult(boolean balanced, double duration, double maxTilt, double rmsTilt, double maxWheelSpeed) {
+            this.balanced = balanced;
+            this.duration = duration;
+            this.maxTilt = maxTilt;
+            this.rmsTilt = rmsTilt;
+            this.maxWheelSpeed = maxWheelSpeed;
+        }
+
+        /**
+         * @return true if the Cubli stayed up until the end of the trial.
+         */
+        public boolean isBalanced() {
+            return balanced;
+        }
+
+        /**
+         * @return the simulated time from the release to the end of the trial or the landing, in s.
+         */
+        public double getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the largest rotation of the body from the balance point, in °.
+         */
+        public double getMaxTilt() {
+            return maxTilt;
+        }
+
+        /**
+         * @return the RMS rotation of the body from the balance point, in °.
+         */
+        public double getRmsTilt() {
+            return rmsTilt;
+        }
+
+        /**
+         * @return the largest speed of the wheel, in rad/s.
+         */
+        public double getMaxWheelSpeed() {
+            return maxWheelSpeed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s after %.2fs, max tilt=%.2f° rms=%.3f° max wheel=%.0frad/s",
+                    balanced ? "balanced" : "FELL", duration, maxTilt, rmsTilt, maxWheelSpeed);
+        }
+    }
+
+    /**
+     * <b>Summary of a series of trials.</b>
+     */
+    public static final class Summary {
+
+        private int trials = 0;
+        private int balanced = 0;
+        private double simulatedTime = 0.;
+        private double worstTilt = 0.;
+        private double rmsTiltSum = 0.;
+        private double maxWheelSpeed = 0.;
+        private double wallTime = 0.;
+
+        void add(TrialResult result) {
+            trials++;
+            if (result.balanced)
+                balanced++;
+            simulatedTime += result.duration + HOLD_DURATION;
+            worstTilt = Math.max(worstTilt, result.maxTilt);
+            rmsTiltSum += result.rmsTilt;
+            maxWheelSpeed = Math.max(maxWheelSpeed, result.maxWheelSpeed);
+        }
+
+        public int getTrialCount() {
+            return trials;
+        }
+
+        public int getBalancedCount() {
+            return balanced;
+        }
+
+        /**
+         * @return the ratio of the simulated time to the wall time.
+         */
+        public double getSpeedUp() {
+            return wallTime == 0. ? 0. : simulatedTime / wallTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d balanced, worst tilt=%.2f° mean rms=%.3f° max wheel=%.0frad/s,"
+                            + " %.0f trials/min, %.0fx real time",
+                    balanced, trials, worstTilt, trials == 0 ? 0. : rmsTiltSum / trials, maxWheelSpeed,
+                    wallTime == 0. ? 0. : trials * 60. / wallTime, getSpeedUp());
+        }
+    }
+
+    /**
+     * Access to the simulated chip during the construction of the MPU6050: each burst read of the registers
+     * first moves the time of the simulation forward by one sample period, so the calibration runs on the
+     * simulated time.
+     */
+    private static final class CalibrationClock implements I2CDevice {
+
+        private final SimulatedMPU6050 chip;
+        private final ManualTimeSource clock;
+        private volatile boolean stopped = false;
+
+        CalibrationClock(SimulatedMPU6050 chip, ManualTimeSource clock) {
+            this.chip = chip;
+            this.clock = clock;
+        }
+
+        /**
+         * Stops moving the time: the simulation drives it from now on.
+         */
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public int getAddress() {
+            return chip.getAddress();
+        }
+
+        @Override
+        public void write(int value) {
+            chip.write(value);
+        }
+
+        @Override
+        public void writeRegister(int reg, int value) {
+            chip.writeRegister(reg, value);
+        }
+
+        @Override
+        public int readRegister(int reg) {
+            return chip.readRegister(reg);
+        }
+
+        @Override
+        public int readRegister(int reg, byte[] buffer, int offset, int length) {
+            if (!stopped)
+                clock.advance(chip.getSamplePeriodNanos());
+            return chip.readRegister(reg, buffer, offset, length);
+        }
+
+        @Override
+        public int writeRegister(int reg, byte[] buffer, int offset, int length) {
+            return chip.writeRegister(reg, buffer, offset, length);
+        }
+    }
+
+    /**
+     * Runs random balance trials with the default gains, and exits with 1 if the Cubli fell in any of them.
+     * @param args the number of trials, then optionally the seed and the fusion algorithm (KALMAN by default).
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 0L;
+        FusionAlgorithm algorithm = args.length > 2 ? FusionAlgorithm.valueOf(args[2].toUpperCase()) : FusionAlgorithm.KALMAN;
+        CubliSimulator simulator = new CubliSimulator(seed);
+        Summary summary = simulator.runTrials(count, seed, algorithm);
+        System.out.println(algorithm + " " + simulator.getController().getGains() + ": " + summary);
+        System.exit(summary.getBalancedCount() == summary.getTrialCount() ? 0 : 1);
+    }
+}
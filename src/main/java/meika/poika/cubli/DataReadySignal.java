@@ -0,0 +1,32 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Source of the MPU6050 "data ready" notifications.</b>
+ *
+ * <p>The MPU6050 raises its INT pin each time a new sample is written to the sensor registers
+ * (DATA_RDY_INT). The updating thread waits on this signal instead of polling the registers,
+ * so each sample is read exactly once and the thread sleeps in between.</p>
+ *
+ * <p>Implementations: {@link GpioDataReadySignal} for the INT pin wired to a GPIO of the Raspberry Pi,
+ * {@link SoftwareDataReadySignal} for a trigger driven by software.</p>
+ *
+ * @see MPU6050.AcquisitionMode#INTERRUPT
+ */
+public interface DataReadySignal extends AutoCloseable {
+
+    /**
+     * Waits until new data is signalled, or until the timeout expires.
+     * <p>Notifications arriving while no thread waits are not queued: at most one pending
+     * notification is remembered, and it is consumed by the next call.</p>
+     * @param timeoutNanos the maximum time to wait, in nanoseconds.
+     * @return true if new data was signalled, false if the timeout expired.
+     * @throws InterruptedException if the waiting thread was interrupted.
+     */
+    boolean awaitDataReady(long timeoutNanos) throws InterruptedException;
+
+    /**
+     * Releases the resources used by the signal.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,46 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Fast approximations of the trigonometric functions used on every sample.</b>
+ *
+ * <p>{@link Math#atan2(double, double)} is accurate to the last bit, which makes it one of the most
+ * expensive operations of the sample processing. The sensor noise is several orders of magnitude
+ * above the error of the polynomial approximation used here, so the hot path can use it instead.</p>
+ */
+public final class FastMath {
+
+    /**
+     * Maximum absolute error of {@link #atan2(double, double)}, in radians (about 0.0001°).
+     */
+    public static final double MAX_ATAN2_ERROR = 2.e-6;
+
+    private static final double HALF_PI = Math.PI / 2.;
+
+    private FastMath() {
+    }
+
+    /**
+     * Approximation of {@link Math#atan2(double, double)}, within MAX_ATAN2_ERROR.
+     *
+     * <p>The angle of the octant is an 11th degree odd polynomial of min(|x|,|y|) / max(|x|,|y|),
+     * then moved to the right quadrant. The quadrant selection only uses selects and sign copies,
+     * which the JIT compiles to conditional moves rather than branches.</p>
+     *
+     * @param y the ordinate.
+     * @param x the abscissa.
+     * @return the angle of (x, y), in radians, in the -PI..PI interval. 0 for (0, 0).
+     */
+    public static double atan2(double y, double x) {
+        double absX = Math.abs(x);
+        double absY = Math.abs(y);
+        double max = Math.max(absX, absY);
+        double min = Math.min(absX, absY);
+        double a = max == 0. ? 0. : min / max;
+        double s = a * a;
+        double r = ((((-0.0117212 * s + 0.05265332) * s - 0.11643287) * s + 0.19354346) * s - 0.33262347) * s * a
+                + 0.99997726 * a;
+        r = absY > absX ? HALF_PI - r : r;
+        r = x < 0. ? Math.PI - r : r;
+        return Math.copySign(r, y);
+    }
+}
@@ -0,0 +1,172 @@
+package meika.poika.cubli;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <b>Paces a loop at a fixed period, with overrun and jitter accounting.</b>
+ *
+ * <p>The loop calls {@link #awaitNextPeriod()} before each iteration. Release times are
+ * computed from the start time (start + n * period) and not from the previous wake up,
+ * so the errors don't accumulate and the long term rate is exact.</p>
+ *
+ * <p>Waiting uses a spin-then-park strategy: the thread is parked until shortly before
+ * the release time, then spins for the remaining time. Parking alone typically oversleeps by tens of
+ * microseconds on a Raspberry Pi, while spinning alone wastes a whole core.</p>
+ *
+ * <p>When an iteration takes longer than a period (overrun), the missed release times are
+ * skipped instead of being run back to back, and the overrun is counted.</p>
+ *
+ * <p>The scheduler is used by a single thread. The statistics can be read from any thread.</p>
+ */
+public class FixedRateScheduler {
+
+    /**
+     * Default time spent spinning before each release, in nanoseconds.
+     */
+    public static final long DEFAULT_SPIN_NANOS = 100_000;
+
+    /**
+     * The period, in nanoseconds.
+     */
+    private final long periodNanos;
+
+    /**
+     * Time spent spinning before each release, in nanoseconds.
+     */
+    private final long spinNanos;
+
+    /**
+     * Distribution of the deviation between each achieved period and the configured period.
+     */
+    private final LatencyHistogram jitterHistogram = new LatencyHistogram();
+
+    private long startTime;
+    private long nextRelease;
+    private long lastRelease;
+    private volatile long ticks = 0;
+    private volatile long overruns = 0;
+    private volatile long missedPeriods = 0;
+    private volatile long lastTickTime;
+
+    /**
+     * Constructor for a new scheduler spinning DEFAULT_SPIN_NANOS before each release.
+     * @param periodNanos the period, in nanoseconds. Must be positive.
+     * @see #DEFAULT_SPIN_NANOS
+     */
+    public FixedRateScheduler(long periodNanos) {
+        this(periodNanos, DEFAULT_SPIN_NANOS);
+    }
+
+    /**
+     * Constructor for a new scheduler.
+     * @param periodNanos the period, in nanoseconds. Must be positive.
+     * @param spinNanos the time spent spinning before each release, in nanoseconds.
+     *                  0 to only park, periodNanos or more to only spin.
+     */
+    public FixedRateScheduler(long periodNanos, long spinNanos) {
+        if (periodNanos <= 0)
+            throw new IllegalArgumentException("The period must be positive.");
+        if (spinNanos < 0)
+            throw new IllegalArgumentException("The spin time can't be negative.");
+        this.periodNanos = periodNanos;
+        this.spinNanos = spinNanos;
+        start();
+    }
+
+    /**
+     * Restarts the schedule: the first release is one period from now, and the statistics are cleared.
+     */
+    public void start() {
+        startTime = System.nanoTime();
+        lastRelease = startTime;
+        lastTickTime = startTime;
+        nextRelease = startTime + periodNanos;
+        ticks = 0;
+        overruns = 0;
+        missedPeriods = 0;
+        jitterHistogram.reset();
+    }
+
+    /**
+     * Waits for the next release time.
+     * <p>If the release time has already passed (the previous iteration overran), returns immediately
+     * and the schedule continues from the next release time in the future.</p>
+     * @return true if the release time was reached on time, false after an overrun.
+     */
+    public boolean awaitNextPeriod() {
+        long now = System.nanoTime();
+        boolean onTime = now - nextRelease <= 0;
+        if (onTime) {
+            long parkTime = nextRelease - now - spinNanos;
+            if (parkTime > 0)
+                LockSupport.parkNanos(parkTime);
+            while ((now = System.nanoTime()) - nextRelease < 0)
+                Thread.onSpinWait();
+        } else {
+            long missed = (now - nextRelease) / periodNanos;
+            overruns++;
+            missedPeriods += missed;
+            nextRelease += missed * periodNanos;
+        }
+
+        jitterHistogram.record(Math.abs(now - lastRelease - periodNanos));
+        lastRelease = now;
+        lastTickTime = now;
+        nextRelease += periodNanos;
+        ticks++;
+        return onTime;
+    }
+
+    /**
+     * @return the period, in nanoseconds.
+     */
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return the number of releases since the start.
+     */
+    public long getTickCount() {
+        return ticks;
+    }
+
+    /**
+     * @return the number of iterations which took longer than a period.
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+
+    /**
+     * @return the number of release times skipped because of overruns.
+     */
+    public long getMissedPeriodCount() {
+        return missedPeriods;
+    }
+
+    /**
+     * @return the distribution of |achieved period - configured period|, in nanoseconds.
+     */
+    public LatencyHistogram getJitterHistogram() {
+        return jitterHistogram;
+    }
+
+    /**
+     * @return the average rate achieved since the start, in Hz.
+     */
+    public double getAchievedRate() {
+        long elapsed = lastTickTime - startTime;
+        return elapsed <= 0 ? 0. : ticks * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns a compact summary of the statistics, in the
+     * "rate=xHz overruns=n missed=n jitter p50=xus p99=xus p99.9=xus max=xus" format.
+     * @return the summary of the statistics.
+     */
+    public String summary() {
+        return String.format("rate=%.1fHz overruns=%d missed=%d jitter %s",
+                getAchievedRate(), getOverrunCount(), getMissedPeriodCount(), jitterHistogram.summary());
+    }
+}
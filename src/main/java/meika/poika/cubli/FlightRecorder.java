@@ -0,0 +1,338 @@
+package meika.poika.cubli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.LockSupport;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Records every processed sample of an MPU6050 in memory-mapped binary files.</b>
+ *
+ * <p>The recorder runs on its own thread and reads the samples through a cursor on the history of the
+ * MPU6050 ({@link MPU6050#getHistory()}): the updating thread never waits for it. If the recorder falls
+ * more than a history behind (slow storage), the overwritten samples are lost, counted, and the next
+ * record is flagged with {@link #FLAG_SAMPLES_LOST}.</p>
+ *
+ * <p>The recording is split in segments of a fixed number of records. Each segment is a file, preallocated
+ * and mapped in memory, so writing a record is a few stores into the page cache, without system call.
+ * When a segment is full, it is flushed and the next one is created.</p>
+ *
+ * <p><b>File layout</b> (little endian): a HEADER_SIZE byte header, then RECORD_SIZE byte records.
+ * <pre>
+ * header   0  long    MAGIC
+ *          8  int     VERSION (2; version 1 has no range bits in the flags)
+ *         12  int     HEADER_SIZE
+ *         16  int     RECORD_SIZE
+ *         20  int     segment index, from 0
+ *         24  long    number of valid records, updated while recording
+ *         32  long    creation time of the segment, in ms since the epoch
+ *         40  double  accelerometer LSB sensitivity when the segment was created (raw value per g)
+ *         48  double  gyroscope LSB sensitivity when the segment was created (raw value per °/sec)
+ *         56  double  gyroscope offsets for the x, y and z axis, in °/sec (3 doubles)
+ *         80  long    nominal sample period, in ns
+ * record   0  long    timestamp, in ns ({@link System#nanoTime()} time base)
+ *          8  long    sequence number of the sample
+ *         16  short   raw words (MPU6050.RAW_ACCEL_X..RAW_GYRO_Z, 7 shorts)
+ *         30  short   flags (FLAG_*), and the ranges of the raw words (FS_SEL and AFS_SEL, see FLAGS_*_RANGE_SHIFT)
+ *         32  float   filtered angles for the x, y and z axis, in ° (3 floats)
+ *         44  int     reserved
+ * </pre></p>
+ */
+public class FlightRecorder implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FlightRecorder.class);
+
+    /**
+     * "CUBLIFR1" in ASCII, read as a little endian long.
+     */
+    public static final long MAGIC = 0x3152464C49425543L;
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 128;
+    public static final int RECORD_SIZE = 48;
+
+    /*
+     * Offsets in the header.
+     */
+    public static final int HEADER_SEGMENT_INDEX = 20;
+    public static final int HEADER_RECORD_COUNT = 24;
+    public static final int HEADER_CREATION_TIME = 32;
+    public static final int HEADER_ACCEL_SENSITIVITY = 40;
+    public static final int HEADER_GYRO_SENSITIVITY = 48;
+    public static final int HEADER_GYRO_OFFSETS = 56;
+    public static final int HEADER_SAMPLE_PERIOD = 80;
+
+    /*
+     * Offsets in a record.
+     */
+    public static final int RECORD_TIMESTAMP = 0;
+    public static final int RECORD_SEQUENCE = 8;
+    public static final int RECORD_RAW_VALUES = 16;
+    public static final int RECORD_FLAGS = 30;
+    public static final int RECORD_FILTERED_ANGLES = 32;
+
+    /**
+     * Record flag: samples were lost between the previous record and this one.
+     */
+    public static final int FLAG_SAMPLES_LOST = 0x0001;
+
+    /**
+     * Position of the FS_SEL of the record in its flags (2 bits).
+     */
+    public static final int FLAGS_GYRO_RANGE_SHIFT = 8;
+
+    /**
+     * Position of the AFS_SEL of the record in its flags (2 bits).
+     */
+    public static final int FLAGS_ACCEL_RANGE_SHIFT = 10;
+
+    /**
+     * Default number of records per segment: 12 MB, about 4 minutes at 1 kHz.
+     */
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 18;
+
+    /**
+     * Extension of the segment files.
+     */
+    public static final String SEGMENT_EXTENSION = ".rec";
+
+    /**
+     * Time the recorder sleeps when no sample is waiting, in ns. Far below the time the
+     * history takes to wrap around at 1 kHz.
+     */
+    private static final long POLL_INTERVAL_NANOS = 10_000_000;
+
+    private final MPU6050 mpu6050;
+    private final Path directory;
+    private final int recordsPerSegment;
+
+    /**
+     * Prefix of the segment files: the start time of the recording.
+     */
+    private final String recordingName;
+
+    private final SensorFrame frame = new SensorFrame();
+    private SampleRingBuffer.Cursor cursor;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private MappedByteBuffer segment;
+    private volatile Path segmentPath;
+    private int segmentIndex = -1;
+    private int segmentRecords = 0;
+
+    private volatile long recordedCount = 0;
+    private volatile long lostCount = 0;
+
+    /**
+     * Constructor for a recorder with the DEFAULT_RECORDS_PER_SEGMENT segment size.
+     * @param mpu6050 the MPU6050 whose samples are recorded.
+     * @param directory the directory of the segment files. It is created if needed.
+     */
+    public FlightRecorder(MPU6050 mpu6050, Path directory) {
+        this(mpu6050, directory, DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    /**
+     * Constructor for a new recorder.
+     * @param mpu6050 the MPU6050 whose samples are recorded.
+     * @param directory the directory of the segment files. It is created if needed.
+     * @param recordsPerSegment the number of records in each segment file.
+     */
+    public FlightRecorder(MPU6050 mpu6050, Path directory, int recordsPerSegment) {
+        if (recordsPerSegment <= 0)
+            throw new IllegalArgumentException("The number of records per segment must be positive.");
+        this.mpu6050 = mpu6050;
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.recordingName = "flight-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    }
+
+    /**
+     * Starts recording, from the next sample processed by the MPU6050.
+     * The first segment is created before this method returns, so storage errors are reported here.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create the flight recorder directory " + directory + ".", e);
+        }
+        openNextSegment();
+        cursor = mpu6050.getHistory().newCursor();
+        running = true;
+        thread = new Thread(this::record, "flight-recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops recording: the samples already processed are written, then the last segment is flushed.
+     * <p>If the current thread is interrupted while waiting for the recorder, close returns at once, with
+     * the interrupt status set.</p>
+     */
+    @Override
+    public synchronized void close() {
+        if (!running)
+            return;
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * @return the number of samples written so far.
+     */
+    public long getRecordedCount() {
+        return recordedCount;
+    }
+
+    /**
+     * @return the number of samples overwritten in the history before the recorder could write them.
+     */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    /**
+     * @return the file of the segment being written.
+     */
+    public Path getSegmentPath() {
+        return segmentPath;
+    }
+
+    /**
+     * Loop of the recorder thread.
+     */
+    private void record() {
+        try {
+            while (running) {
+                if (drain() == 0)
+                    LockSupport.parkNanos(POLL_INTERVAL_NANOS);
+            }
+            drain();
+        } catch (RuntimeException e) {
+            LOG.error("Flight recording stopped", e);
+            running = false;
+        } finally {
+            if (segment != null)
+                segment.force();
+        }
+    }
+
+    /**
+     * Writes all the samples waiting in the history.
+     * @return the number of written samples.
+     */
+    private int drain() {
+        int written = 0;
+        long lost = cursor.getLostCount();
+        while (cursor.poll(frame)) {
+            int flags = rangeFlags(frame);
+            if (cursor.getLostCount() != lost) {
+                lost = cursor.getLostCount();
+                lostCount = lost;
+                flags |= FLAG_SAMPLES_LOST;
+            }
+            if (segmentRecords == recordsPerSegment)
+                openNextSegment();
+            writeRecord(segment, HEADER_SIZE + segmentRecords * RECORD_SIZE, frame, flags);
+            segmentRecords++;
+            written++;
+        }
+        if (written > 0) {
+            segment.putLong(HEADER_RECORD_COUNT, segmentRecords);
+            recordedCount += written;
+        }
+        return written;
+    }
+
+    /**
+     * @param frame a processed sample.
+     * @return the flags holding the ranges of the raw words of the sample.
+     */
+    static int rangeFlags(SensorFrame frame) {
+        return frame.gyroRange.getFsSel() << FLAGS_GYRO_RANGE_SHIFT
+                | frame.accelRange.getAfsSel() << FLAGS_ACCEL_RANGE_SHIFT;
+    }
+
+    /**
+     * Encodes a sample in the record layout, also used by the telemetry frames.
+     * @param buffer the destination, in little endian order.
+     * @param position the index in buffer of the first byte of the record.
+     * @param frame the sample.
+     * @param flags the flags of the record.
+     */
+    static void writeRecord(ByteBuffer buffer, int position, SensorFrame frame, int flags) {
+        buffer.putLong(position + RECORD_TIMESTAMP, frame.timestampNanos);
+        buffer.putLong(position + RECORD_SEQUENCE, frame.sequence);
+        for (int w = 0; w < MPU6050.SENSOR_BLOCK_WORDS; w++)
+            buffer.putShort(position + RECORD_RAW_VALUES + 2 * w, (short) frame.rawValues[w]);
+        buffer.putShort(position + RECORD_FLAGS, (short) flags);
+        buffer.putFloat(position + RECORD_FILTERED_ANGLES, (float) frame.filteredAngles[X]);
+        buffer.putFloat(position + RECORD_FILTERED_ANGLES + 4, (float) frame.filteredAngles[Y]);
+        buffer.putFloat(position + RECORD_FILTERED_ANGLES + 8, (float) frame.filteredAngles[Z]);
+    }
+
+    /**
+     * Flushes the current segment, if any, then creates and maps the next one and writes its header.
+     */
+    private void openNextSegment() {
+        if (segment != null) {
+            segment.putLong(HEADER_RECORD_COUNT, segmentRecords);
+            segment.force();
+        }
+        int index = segmentIndex + 1;
+        Path path = directory.resolve(String.format("%s-%04d%s", recordingName, index, SEGMENT_EXTENSION));
+        long size = HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE;
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create the flight recording segment " + path + ".", e);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        double[] gyroOffsets = mpu6050.getGyroAngularSpeedsOffsets();
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, VERSION);
+        buffer.putInt(12, HEADER_SIZE);
+        buffer.putInt(16, RECORD_SIZE);
+        buffer.putInt(HEADER_SEGMENT_INDEX, index);
+        buffer.putLong(HEADER_RECORD_COUNT, 0);
+        buffer.putLong(HEADER_CREATION_TIME, System.currentTimeMillis());
+        buffer.putDouble(HEADER_ACCEL_SENSITIVITY, mpu6050.getAccelLSBSensitivity());
+        buffer.putDouble(HEADER_GYRO_SENSITIVITY, mpu6050.getGyroLSBSensitivity());
+        buffer.putDouble(HEADER_GYRO_OFFSETS, gyroOffsets[X]);
+        buffer.putDouble(HEADER_GYRO_OFFSETS + 8, gyroOffsets[Y]);
+        buffer.putDouble(HEADER_GYRO_OFFSETS + 16, gyroOffsets[Z]);
+        buffer.putLong(HEADER_SAMPLE_PERIOD, mpu6050.getSamplePeriodNanos());
+
+        segment = buffer;
+        segmentPath = path;
+        segmentIndex = index;
+        segmentRecords = 0;
+    }
+}
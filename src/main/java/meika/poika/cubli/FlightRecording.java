@@ -0,0 +1,196 @@
+package meika.poika.cubli;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static meika.poika.cubli.FlightRecorder.*;
+
+/**
+ * <b>Read access to one segment file written by a {@link FlightRecorder}.</b>
+ *
+ * <p>The segment is mapped in memory, read only: the records are decoded on access, without copy.
+ * Only the valid records, as counted in the header, are exposed.</p>
+ */
+public class FlightRecording {
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int recordCount;
+    private final int version;
+
+    /**
+     * Opens a segment file.
+     * @param path the segment file.
+     * @throws IOException if the file can't be read.
+     * @throws IllegalArgumentException if the file is not a flight recording segment.
+     */
+    public FlightRecording(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE)
+                throw new IllegalArgumentException(path + " is not a flight recording segment.");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getLong(0) != MAGIC)
+            throw new IllegalArgumentException(path + " is not a flight recording segment.");
+        version = buffer.getInt(8);
+        if (version < 1 || version > VERSION || buffer.getInt(12) != HEADER_SIZE || buffer.getInt(16) != RECORD_SIZE)
+            throw new IllegalArgumentException("Unsupported flight recording version in " + path + ".");
+        long count = buffer.getLong(HEADER_RECORD_COUNT);
+        long capacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+        this.recordCount = (int) Math.min(count, capacity);
+    }
+
+    /**
+     * Lists the segment files of a directory, in recording order.
+     * <p>The directory can hold several recordings, one after the other: each one starts with its
+     * segment of index 0.</p>
+     * @param directory the directory of the segments.
+     * @return the segment files, sorted by name (recording start time, then segment index).
+     * @throws IOException if the directory can't be listed.
+     */
+    public static List<Path> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the segment file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the index of the segment in its recording, from 0.
+     */
+    public int getSegmentIndex() {
+        return buffer.getInt(HEADER_SEGMENT_INDEX);
+    }
+
+    /**
+     * @return the number of valid records.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the creation time of the segment, in ms since the epoch.
+     */
+    public long getCreationTimeMillis() {
+        return buffer.getLong(HEADER_CREATION_TIME);
+    }
+
+    /**
+     * @return the LSB sensitivity of the accelerometer when the segment was created (raw value per g).
+     */
+    public double getAccelLSBSensitivity() {
+        return buffer.getDouble(HEADER_ACCEL_SENSITIVITY);
+    }
+
+    /**
+     * @return the LSB sensitivity of the gyroscope when the segment was created (raw value per °/sec).
+     */
+    public double getGyroLSBSensitivity() {
+        return buffer.getDouble(HEADER_GYRO_SENSITIVITY);
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the gyroscope offset for the axis when the segment was created, in °/sec.
+     */
+    public double getGyroOffset(int axis) {
+        return buffer.getDouble(HEADER_GYRO_OFFSETS + 8 * axis);
+    }
+
+    /**
+     * @return the nominal sample period when the segment was created, in ns.
+     */
+    public long getSamplePeriodNanos() {
+        return buffer.getLong(HEADER_SAMPLE_PERIOD);
+    }
+
+    /**
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @return the timestamp of the sample, in ns.
+     */
+    public long getTimestampNanos(int record) {
+        return buffer.getLong(position(record) + RECORD_TIMESTAMP);
+    }
+
+    /**
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @return the sequence number of the sample.
+     */
+    public long getSequence(int record) {
+        return buffer.getLong(position(record) + RECORD_SEQUENCE);
+    }
+
+    /**
+     * Copies the raw words of a sample.
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @param values the destination of the raw words (MPU6050.RAW_ACCEL_X..RAW_GYRO_Z).
+     * @param offset the index in values of the RAW_ACCEL_X word.
+     */
+    public void getRawValues(int record, int[] values, int offset) {
+        int position = position(record) + RECORD_RAW_VALUES;
+        for (int w = 0; w < MPU6050.SENSOR_BLOCK_WORDS; w++)
+            values[offset + w] = buffer.getShort(position + 2 * w);
+    }
+
+    /**
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @return the flags of the record (FlightRecorder.FLAG_*), with the ranges of its raw words.
+     */
+    public int getFlags(int record) {
+        return buffer.getShort(position(record) + RECORD_FLAGS) & 0xFFFF;
+    }
+
+    /**
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @return the full scale range of the gyroscope of the raw words of the record.
+     */
+    public GyroRange getGyroRange(int record) {
+        if (version < 2)
+            return GyroRange.fromLSBSensitivity(getGyroLSBSensitivity());
+        return GyroRange.fromFsSel(getFlags(record) >> FLAGS_GYRO_RANGE_SHIFT & 0x03);
+    }
+
+    /**
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @return the full scale range of the accelerometer of the raw words of the record.
+     */
+    public AccelRange getAccelRange(int record) {
+        if (version < 2)
+            return AccelRange.fromLSBSensitivity(getAccelLSBSensitivity());
+        return AccelRange.fromAfsSel(getFlags(record) >> FLAGS_ACCEL_RANGE_SHIFT & 0x03);
+    }
+
+    /**
+     * @param record the index of the record, in the 0..getRecordCount()-1 interval.
+     * @param axis X, Y or Z.
+     * @return the filtered angle recorded for the axis, in °.
+     */
+    public double getFilteredAngle(int record, int axis) {
+        return buffer.getFloat(position(record) + RECORD_FILTERED_ANGLES + 4 * axis);
+    }
+
+    private int position(int record) {
+        if (record < 0 || record >= recordCount)
+            throw new IndexOutOfBoundsException("Record " + record + " out of " + recordCount + ".");
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+}
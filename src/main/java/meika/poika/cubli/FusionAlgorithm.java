@@ -0,0 +1,41 @@
+package meika.poika.cubli;
+
+import java.util.function.Supplier;
+
+/**
+ * <b>The available sensor fusion algorithms.</b>
+ *
+ * <p>Used to select a filter at runtime, for instance from a program argument:
+ * <pre>mpu6050.setFusionFilter(FusionAlgorithm.valueOf("MADGWICK").create());</pre></p>
+ */
+public enum FusionAlgorithm {
+    /**
+     * @see ComplementaryFilter
+     */
+    COMPLEMENTARY(ComplementaryFilter::new),
+    /**
+     * @see MadgwickFilter
+     */
+    MADGWICK(MadgwickFilter::new),
+    /**
+     * @see MahonyFilter
+     */
+    MAHONY(MahonyFilter::new),
+    /**
+     * @see KalmanFilter
+     */
+    KALMAN(KalmanFilter::new);
+
+    private final Supplier<FusionFilter> factory;
+
+    FusionAlgorithm(Supplier<FusionFilter> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return a new filter with the default parameters of the algorithm.
+     */
+    public FusionFilter create() {
+        return factory.get();
+    }
+}
@@ -0,0 +1,41 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Sensor fusion algorithm estimating the orientation from the accelerometer and gyroscope values.</b>
+ *
+ * <p>A filter is fed with each processed sample by the updating thread of the MPU6050, and reports
+ * the filtered angles, in °, for the x, y and z axis:
+ * <ul>
+ *     <li>x and y are the tilt angles, with the same convention as the accelerometer angles
+ *     of the frames (0..360 interval),</li>
+ *     <li>z is the heading, which can only be integrated from the gyroscope.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>Implementations must not allocate in {@link #update(SensorFrame, double)} nor in
+ * {@link #getAngles(double[])}, since they run for every sample. They are only used by one thread.</p>
+ *
+ * @see FusionAlgorithm
+ * @see MPU6050#setFusionFilter(FusionFilter)
+ */
+public interface FusionFilter {
+
+    /**
+     * Updates the orientation estimate with a new sample.
+     * @param sample the sample: accelerations (g), accelerometer angles (°) and gyroscope angular speeds
+     *               (°/sec, offsets removed) are used.
+     * @param dt the time elapsed since the previous sample, in seconds.
+     */
+    void update(SensorFrame sample, double dt);
+
+    /**
+     * Get the current filtered angles.
+     * @param angles the destination of the angles, in °, for the x, y and z axis.
+     */
+    void getAngles(double[] angles);
+
+    /**
+     * Forgets the current estimate. The filter restarts from scratch with the next sample.
+     */
+    void reset();
+}
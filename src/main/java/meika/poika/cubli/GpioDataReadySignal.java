@@ -0,0 +1,75 @@
+package meika.poika.cubli;
+
+import com.pi4j.context.Context;
+import com.pi4j.io.gpio.digital.DigitalInput;
+import com.pi4j.io.gpio.digital.DigitalInputConfig;
+import com.pi4j.io.gpio.digital.DigitalInputProvider;
+import com.pi4j.io.gpio.digital.DigitalState;
+import com.pi4j.io.gpio.digital.PullResistance;
+import com.pi4j.plugin.gpiod.provider.gpio.digital.GpioDDigitalInputProvider;
+
+/**
+ * <b>Data ready signal driven by the INT pin of the MPU6050, wired to a GPIO of the Raspberry Pi.</b>
+ *
+ * <p>The GPIO is read through the gpiod provider, which reports edges from the kernel
+ * instead of polling the pin. Each rising edge of the INT pin wakes the waiting thread up.</p>
+ *
+ * <p>The MPU6050 must be configured to drive INT active high, in push-pull mode
+ * (see MPU6050#setAcquisitionMode).</p>
+ */
+public class GpioDataReadySignal implements DataReadySignal {
+
+    /**
+     * The Pi4J context owning the GPIO.
+     */
+    private final Context context;
+
+    /**
+     * The GPIO connected to the INT pin.
+     */
+    private final DigitalInput input;
+
+    /**
+     * The signal triggered on each rising edge.
+     */
+    private final SoftwareDataReadySignal signal = new SoftwareDataReadySignal();
+
+    /**
+     * Constructor for a new data ready signal on a specific GPIO, using the application Pi4J context.
+     * @param bcmPin the BCM number of the GPIO connected to the INT pin.
+     */
+    public GpioDataReadySignal(int bcmPin) {
+        this(CubliApp.getPi4jContext(), bcmPin);
+    }
+
+    /**
+     * Constructor for a new data ready signal on a specific GPIO.
+     * @param context the Pi4J context, which must include the gpiod digital input provider.
+     * @param bcmPin the BCM number of the GPIO connected to the INT pin.
+     */
+    public GpioDataReadySignal(Context context, int bcmPin) {
+        this.context = context;
+        DigitalInputProvider provider = context.provider(GpioDDigitalInputProvider.ID);
+        DigitalInputConfig config = DigitalInput.newConfigBuilder(context)
+                .id("MPU6050-INT-" + bcmPin)
+                .address(bcmPin)
+                .pull(PullResistance.PULL_DOWN)
+                .debounce(0L)
+                .build();
+        input = provider.create(config);
+        input.addListener(event -> {
+            if (event.state() == DigitalState.HIGH)
+                signal.trigger();
+        });
+    }
+
+    @Override
+    public boolean awaitDataReady(long timeoutNanos) throws InterruptedException {
+        return signal.awaitDataReady(timeoutNanos);
+    }
+
+    @Override
+    public void close() {
+        context.shutdown(input.id());
+    }
+}
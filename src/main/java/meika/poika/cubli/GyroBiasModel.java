@@ -0,0 +1,257 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Tracks the gyroscope offsets while the sensor runs, as a function of the temperature.</b>
+ *
+ * <p>The zero-rate output of the MPU6050 drifts with the temperature (±20 °/sec over -40..85 °C
+ * [datasheet 1 - p.12]): as the board warms up, offsets measured at startup leave an error which
+ * the gyroscope angles, the z axis above all, integrate without bound. The model keeps, for each axis,
+ * a line bias = intercept + slope × (temperature - reference temperature), and evaluates it at the
+ * temperature of each sample.</p>
+ *
+ * <p>The samples are grouped in windows of a fixed number of samples. At the end of a window, if the sensor
+ * was stationary (low angular speed deviation, close to the current bias, and a steady accelerometer), the
+ * mean angular speeds are an observation of the bias at the mean temperature of the window. The line is then
+ * fitted by weighted least squares on the observations, older observations fading with a forgetting factor.
+ * The slope is only fitted once the observations span a few tenths of a degree: until then, the intercept
+ * follows the observations and the slope is kept.</p>
+ *
+ * <p>Each sample costs a constant time: the least squares only need running sums, and nothing is allocated.
+ * The model is only accessed by the processing thread, except for the approximate {@link #getBias(int)}
+ * reads.</p>
+ */
+public class GyroBiasModel {
+
+    /**
+     * Default number of samples per window: half a second at 1 kHz.
+     */
+    public static final int DEFAULT_WINDOW_SAMPLES = 500;
+
+    /**
+     * Largest standard deviation of the angular speeds in a stationary window, in °/sec.
+     */
+    public static final double STATIONARY_MAX_DEVIATION = 0.25;
+
+    /**
+     * Largest difference between the mean angular speeds of a stationary window and the current bias, in °/sec.
+     * A slow steady rotation would otherwise be learnt as a bias.
+     */
+    public static final double STATIONARY_MAX_BIAS_STEP = 0.5;
+
+    /**
+     * Largest change of the mean acceleration between the two halves of a stationary window, in g (about 0.2°).
+     */
+    public static final double STATIONARY_MAX_ACCEL_CHANGE = 0.003;
+
+    /**
+     * Weight of the previous observations kept at each new one: they fade over about 200 stationary windows.
+     */
+    public static final double FORGETTING_FACTOR = 0.995;
+
+    /**
+     * Temperature standard deviation of the observations, in °C, from which the slope is fitted.
+     */
+    public static final double MIN_TEMPERATURE_SPREAD = 0.3;
+
+    /**
+     * Weight of the seeded offsets, in observations.
+     */
+    private static final double SEED_WEIGHT = 4.;
+
+    /**
+     * Smoothing of the temperature, whose resolution (1/340 °C) is below its noise.
+     */
+    private static final double TEMPERATURE_SMOOTHING = 0.01;
+
+    private final int windowSamples;
+
+    private final double[] intercepts = new double[3];
+    private final double[] slopes = new double[3];
+    private final double[] biases = new double[3];
+    private double referenceTemperature = Double.NaN;
+    private double temperature = Double.NaN;
+
+    /*
+     * Weighted sums of the observations, with temperatures relative to the reference temperature.
+     */
+    private double sumWeights;
+    private double sumTemperatures;
+    private double sumSquaredTemperatures;
+    private final double[] sumBiases = new double[3];
+    private final double[] sumTemperatureBiases = new double[3];
+
+    /*
+     * Sums of the current window.
+     */
+    private int windowCount;
+    private final double[] windowSums = new double[3];
+    private final double[] windowSquaredSums = new double[3];
+    private double windowTemperatureSum;
+    private final double[] windowFirstHalfAccelerations = new double[3];
+    private final double[] windowSecondHalfAccelerations = new double[3];
+
+    private long observationCount;
+
+    /**
+     * Constructor for a model with DEFAULT_WINDOW_SAMPLES samples per window.
+     */
+    public GyroBiasModel() {
+        this(DEFAULT_WINDOW_SAMPLES);
+    }
+
+    /**
+     * Constructor for a new model, with null offsets.
+     * @param windowSamples the number of samples per window.
+     */
+    public GyroBiasModel(int windowSamples) {
+        if (windowSamples < 2)
+            throw new IllegalArgumentException("A window must have at least 2 samples.");
+        this.windowSamples = windowSamples;
+        seed(0., 0., 0., Double.NaN);
+    }
+
+    /**
+     * Restarts the model from calibrated offsets: the observations are discarded, the slopes are kept.
+     * @param x the offset of the angular speed around the x axis, in °/sec.
+     * @param y the offset of the angular speed around the y axis, in °/sec.
+     * @param z the offset of the angular speed around the z axis, in °/sec.
+     * @param calibrationTemperature the temperature of the calibration, in °C,
+     *                               NaN to use the temperature of the next sample.
+     */
+    public void seed(double x, double y, double z, double calibrationTemperature) {
+        intercepts[X] = x;
+        intercepts[Y] = y;
+        intercepts[Z] = z;
+        referenceTemperature = calibrationTemperature;
+        temperature = calibrationTemperature;
+        sumWeights = SEED_WEIGHT;
+        sumTemperatures = 0.;
+        sumSquaredTemperatures = 0.;
+        for (int axis = X; axis <= Z; axis++) {
+            sumBiases[axis] = SEED_WEIGHT * intercepts[axis];
+            sumTemperatureBiases[axis] = 0.;
+            biases[axis] = intercepts[axis];
+        }
+        windowCount = 0;
+        observationCount = 0;
+    }
+
+    /**
+     * Updates the model with one sample, then the biases at its temperature.
+     * @param x the angular speed around the x axis, in °/sec, without offset correction.
+     * @param y the angular speed around the y axis, in °/sec, without offset correction.
+     * @param z the angular speed around the z axis, in °/sec, without offset correction.
+     * @param sampleTemperature the temperature of the chip, in °C.
+     * @param accelerations the accelerations of the sample, in g.
+     */
+    public void update(double x, double y, double z, double sampleTemperature, double[] accelerations) {
+        if (Double.isNaN(referenceTemperature))
+            referenceTemperature = sampleTemperature;
+        if (Double.isNaN(temperature))
+            temperature = sampleTemperature;
+        else
+            temperature += TEMPERATURE_SMOOTHING * (sampleTemperature - temperature);
+
+        if (windowCount == 0) {
+            windowTemperatureSum = 0.;
+            for (int axis = X; axis <= Z; axis++) {
+                windowSums[axis] = 0.;
+                windowSquaredSums[axis] = 0.;
+                windowFirstHalfAccelerations[axis] = 0.;
+                windowSecondHalfAccelerations[axis] = 0.;
+            }
+        }
+        // relative to the current bias, so the sums of squares don't lose precision
+        accumulate(X, x - biases[X]);
+        accumulate(Y, y - biases[Y]);
+        accumulate(Z, z - biases[Z]);
+        windowTemperatureSum += sampleTemperature;
+        // the noise of single samples hides slow tilts: the means of the two halves are compared
+        double[] halfAccelerations = windowCount < windowSamples / 2 ? windowFirstHalfAccelerations : windowSecondHalfAccelerations;
+        for (int axis = X; axis <= Z; axis++)
+            halfAccelerations[axis] += accelerations[axis];
+        if (++windowCount == windowSamples) {
+            closeWindow();
+            windowCount = 0;
+        }
+
+        double deltaTemperature = temperature - referenceTemperature;
+        for (int axis = X; axis <= Z; axis++)
+            biases[axis] = intercepts[axis] + slopes[axis] * deltaTemperature;
+    }
+
+    private void accumulate(int axis, double value) {
+        windowSums[axis] += value;
+        windowSquaredSums[axis] += value * value;
+    }
+
+    /**
+     * Adds the window as an observation if the sensor was stationary, and fits the lines again.
+     */
+    private void closeWindow() {
+        int firstHalf = windowSamples / 2;
+        int secondHalf = windowSamples - firstHalf;
+        for (int axis = X; axis <= Z; axis++) {
+            double accelChange = windowSecondHalfAccelerations[axis] / secondHalf - windowFirstHalfAccelerations[axis] / firstHalf;
+            if (Math.abs(accelChange) > STATIONARY_MAX_ACCEL_CHANGE)
+                return;
+            double mean = windowSums[axis] / windowSamples;
+            double variance = (windowSquaredSums[axis] - mean * windowSums[axis]) / (windowSamples - 1);
+            if (variance > STATIONARY_MAX_DEVIATION * STATIONARY_MAX_DEVIATION || Math.abs(mean) > STATIONARY_MAX_BIAS_STEP)
+                return;
+        }
+
+        double deltaTemperature = windowTemperatureSum / windowSamples - referenceTemperature;
+        sumWeights = FORGETTING_FACTOR * sumWeights + 1.;
+        sumTemperatures = FORGETTING_FACTOR * sumTemperatures + deltaTemperature;
+        sumSquaredTemperatures = FORGETTING_FACTOR * sumSquaredTemperatures + deltaTemperature * deltaTemperature;
+        double meanTemperature = sumTemperatures / sumWeights;
+        double temperatureVariance = sumSquaredTemperatures / sumWeights - meanTemperature * meanTemperature;
+        boolean fitSlope = temperatureVariance > MIN_TEMPERATURE_SPREAD * MIN_TEMPERATURE_SPREAD;
+        for (int axis = X; axis <= Z; axis++) {
+            // the observed bias: the mean of the window, relative to the bias it was accumulated against
+            double bias = biases[axis] + windowSums[axis] / windowSamples;
+            sumBiases[axis] = FORGETTING_FACTOR * sumBiases[axis] + bias;
+            sumTemperatureBiases[axis] = FORGETTING_FACTOR * sumTemperatureBiases[axis] + deltaTemperature * bias;
+            double meanBias = sumBiases[axis] / sumWeights;
+            if (fitSlope)
+                slopes[axis] = (sumTemperatureBiases[axis] / sumWeights - meanTemperature * meanBias) / temperatureVariance;
+            intercepts[axis] = meanBias - slopes[axis] * meanTemperature;
+        }
+        observationCount++;
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the bias of the angular speed around the axis at the temperature of the last sample, in °/sec.
+     */
+    public double getBias(int axis) {
+        return biases[axis];
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the change of the bias around the axis per degree, in °/sec/°C.
+     */
+    public double getSlope(int axis) {
+        return slopes[axis];
+    }
+
+    /**
+     * @return the temperature at which the intercepts of the lines are expressed, in °C.
+     */
+    public double getReferenceTemperature() {
+        return referenceTemperature;
+    }
+
+    /**
+     * @return the number of stationary windows observed since the last seed.
+     */
+    public long getObservationCount() {
+        return observationCount;
+    }
+}
@@ -0,0 +1,99 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Result of a gyroscope calibration: the offsets of the angular speeds at rest.</b>
+ *
+ * <p>Calibrations are immutable, so they can be shared between the updating thread,
+ * the readers and the {@link CalibrationCache}.</p>
+ */
+public final class GyroCalibration {
+
+    /**
+     * No calibration: null offsets, measured from no sample.
+     */
+    public static final GyroCalibration NONE = new GyroCalibration(0., 0., 0., 0., Double.NaN, 0, 0L);
+
+    private final double offsetX;
+    private final double offsetY;
+    private final double offsetZ;
+    private final double noise;
+    private final double temperature;
+    private final int samples;
+    private final long timeMillis;
+
+    /**
+     * Constructor for a calibration.
+     * @param offsetX the offset of the angular speed around the x axis, in °/sec.
+     * @param offsetY the offset of the angular speed around the y axis, in °/sec.
+     * @param offsetZ the offset of the angular speed around the z axis, in °/sec.
+     * @param noise the largest standard deviation of the angular speeds during the calibration, in °/sec.
+     * @param temperature the temperature of the chip during the calibration, in °C.
+     * @param samples the number of samples averaged.
+     * @param timeMillis the time of the calibration, in ms since the epoch.
+     */
+    public GyroCalibration(double offsetX, double offsetY, double offsetZ, double noise,
+                           double temperature, int samples, long timeMillis) {
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.offsetZ = offsetZ;
+        this.noise = noise;
+        this.temperature = temperature;
+        this.samples = samples;
+        this.timeMillis = timeMillis;
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the offset of the angular speed around the axis, in °/sec.
+     */
+    public double getOffset(int axis) {
+        switch (axis) {
+            case X:
+                return offsetX;
+            case Y:
+                return offsetY;
+            case Z:
+                return offsetZ;
+            default:
+                throw new IllegalArgumentException("Unknown axis: " + axis);
+        }
+    }
+
+    /**
+     * @return the largest standard deviation of the angular speeds during the calibration, in °/sec.
+     */
+    public double getNoise() {
+        return noise;
+    }
+
+    /**
+     * @return the temperature of the chip during the calibration, in °C.
+     */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @return the number of samples averaged.
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the time of the calibration, in ms since the epoch.
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("offsets (%.4f, %.4f, %.4f) °/s, noise %.4f °/s, %.1f °C, %d samples",
+                offsetX, offsetY, offsetZ, noise, temperature, samples);
+    }
+}
@@ -0,0 +1,182 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Estimates the gyroscope offsets from angular speeds measured at rest.</b>
+ *
+ * <p>The mean and the variance of each axis are accumulated in a single pass (Welford's algorithm),
+ * without storing the samples. The calibration is complete as soon as the standard error of the
+ * three means is below the target precision, or when the maximum number of samples is reached:
+ * a quiet sensor is calibrated from a few hundred samples, a noisy one uses more.</p>
+ *
+ * <p>The digital low pass filter of the MPU6050 correlates consecutive samples: with a 5 Hz bandwidth at
+ * 1 kHz, about a hundred consecutive samples carry the information of a single one. The standard error is
+ * therefore computed from the number of independent samples, the count divided by the correlation length
+ * (see MPU6050#getGyroCorrelationLength()).</p>
+ *
+ * <p>A standard deviation above the stationary threshold means the sensor is moving: the offsets
+ * would be wrong, so {@link #isStationary()} tells the caller to discard them.</p>
+ */
+public class GyroCalibrator {
+
+    /**
+     * Default minimum number of samples, so the variance estimate is meaningful.
+     */
+    public static final int DEFAULT_MIN_SAMPLES = 100;
+
+    /**
+     * Default maximum number of samples: 2 seconds at 1 kHz.
+     */
+    public static final int DEFAULT_MAX_SAMPLES = 2000;
+
+    /**
+     * Minimum number of independent samples, so the variance estimate also covers the slow
+     * variations left by the low pass filter.
+     */
+    public static final int MIN_INDEPENDENT_SAMPLES = 5;
+
+    /**
+     * Default target standard error of the offsets, in °/sec.
+     */
+    public static final double DEFAULT_PRECISION = 0.005;
+
+    /**
+     * Standard deviation, in °/sec, above which the sensor is considered moving.
+     * Far above the noise of the MPU6050 (0.05 °/sec RMS), far below a hand-held motion.
+     */
+    public static final double STATIONARY_MAX_DEVIATION = 0.5;
+
+    private final int minSamples;
+    private final int maxSamples;
+    private final double precision;
+    private final int correlationLength;
+
+    private int count;
+    private final double[] mean = new double[3];
+    private final double[] m2 = new double[3];
+    private double temperatureSum;
+
+    /**
+     * Constructor for a calibrator with the default limits. The minimum number of samples covers
+     * at least MIN_INDEPENDENT_SAMPLES independent samples, within the default limits.
+     * @param correlationLength the number of consecutive samples carrying the information of an independent one.
+     */
+    public GyroCalibrator(int correlationLength) {
+        this(Math.max(DEFAULT_MIN_SAMPLES, Math.min(DEFAULT_MAX_SAMPLES, MIN_INDEPENDENT_SAMPLES * correlationLength)),
+                DEFAULT_MAX_SAMPLES, DEFAULT_PRECISION, correlationLength);
+    }
+
+    /**
+     * Constructor for a new calibrator.
+     * @param minSamples the minimum number of samples.
+     * @param maxSamples the maximum number of samples.
+     * @param precision the target standard error of the offsets, in °/sec.
+     * @param correlationLength the number of consecutive samples carrying the information of an independent one.
+     */
+    public GyroCalibrator(int minSamples, int maxSamples, double precision, int correlationLength) {
+        if (minSamples < 2 || maxSamples < minSamples)
+            throw new IllegalArgumentException("The number of calibration samples must be at least 2 and min <= max.");
+        if (correlationLength < 1)
+            throw new IllegalArgumentException("The correlation length must be at least 1.");
+        this.minSamples = minSamples;
+        this.maxSamples = maxSamples;
+        this.precision = precision;
+        this.correlationLength = correlationLength;
+    }
+
+    /**
+     * Discards the accumulated samples.
+     */
+    public void reset() {
+        count = 0;
+        temperatureSum = 0.;
+        for (int axis = X; axis <= Z; axis++) {
+            mean[axis] = 0.;
+            m2[axis] = 0.;
+        }
+    }
+
+    /**
+     * Accumulates one sample.
+     * @param x the angular speed around the x axis, in °/sec, without offset correction.
+     * @param y the angular speed around the y axis, in °/sec, without offset correction.
+     * @param z the angular speed around the z axis, in °/sec, without offset correction.
+     * @param temperature the temperature of the chip, in °C.
+     */
+    public void add(double x, double y, double z, double temperature) {
+        count++;
+        accumulate(X, x);
+        accumulate(Y, y);
+        accumulate(Z, z);
+        temperatureSum += temperature;
+    }
+
+    private void accumulate(int axis, double value) {
+        double delta = value - mean[axis];
+        mean[axis] += delta / count;
+        m2[axis] += delta * (value - mean[axis]);
+    }
+
+    /**
+     * @return the number of accumulated samples.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the largest standard deviation of the three axes, in °/sec.
+     */
+    public double getDeviation() {
+        if (count < 2)
+            return Double.NaN;
+        return Math.sqrt(Math.max(m2[X], Math.max(m2[Y], m2[Z])) / (count - 1));
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the mean angular speed around the axis, in °/sec.
+     */
+    public double getMean(int axis) {
+        return mean[axis];
+    }
+
+    /**
+     * @return the standard error of the means, in °/sec: the largest deviation divided by the square root
+     * of the number of independent samples.
+     */
+    public double getStandardError() {
+        return getDeviation() * Math.sqrt((double) correlationLength / count);
+    }
+
+    /**
+     * @return true if enough samples are accumulated: the standard error of the means is below the target
+     * precision (after the minimum number of samples), or the maximum number of samples is reached.
+     * Also true after the minimum number of samples if the sensor is moving, as more samples won't help.
+     */
+    public boolean isComplete() {
+        if (count >= maxSamples)
+            return true;
+        if (count < minSamples)
+            return false;
+        return getStandardError() <= precision || !isStationary();
+    }
+
+    /**
+     * @return true if the sensor didn't move during the accumulation.
+     */
+    public boolean isStationary() {
+        return count >= 2 && getDeviation() <= STATIONARY_MAX_DEVIATION;
+    }
+
+    /**
+     * @return the calibration from the accumulated samples.
+     */
+    public GyroCalibration getCalibration() {
+        return new GyroCalibration(mean[X], mean[Y], mean[Z], getDeviation(),
+                count == 0 ? Double.NaN : temperatureSum / count, count, System.currentTimeMillis());
+    }
+}
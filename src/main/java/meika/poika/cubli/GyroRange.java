@@ -0,0 +1,105 @@
+package meika.poika.cubli;
+
+/**
+ * <b>The full scale ranges of the gyroscope, selected by FS_SEL [datasheet 2 - p.14].</b>
+ *
+ * <p>The wider the range, the lower the resolution: ±250 °/sec resolves 0.0076 °/sec, but a fast flip
+ * of the cube exceeds it and the output saturates. The LSB sensitivities are the ones of the datasheet
+ * [datasheet 1 - p.12].</p>
+ */
+public enum GyroRange {
+    /**
+     * ±250 °/sec, 131 LSB per °/sec.
+     */
+    DPS_250(0, 131., 250.),
+    /**
+     * ±500 °/sec, 65.5 LSB per °/sec.
+     */
+    DPS_500(1, 65.5, 500.),
+    /**
+     * ±1000 °/sec, 32.8 LSB per °/sec.
+     */
+    DPS_1000(2, 32.8, 1000.),
+    /**
+     * ±2000 °/sec, 16.4 LSB per °/sec.
+     */
+    DPS_2000(3, 16.4, 2000.);
+
+    /**
+     * The ranges, from the narrowest to the widest: values() copies the array at each call.
+     */
+    private static final GyroRange[] VALUES = values();
+
+    private final int fsSel;
+    private final double lsbSensitivity;
+    private final double fullScale;
+
+    GyroRange(int fsSel, double lsbSensitivity, double fullScale) {
+        this.fsSel = fsSel;
+        this.lsbSensitivity = lsbSensitivity;
+        this.fullScale = fullScale;
+    }
+
+    /**
+     * @return the FS_SEL value selecting the range.
+     */
+    public int getFsSel() {
+        return fsSel;
+    }
+
+    /**
+     * @return the value of the GYRO_CONFIG register selecting the range (FS_SEL in bits 4 and 3, no self-test).
+     */
+    public int getConfigValue() {
+        return fsSel << 3;
+    }
+
+    /**
+     * @return the LSB sensitivity, in raw value per °/sec.
+     */
+    public double getLSBSensitivity() {
+        return lsbSensitivity;
+    }
+
+    /**
+     * @return the largest measurable angular speed, in °/sec.
+     */
+    public double getFullScale() {
+        return fullScale;
+    }
+
+    /**
+     * @return the next wider range, null if this one is the widest.
+     */
+    public GyroRange wider() {
+        return ordinal() == VALUES.length - 1 ? null : VALUES[ordinal() + 1];
+    }
+
+    /**
+     * @return the next narrower range, null if this one is the narrowest.
+     */
+    public GyroRange narrower() {
+        return ordinal() == 0 ? null : VALUES[ordinal() - 1];
+    }
+
+    /**
+     * @param fsSel a FS_SEL value, in the 0..3 range.
+     * @return the range selected by the value.
+     */
+    public static GyroRange fromFsSel(int fsSel) {
+        if (fsSel < 0 || fsSel > 3)
+            throw new IllegalArgumentException("FS_SEL must be in the 0..3 range.");
+        return VALUES[fsSel];
+    }
+
+    /**
+     * @param lsbSensitivity a LSB sensitivity, in raw value per °/sec.
+     * @return the range with this sensitivity.
+     */
+    public static GyroRange fromLSBSensitivity(double lsbSensitivity) {
+        for (GyroRange range : VALUES)
+            if (range.lsbSensitivity == lsbSensitivity)
+                return range;
+        throw new IllegalArgumentException("No gyroscope range has a sensitivity of " + lsbSensitivity + " LSB per °/sec.");
+    }
+}
@@ -0,0 +1,23 @@
+package meika.poika.cubli;
+
+/**
+ * <b>An i2c bus, on which the i2c components open their device.</b>
+ *
+ * <p>The components only depend on this interface, so the same code runs on the i2c bus of the
+ * Raspberry Pi ({@link Pi4jI2CBus}) or on simulated devices ({@link SimulatedI2CBus}),
+ * for instance to run, profile or benchmark the MPU6050 pipeline without the hardware.</p>
+ */
+public interface I2CBus {
+
+    /**
+     * Opens the device at a specific address on this bus.
+     * @param i2cAddress the 7 bit i2c address of the device.
+     * @return the device, ready for transactions.
+     */
+    I2CDevice open(int i2cAddress);
+
+    /**
+     * @return a name identifying this bus on the machine, for instance to key data stored per device.
+     */
+    String getName();
+}
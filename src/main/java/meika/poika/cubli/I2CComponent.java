@@ -20,12 +20,18 @@ package meika.poika.cubli;
  * along with Raspoid.  If not, see <http://www.gnu.org/licenses/>.
  ******************************************************************************/
 
-import com.pi4j.io.i2c.*;
+import java.util.Arrays;
 
 /**
  * <b>This class is used as an abstraction for each i2c component of the framework.
  * This povides usefull utilities to connect to, read data from and write data to i2c devices.</b>
  *
+ * <p>The configuration registers are written through a shadow of their last written values
+ * (see updateRegister(int, int)): a write of an unchanged value costs no bus transaction, the writes
+ * grouped between beginRegisterBatch() and commitRegisterBatch() are combined into one transaction per
+ * run of adjacent registers, and the read back verifying the writes can be sampled or disabled
+ * (see setVerifyMode(VerifyMode)).</p>
+ *
  * @author Julien Louette &amp; Ga&euml;l Wittorski
  * @version 1.0
  */
@@ -47,36 +53,323 @@ public class I2CComponent {
      */
     public static final int MIN_I2C_ADDRESS = 0x03;
 
+    /**
+     * Number of addressable registers of a device.
+     */
+    public static final int REGISTER_COUNT = 256;
+
+    /**
+     * Default number of write transactions per verified transaction, in the SAMPLED verify mode.
+     */
+    public static final int DEFAULT_VERIFY_INTERVAL = 16;
+
+    /**
+     * Largest number of unchanged registers, with a known value, rewritten to join two runs of changed
+     * registers in a single transaction: one byte more costs less than the start of another transaction.
+     */
+    private static final int MAX_BATCH_GAP = 2;
+
+    /**
+     * The ways the writes of the configuration registers are checked.
+     */
+    public enum VerifyMode {
+        /**
+         * Each write transaction is followed by a read of the written registers.
+         */
+        ALWAYS,
+        /**
+         * One write transaction out of getVerifyInterval() is read back.
+         */
+        SAMPLED,
+        /**
+         * The writes are never read back.
+         */
+        OFF
+    }
+
     /**
      * The abstraction of the i2c device. It allows data to be read or written to the device.
      */
-    protected I2C device;
+    protected I2CDevice device;
+
+    /*
+     * Register shadow: the last value written in each register, -1 if unknown.
+     * Guarded by this, as are the fields below.
+     */
+    private final int[] shadowRegisters = new int[REGISTER_COUNT];
+    private final int[] pendingRegisters = new int[REGISTER_COUNT];
+    private final byte[] transferBuffer = new byte[REGISTER_COUNT];
+    private final byte[] verifyBuffer = new byte[REGISTER_COUNT];
+    private int batchDepth = 0;
+    private VerifyMode verifyMode = VerifyMode.ALWAYS;
+    private int verifyInterval = DEFAULT_VERIFY_INTERVAL;
+    private long registerWriteCount = 0;
+    private long skippedRegisterWriteCount = 0;
+    private long verifiedRegisterWriteCount = 0;
 
     /**
-     * Constructor for a new i2c component, connected on the bus at the specific i2cAddress.
+     * The bus of the device.
+     */
+    private final I2CBus bus;
+
+    /**
+     * Name of the device: the name of its bus and its address, for instance "i2c-1-0x68".
+     */
+    private final String deviceName;
+
+    /**
+     * Constructor for a new i2c component, connected on the default i2c bus of the Raspberry Pi
+     * at the specific i2cAddress.
      * @param i2cAddress the i2c device address of the corresponding component.
+     * @see Pi4jI2CBus#DEFAULT_BUS
      */
     public I2CComponent(int i2cAddress) {
+        this(new Pi4jI2CBus(Pi4jI2CBus.DEFAULT_BUS), i2cAddress);
+    }
+
+    /**
+     * Constructor for a new i2c component, connected on a specific bus at the specific i2cAddress.
+     * @param bus the i2c bus of the component.
+     * @param i2cAddress the i2c device address of the corresponding component.
+     */
+    public I2CComponent(I2CBus bus, int i2cAddress) {
         if (i2cAddress > MAX_I2C_ADDRESS || i2cAddress < MIN_I2C_ADDRESS)
             throw new RuntimeException("Invalid i2c address.");
 
-        I2CProvider i2CProvider = CubliApp.PI4J_CONTEXT.provider("linuxfs-i2c");
-        I2CConfig i2cConfig = I2C.newConfigBuilder(CubliApp.PI4J_CONTEXT).id("MPU6050").bus(1).device(i2cAddress).build();
-        device = i2CProvider.create(i2cConfig);
+        this.bus = bus;
+        device = bus.open(i2cAddress);
+        deviceName = String.format("%s-0x%02X", bus.getName(), i2cAddress);
+        Arrays.fill(shadowRegisters, -1);
+        Arrays.fill(pendingRegisters, -1);
 
-        System.out.println("I2CComponent created with address " + device.getDevice());
+        System.out.println("I2CComponent created with address " + device.getAddress());
     }
 
     /**
      * Get the abstraction of the i2c device.
      * It then allows data to be read or written to the device.
      * @return the abstraction of the i2c device.
-     * @see com.pi4j.io.i2c.I2C
+     * @see I2CDevice
      */
-    public I2C getDevice() {
+    public I2CDevice getDevice() {
         return device;
     }
 
+    /**
+     * @return the bus of the device.
+     */
+    public I2CBus getBus() {
+        return bus;
+    }
+
+    /**
+     * @return the name of the device, unique on the machine: the name of its bus and its address.
+     */
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * Updates a configuration register, through the register shadow.
+     * <p>Nothing is written if the register already holds the value. Within a batch, the write is
+     * deferred to commitRegisterBatch(). Otherwise the value is written, then read back according to
+     * the verify mode.</p>
+     * <p>Registers whose content changes by itself (self-clearing bits, status registers, FIFO) must be
+     * written with writeUnsignedValueToRegister(int, int) instead.</p>
+     * @param reg the address of the register.
+     * @param value the new unsigned value of the register, in the 0..255 interval.
+     */
+    public synchronized void updateRegister(int reg, int value) {
+        if (reg < 0 || reg >= REGISTER_COUNT)
+            throw new IllegalArgumentException("The register address must be in the [0;255] interval.");
+        if (value > 255 || value < 0)
+            throw new IllegalArgumentException("The unsigned value must be in the [0;255] interval.");
+
+        pendingRegisters[reg] = value;
+        if (batchDepth == 0)
+            flushRegisters(reg, reg);
+    }
+
+    /**
+     * Starts a batch of register updates: the updates are deferred until the matching commitRegisterBatch(),
+     * then the runs of adjacent changed registers are each written in a single transaction.
+     * <p>Batches can be nested, the updates are written when the outermost batch is committed. The commit
+     * should be in a finally block.</p>
+     */
+    public synchronized void beginRegisterBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Ends a batch of register updates, writing them if it is the outermost batch.
+     * @see #beginRegisterBatch()
+     */
+    public synchronized void commitRegisterBatch() {
+        if (batchDepth == 0)
+            throw new IllegalStateException("No register batch to commit.");
+        if (--batchDepth == 0)
+            flushRegisters(0, REGISTER_COUNT - 1);
+    }
+
+    /**
+     * Writes the pending register updates of the from..to interval, one transaction per run.
+     */
+    private void flushRegisters(int from, int to) {
+        int reg = from;
+        while (reg <= to) {
+            if (!isChanged(reg)) {
+                pendingRegisters[reg] = -1;
+                reg++;
+                continue;
+            }
+            // extends the run over the changed registers, and over short gaps of known registers between them
+            int start = reg;
+            int end = reg;
+            int next = reg + 1;
+            while (next <= to) {
+                if (isChanged(next)) {
+                    end = next++;
+                } else if (next - end <= MAX_BATCH_GAP && pendingOrShadow(next) >= 0) {
+                    next++;
+                } else {
+                    break;
+                }
+            }
+            writeRun(start, end);
+            reg = end + 1;
+        }
+    }
+
+    private boolean isChanged(int reg) {
+        int pending = pendingRegisters[reg];
+        if (pending < 0)
+            return false;
+        if (pending == shadowRegisters[reg]) {
+            skippedRegisterWriteCount++;
+            pendingRegisters[reg] = -1;
+            return false;
+        }
+        return true;
+    }
+
+    private int pendingOrShadow(int reg) {
+        return pendingRegisters[reg] >= 0 ? pendingRegisters[reg] : shadowRegisters[reg];
+    }
+
+    private void writeRun(int start, int end) {
+        int length = end - start + 1;
+        for (int reg = start; reg <= end; reg++) {
+            transferBuffer[reg - start] = (byte) pendingOrShadow(reg);
+            pendingRegisters[reg] = -1;
+            // unknown until the write is known to be successful
+            shadowRegisters[reg] = -1;
+        }
+
+        if (length == 1) {
+            device.writeRegister(start, transferBuffer[0] & 0xFF);
+        } else {
+            int written = device.writeRegister(start, transferBuffer, 0, length);
+            if (written != length)
+                throw new RuntimeException("Error when writing " + length + " registers from " + start + " (written " + written + ").");
+        }
+        registerWriteCount++;
+
+        if (shouldVerify()) {
+            verifiedRegisterWriteCount++;
+            readRegisters(start, verifyBuffer, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (verifyBuffer[i] != transferBuffer[i])
+                    throw new RuntimeException("Error when updating the register value (register: " + (start + i) +
+                            ", value: " + (transferBuffer[i] & 0xFF) + ", actual value was: " + (verifyBuffer[i] & 0xFF) + ").");
+            }
+        }
+        for (int reg = start; reg <= end; reg++)
+            shadowRegisters[reg] = transferBuffer[reg - start] & 0xFF;
+    }
+
+    private boolean shouldVerify() {
+        switch (verifyMode) {
+            case ALWAYS:
+                return true;
+            case SAMPLED:
+                return registerWriteCount % verifyInterval == 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Forgets the content of the register shadow, after an event changing the registers behind it
+     * (device reset, power loss): the next update of each register is written.
+     */
+    public synchronized void invalidateRegisterShadow() {
+        Arrays.fill(shadowRegisters, -1);
+    }
+
+    /**
+     * @param reg the address of the register.
+     * @return the last value written in the register through the shadow, -1 if unknown.
+     */
+    public synchronized int getShadowRegisterValue(int reg) {
+        return shadowRegisters[reg];
+    }
+
+    /**
+     * Selects how the register updates are checked (ALWAYS by default).
+     * <p>A verified update costs a second bus transaction: when the configuration changes while
+     * sampling, SAMPLED or OFF leave the bus to the samples.</p>
+     * @param verifyMode the verify mode.
+     */
+    public synchronized void setVerifyMode(VerifyMode verifyMode) {
+        if (verifyMode == null)
+            throw new IllegalArgumentException("The verify mode can't be null.");
+        this.verifyMode = verifyMode;
+    }
+
+    /**
+     * @return the verify mode of the register updates.
+     */
+    public synchronized VerifyMode getVerifyMode() {
+        return verifyMode;
+    }
+
+    /**
+     * @param verifyInterval the number of write transactions per verified transaction, in the SAMPLED mode.
+     */
+    public synchronized void setVerifyInterval(int verifyInterval) {
+        if (verifyInterval < 1)
+            throw new IllegalArgumentException("The verify interval must be at least 1.");
+        this.verifyInterval = verifyInterval;
+    }
+
+    /**
+     * @return the number of write transactions per verified transaction, in the SAMPLED mode.
+     */
+    public synchronized int getVerifyInterval() {
+        return verifyInterval;
+    }
+
+    /**
+     * @return the number of write transactions of the register updates.
+     */
+    public synchronized long getRegisterWriteCount() {
+        return registerWriteCount;
+    }
+
+    /**
+     * @return the number of register updates skipped because the register already held the value.
+     */
+    public synchronized long getSkippedRegisterWriteCount() {
+        return skippedRegisterWriteCount;
+    }
+
+    /**
+     * @return the number of write transactions of the register updates which were read back.
+     */
+    public synchronized long getVerifiedRegisterWriteCount() {
+        return verifiedRegisterWriteCount;
+    }
+
     /**
      * This method writes an unsigned value directly on the i2c device
      * (not on a specific register on this device).
@@ -86,20 +379,23 @@ public class I2CComponent {
         if(value > 255 || value < 0)
             throw new IllegalArgumentException("The unsigned value must be in the [0;255] interval.");
 
-        device.write((byte)value);
+        device.write(value);
     }
 
     /**
      * This method writes an unsigned value on the i2c device,
      * on a specific register of this device.
+     * <p>The write bypasses the register shadow, and the shadow of the register is forgotten.</p>
      * @param reg the destination register on the i2c device.
      * @param value the unsigned value to be written on the device. This value must be in the 0..255 interval.
+     * @see I2CComponent#updateRegister(int, int)
      */
-    public void writeUnsignedValueToRegister(int reg, int value) {
+    public synchronized void writeUnsignedValueToRegister(int reg, int value) {
         if(value > 255 || value < 0)
             throw new IllegalArgumentException("The unsigned value muste be in the [0;255] interval");
 
         device.writeRegister(reg, value);
+        shadowRegisters[reg & (REGISTER_COUNT - 1)] = -1;
     }
 
     /**
@@ -118,6 +414,23 @@ public class I2CComponent {
         return result;
     }
 
+    /**
+     * Reads length consecutive registers, starting at reg, in a single i2c transaction
+     * and stores their content in buffer, starting at offset.
+     * <p>The device must support register address auto-increment (as most i2c sensors do),
+     * so that reading past reg continues with reg + 1, reg + 2, ...</p>
+     * @param reg the local address on the i2c device of the first register to be read.
+     * @param buffer the destination buffer.
+     * @param offset the index in buffer where the first register content is stored.
+     * @param length the number of consecutive registers to read.
+     * @see I2CComponent#readUnsignedRegisterValue(int)
+     */
+    public void readRegisters(int reg, byte[] buffer, int offset, int length) {
+        int read = device.readRegister(reg, buffer, offset, length);
+        if (read != length)
+            throw new RuntimeException("Error when reading " + length + " registers from " + reg + " (read " + read + ").");
+    }
+
     /**
      * Reads the content of the reg register (8bits),
      * and returns the signed integer representation of this value in the -128..127 interval
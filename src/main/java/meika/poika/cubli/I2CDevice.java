@@ -0,0 +1,58 @@
+package meika.poika.cubli;
+
+/**
+ * <b>A device at a specific address on an i2c bus.</b>
+ *
+ * <p>This is the only access of the i2c components to the hardware: each transaction either
+ * writes registers or reads them, the register address auto-incrementing during bursts.
+ * The values are unsigned bytes, in the 0..255 interval.</p>
+ *
+ * @see I2CBus
+ */
+public interface I2CDevice {
+
+    /**
+     * @return the 7 bit i2c address of the device.
+     */
+    int getAddress();
+
+    /**
+     * Writes a value directly on the device (not on a specific register).
+     * @param value the unsigned value, in the 0..255 interval.
+     */
+    void write(int value);
+
+    /**
+     * Writes a value in a register of the device.
+     * @param reg the address of the register.
+     * @param value the unsigned value, in the 0..255 interval.
+     */
+    void writeRegister(int reg, int value);
+
+    /**
+     * Reads a register of the device.
+     * @param reg the address of the register.
+     * @return the unsigned value of the register, in the 0..255 interval; a negative number if the read failed.
+     */
+    int readRegister(int reg);
+
+    /**
+     * Reads length consecutive registers, starting at reg, in a single transaction.
+     * @param reg the address of the first register.
+     * @param buffer the destination buffer.
+     * @param offset the index in buffer where the first register content is stored.
+     * @param length the number of registers to read.
+     * @return the number of registers read; a negative number if the read failed.
+     */
+    int readRegister(int reg, byte[] buffer, int offset, int length);
+
+    /**
+     * Writes length consecutive registers, starting at reg, in a single transaction.
+     * @param reg the address of the first register.
+     * @param buffer the unsigned values of the registers.
+     * @param offset the index in buffer of the value of the first register.
+     * @param length the number of registers to write.
+     * @return the number of registers written; a negative number if the write failed.
+     */
+    int writeRegister(int reg, byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,432 @@
+package meika.poika.cubli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Samples several MPU6050 on one or more i2c buses and combines them into one time-aligned stream.</b>
+ *
+ * <p>Each physical bus (identified by {@link I2CBus#getName()}) gets its own sampling thread, paced by a
+ * {@link FixedRateScheduler}: at each period, the devices of the bus are read back to back, one burst each,
+ * and processed by their own pipeline (calibration, bias tracking, fusion, history). The transfers of
+ * different buses run in parallel, so the sample rate only depends on the number of devices per bus.</p>
+ *
+ * <p>A fusion thread combines the devices at a common time grid (one aligned time per period): for each
+ * aligned time, it waits until every device has a sample at or after it, interpolates each device between
+ * its two samples around it, rotates the vectors from the sensor frame to the body frame (the mounting of
+ * each device), and averages them. The averaged sample is processed by the pipeline of the array
+ * ({@link #getPipeline()}), so the combined stream has its own fusion filter, history and listeners.
+ * A device which falls more than getMaxDelayNanos() behind is left out of the aligned sample, and counted
+ * as missing, so a failing bus doesn't stop the others.</p>
+ *
+ * <p>The devices must share the same time source, and their updating thread must be stopped: the array
+ * samples them in POLLING mode, whatever their acquisition mode.</p>
+ */
+public class ImuArray {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImuArray.class);
+
+    /**
+     * Default delay, in periods, after which a late device is left out of an aligned sample.
+     */
+    public static final int DEFAULT_MAX_DELAY_PERIODS = 5;
+
+    private final long periodNanos;
+    private final long maxDelayNanos;
+    private final List<Imu> imus = new ArrayList<>();
+    private final Map<String, List<MPU6050>> devicesByBus = new LinkedHashMap<>();
+    private final List<BusSampler> samplers = new ArrayList<>();
+    private TimeSource timeSource = TimeSource.SYSTEM;
+
+    /**
+     * Processes the aligned samples, in the body frame.
+     */
+    private final SensorPipeline pipeline = new SensorPipeline();
+
+    /**
+     * Time between an aligned time and the processing of its sample, in nanoseconds.
+     */
+    private final LatencyHistogram alignmentLatencyHistogram = new LatencyHistogram();
+
+    private Thread fusionThread = null;
+    private volatile boolean running = false;
+    private volatile long missingCount = 0;
+
+    /**
+     * Constructor for an array sampled at a specific period, leaving out the devices
+     * late by more than DEFAULT_MAX_DELAY_PERIODS.
+     * @param periodNanos the sample period of the devices and of the aligned stream, in nanoseconds.
+     */
+    public ImuArray(long periodNanos) {
+        this(periodNanos, DEFAULT_MAX_DELAY_PERIODS * periodNanos);
+    }
+
+    /**
+     * Constructor for a new array.
+     * @param periodNanos the sample period of the devices and of the aligned stream, in nanoseconds.
+     * @param maxDelayNanos the delay after which a late device is left out of an aligned sample, in nanoseconds.
+     */
+    public ImuArray(long periodNanos, long maxDelayNanos) {
+        if (periodNanos <= 0 || maxDelayNanos < 0)
+            throw new IllegalArgumentException("The period must be positive and the maximum delay can't be negative.");
+        this.periodNanos = periodNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        // the angular speeds are already calibrated by the pipelines of the devices
+        pipeline.setGyroBiasTracking(false);
+        // the raw words of the aligned samples are derived from the averages: they never saturate
+        pipeline.setRanges(GyroRange.DPS_2000, AccelRange.G_16);
+    }
+
+    /**
+     * Adds a device whose axes are the axes of the body.
+     * @param mpu6050 the device.
+     * @return the index of the device in the array.
+     */
+    public int add(MPU6050 mpu6050) {
+        Quaternion identity = new Quaternion();
+        identity.setIdentity();
+        return add(mpu6050, identity);
+    }
+
+    /**
+     * Adds a device mounted with a specific orientation.
+     * @param mpu6050 the device.
+     * @param mounting the rotation from the sensor frame of the device to the body frame. It is copied.
+     * @return the index of the device in the array.
+     */
+    public synchronized int add(MPU6050 mpu6050, Quaternion mounting) {
+        if (running)
+            throw new IllegalStateException("Devices can't be added while the array is running.");
+        if (imus.isEmpty()) {
+            timeSource = mpu6050.getTimeSource();
+        } else if (mpu6050.getTimeSource() != timeSource) {
+            throw new IllegalArgumentException("The devices of an array must share the same time source.");
+        }
+        for (Imu imu : imus)
+            if (imu.mpu6050 == mpu6050)
+                throw new IllegalArgumentException("The device " + mpu6050.getDeviceName() + " is already in the array.");
+        imus.add(new Imu(mpu6050, mounting));
+        devicesByBus.computeIfAbsent(mpu6050.getBus().getName(), name -> new ArrayList<>()).add(mpu6050);
+        return imus.size() - 1;
+    }
+
+    /**
+     * Starts sampling: one thread per bus, and the fusion thread.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        if (imus.isEmpty())
+            throw new IllegalStateException("The array has no device.");
+        for (Imu imu : imus) {
+            imu.mpu6050.startExternalSampling();
+            imu.reset();
+        }
+        pipeline.restart(timeSource.nanoTime());
+        running = true;
+        fusionThread = new Thread(this::fuse, "imu-fusion");
+        samplers.clear();
+        for (Map.Entry<String, List<MPU6050>> bus : devicesByBus.entrySet())
+            samplers.add(new BusSampler(bus.getKey(), bus.getValue().toArray(new MPU6050[0])));
+        fusionThread.start();
+        for (BusSampler sampler : samplers)
+            sampler.thread.start();
+        LOG.info("Sampling {} devices on {} buses every {} ns", imus.size(), samplers.size(), periodNanos);
+    }
+
+    /**
+     * Stops sampling and waits for the threads.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running)
+            return;
+        running = false;
+        for (BusSampler sampler : samplers)
+            sampler.thread.join();
+        LockSupport.unpark(fusionThread);
+        fusionThread.join();
+        fusionThread = null;
+        for (Imu imu : imus)
+            imu.mpu6050.stopExternalSampling();
+    }
+
+    /**
+     * @return true while the array is sampled.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the pipeline processing the aligned samples, in the body frame.
+     */
+    public SensorPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return the number of devices.
+     */
+    public synchronized int size() {
+        return imus.size();
+    }
+
+    /**
+     * @param index the index of the device, as returned by add.
+     * @return the device.
+     */
+    public synchronized MPU6050 getDevice(int index) {
+        return imus.get(index).mpu6050;
+    }
+
+    /**
+     * @return the number of buses, i.e. of sampling threads.
+     */
+    public synchronized int getBusCount() {
+        return devicesByBus.size();
+    }
+
+    /**
+     * @return the sample period, in nanoseconds.
+     */
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return the delay after which a late device is left out of an aligned sample, in nanoseconds.
+     */
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    /**
+     * @return the number of device samples left out of the aligned samples because the device was late.
+     */
+    public long getMissingCount() {
+        return missingCount;
+    }
+
+    /**
+     * @return the distribution of the time between an aligned time and the processing of its sample, in ns.
+     */
+    public LatencyHistogram getAlignmentLatencyHistogram() {
+        return alignmentLatencyHistogram;
+    }
+
+    /**
+     * Returns a summary of the sampling, one line per bus then the alignment.
+     * @return the summary.
+     */
+    public synchronized String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (BusSampler sampler : samplers)
+            summary.append(String.format("bus %s (%d devices): %s%n",
+                    sampler.name, sampler.devices.length, sampler.scheduler.summary()));
+        summary.append(String.format("aligned: %d samples, %d missing, latency %s",
+                pipeline.getSampleCount(), missingCount, alignmentLatencyHistogram.summary()));
+        return summary.toString();
+    }
+
+    /**
+     * Loop of the fusion thread.
+     */
+    private void fuse() {
+        Imu[] devices = imus.toArray(new Imu[0]);
+        double[] accelerations = new double[3];
+        double[] angularSpeeds = new double[3];
+        long alignedTime = 0;
+        boolean aligned = false;
+        while (running) {
+            if (!aligned) {
+                // the grid starts at the latest first sample, so every device has samples around it
+                aligned = true;
+                alignedTime = Long.MIN_VALUE;
+                for (Imu imu : devices) {
+                    if (!imu.advanceTo(Long.MIN_VALUE)) {
+                        aligned = false;
+                        break;
+                    }
+                    alignedTime = Math.max(alignedTime, imu.current.timestampNanos);
+                }
+                if (!aligned) {
+                    LockSupport.parkNanos(periodNanos);
+                    continue;
+                }
+            }
+
+            int ready = 0;
+            for (Imu imu : devices)
+                if (imu.advanceTo(alignedTime))
+                    ready++;
+            long now = timeSource.nanoTime();
+            if (ready < devices.length) {
+                if (now - alignedTime < maxDelayNanos) {
+                    // woken up by the bus threads after each period
+                    LockSupport.parkNanos(periodNanos);
+                    continue;
+                }
+                missingCount += devices.length - ready;
+                if (ready == 0) {
+                    alignedTime += periodNanos;
+                    continue;
+                }
+            }
+
+            double temperature = 0.;
+            for (int axis = X; axis <= Z; axis++) {
+                accelerations[axis] = 0.;
+                angularSpeeds[axis] = 0.;
+            }
+            for (Imu imu : devices) {
+                if (!imu.isReady(alignedTime))
+                    continue;
+                temperature += imu.interpolate(alignedTime);
+                for (int axis = X; axis <= Z; axis++) {
+                    accelerations[axis] += imu.accelerations[axis];
+                    angularSpeeds[axis] += imu.angularSpeeds[axis];
+                }
+            }
+            for (int axis = X; axis <= Z; axis++) {
+                accelerations[axis] /= ready;
+                angularSpeeds[axis] /= ready;
+            }
+            pipeline.processScaled(accelerations, temperature / ready, angularSpeeds, alignedTime);
+            alignmentLatencyHistogram.record(now - alignedTime);
+            alignedTime += periodNanos;
+        }
+    }
+
+    /**
+     * <b>A device of the array, and its read position in its history.</b>
+     * <p><i>(only accessed by the fusion thread, once started)</i></p>
+     */
+    private static final class Imu {
+
+        private final MPU6050 mpu6050;
+        private final Quaternion mounting = new Quaternion();
+        private SampleRingBuffer.Cursor cursor;
+
+        /**
+         * The two last samples read from the history, and a spare frame to read the next one.
+         */
+        private SensorFrame previous = new SensorFrame();
+        private SensorFrame current = new SensorFrame();
+        private SensorFrame spare = new SensorFrame();
+        private int frameCount;
+
+        /**
+         * Interpolated values in the body frame.
+         */
+        private final double[] accelerations = new double[3];
+        private final double[] angularSpeeds = new double[3];
+
+        Imu(MPU6050 mpu6050, Quaternion mounting) {
+            this.mpu6050 = mpu6050;
+            this.mounting.copyFrom(mounting);
+            this.mounting.normalize();
+        }
+
+        void reset() {
+            cursor = mpu6050.getHistory().newCursor();
+            frameCount = 0;
+        }
+
+        /**
+         * Reads the history until the current sample is at or after a time.
+         * @param time the time, in nanoseconds.
+         * @return true if the current sample is at or after time.
+         */
+        boolean advanceTo(long time) {
+            while (frameCount == 0 || current.timestampNanos < time) {
+                if (!cursor.poll(spare))
+                    return false;
+                SensorFrame oldest = previous;
+                previous = current;
+                current = spare;
+                spare = oldest;
+                frameCount++;
+            }
+            return true;
+        }
+
+        boolean isReady(long time) {
+            return frameCount > 0 && current.timestampNanos >= time;
+        }
+
+        /**
+         * Interpolates the sample at a time between the previous and the current sample,
+         * and rotates it to the body frame.
+         * @param time the time, in nanoseconds, at most the time of the current sample.
+         * @return the interpolated temperature.
+         */
+        double interpolate(long time) {
+            double fraction = 1.;
+            if (frameCount > 1 && current.timestampNanos > previous.timestampNanos && time > previous.timestampNanos)
+                fraction = (double) (time - previous.timestampNanos) / (current.timestampNanos - previous.timestampNanos);
+            else if (frameCount > 1 && time <= previous.timestampNanos)
+                fraction = 0.;
+            for (int axis = X; axis <= Z; axis++) {
+                accelerations[axis] = previous.accelAccelerations[axis]
+                        + fraction * (current.accelAccelerations[axis] - previous.accelAccelerations[axis]);
+                angularSpeeds[axis] = previous.gyroAngularSpeeds[axis]
+                        + fraction * (current.gyroAngularSpeeds[axis] - previous.gyroAngularSpeeds[axis]);
+            }
+            mounting.rotate(accelerations, accelerations);
+            mounting.rotate(angularSpeeds, angularSpeeds);
+            return previous.temperature + fraction * (current.temperature - previous.temperature);
+        }
+    }
+
+    /**
+     * <b>Sampling thread of one bus: reads its devices back to back at each period.</b>
+     */
+    private final class BusSampler implements Runnable {
+
+        private final String name;
+        private final MPU6050[] devices;
+        private final FixedRateScheduler scheduler;
+        private final Thread thread;
+
+        BusSampler(String name, MPU6050[] devices) {
+            this.name = name;
+            this.devices = devices;
+            this.scheduler = new FixedRateScheduler(periodNanos);
+            this.thread = new Thread(this, "imu-bus-" + name);
+        }
+
+        @Override
+        public void run() {
+            scheduler.start();
+            while (running) {
+                scheduler.awaitNextPeriod();
+                for (MPU6050 device : devices) {
+                    MPU6050Metrics metrics = device.getMetrics();
+                    long busErrors = metrics.getBusErrorCount();
+                    try {
+                        device.updateValues();
+                    } catch (RuntimeException e) {
+                        // the device misses this period, the other devices of the bus and the next periods go on
+                        if (metrics.getBusErrorCount() == busErrors)
+                            metrics.countBusError();
+                        if (busErrors == 0)
+                            LOG.warn("Error while sampling {} on bus {}, the next ones are only counted",
+                                    device.getDeviceName(), name, e);
+                    }
+                }
+                LockSupport.unpark(fusionThread);
+            }
+        }
+    }
+}
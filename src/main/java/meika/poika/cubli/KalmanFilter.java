@@ -0,0 +1,155 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Kalman filter estimating the x and y angles together with the gyroscope bias.</b>
+ *
+ * <p>Each tilt axis has a two state filter: the angle and the bias of the gyroscope.
+ * The angle is predicted with the angular speed minus the estimated bias, then corrected with the
+ * angle from the accelerometer. Unlike the complementary filter, the residual gyroscope bias left after
+ * the calibration (or appearing with temperature) is tracked and removed.</p>
+ *
+ * <p>The z angle is integrated from the gyroscope, since no measurement can correct it.</p>
+ */
+public class KalmanFilter implements FusionFilter {
+
+    /**
+     * Default process noise of the angle.
+     */
+    public static final double DEFAULT_Q_ANGLE = 0.001;
+
+    /**
+     * Default process noise of the gyroscope bias.
+     */
+    public static final double DEFAULT_Q_BIAS = 0.003;
+
+    /**
+     * Default measurement noise of the accelerometer angle.
+     */
+    public static final double DEFAULT_R_MEASURE = 0.03;
+
+    private final Axis axisX;
+    private final Axis axisY;
+    private double angleZ = 0.;
+
+    /**
+     * Constructor for a new Kalman filter with the default noise parameters.
+     */
+    public KalmanFilter() {
+        this(DEFAULT_Q_ANGLE, DEFAULT_Q_BIAS, DEFAULT_R_MEASURE);
+    }
+
+    /**
+     * Constructor for a new Kalman filter.
+     * @param qAngle the process noise of the angle.
+     * @param qBias the process noise of the gyroscope bias.
+     * @param rMeasure the measurement noise of the accelerometer angle.
+     */
+    public KalmanFilter(double qAngle, double qBias, double rMeasure) {
+        axisX = new Axis(qAngle, qBias, rMeasure);
+        axisY = new Axis(qAngle, qBias, rMeasure);
+    }
+
+    @Override
+    public void update(SensorFrame sample, double dt) {
+        double ax = sample.accelAccelerations[X];
+        double ay = sample.accelAccelerations[Y];
+        double az = sample.accelAccelerations[Z];
+        // the accelerometer angles decrease when the sensor turns positively around their axis (see AngleMath)
+        axisX.update(AngleMath.fastAccelXAngle(ax, ay, az), -sample.gyroAngularSpeeds[X], dt);
+        axisY.update(AngleMath.fastAccelYAngle(ax, ay, az), -sample.gyroAngularSpeeds[Y], dt);
+        angleZ += sample.gyroAngularSpeeds[Z] * dt;
+    }
+
+    @Override
+    public void getAngles(double[] angles) {
+        angles[X] = axisX.angle;
+        angles[Y] = axisY.angle;
+        angles[Z] = angleZ;
+    }
+
+    /**
+     * Get the estimated residual biases of the gyroscope.
+     * @param biases the destination of the biases, in °/sec, for the x and y axis (z is set to 0).
+     */
+    public void getBiases(double[] biases) {
+        // the axes filter the opposite of the angular speeds
+        biases[X] = -axisX.bias;
+        biases[Y] = -axisY.bias;
+        biases[Z] = 0.;
+    }
+
+    @Override
+    public void reset() {
+        axisX.reset();
+        axisY.reset();
+        angleZ = 0.;
+    }
+
+    /**
+     * The two state (angle, bias) filter of one axis.
+     */
+    private static final class Axis {
+        private final double qAngle;
+        private final double qBias;
+        private final double rMeasure;
+
+        private boolean initialized = false;
+        private double angle;
+        private double bias;
+        private double p00, p01, p10, p11;
+
+        private Axis(double qAngle, double qBias, double rMeasure) {
+            this.qAngle = qAngle;
+            this.qBias = qBias;
+            this.rMeasure = rMeasure;
+            reset();
+        }
+
+        private void reset() {
+            initialized = false;
+            angle = 0.;
+            bias = 0.;
+            p00 = 0.;
+            p01 = 0.;
+            p10 = 0.;
+            p11 = 0.;
+        }
+
+        private void update(double measuredAngle, double rate, double dt) {
+            if (!initialized) {
+                // start from the accelerometer instead of converging from 0
+                angle = measuredAngle;
+                initialized = true;
+                return;
+            }
+
+            // prediction
+            angle += dt * (rate - bias);
+            p00 += dt * (dt * p11 - p01 - p10 + qAngle);
+            p01 -= dt * p11;
+            p10 -= dt * p11;
+            p11 += qBias * dt;
+
+            // correction; the angles are in the 0..360 interval, so the innovation is wrapped
+            double innovation = measuredAngle - angle;
+            innovation -= 360. * Math.floor((innovation + 180.) / 360.);
+            double s = p00 + rMeasure;
+            double k0 = p00 / s;
+            double k1 = p10 / s;
+            angle += k0 * innovation;
+            bias += k1 * innovation;
+            angle -= 360. * Math.floor(angle / 360.);
+
+            double p00Prior = p00;
+            double p01Prior = p01;
+            p00 -= k0 * p00Prior;
+            p01 -= k0 * p01Prior;
+            p10 -= k1 * p00Prior;
+            p11 -= k1 * p01Prior;
+        }
+    }
+}
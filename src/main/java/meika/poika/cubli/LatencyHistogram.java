@@ -0,0 +1,115 @@
+package meika.poika.cubli;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <b>Fixed memory histogram of durations, in nanoseconds.</b>
+ *
+ * <p>Values are counted in log-linear buckets: exact below 32 ns, then each power of two
+ * is split in 32 sub-buckets, which bounds the relative error of the percentiles to about 3%
+ * over the whole long range. Recording is a single atomic increment, without allocation, and may be
+ * done from several threads while another one reads the percentiles.</p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of the sub-bucket index.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Total number of buckets, covering every positive long value.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Number of values recorded in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records a duration.
+     * @param nanos the duration, in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(Math.max(nanos, 0)));
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Get the value below which a given percentage of the recorded values fall.
+     * @param percentile the percentage, in the 0..100 interval.
+     * @return the upper bound of the bucket containing the percentile, in nanoseconds. 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100. * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return bucketUpperBound(i);
+        }
+        return bucketUpperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return the upper bound of the highest non empty bucket, in nanoseconds. 0 if nothing was recorded.
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--)
+            if (counts.get(i) != 0)
+                return bucketUpperBound(i);
+        return 0;
+    }
+
+    /**
+     * Forgets all the recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+    }
+
+    /**
+     * Returns the p50, p99, p99.9 and max values, in microseconds, in the "p50=xus p99=xus p99.9=xus max=xus" format.
+     * @return a compact summary of the distribution.
+     */
+    public String summary() {
+        return String.format("p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                getPercentile(50) / 1000., getPercentile(99) / 1000., getPercentile(99.9) / 1000., getMax() / 1000.);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowerBound = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -20,6 +20,15 @@ package meika.poika.cubli;
  * along with Raspoid.  If not, see <http://www.gnu.org/licenses/>.
  ******************************************************************************/
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.LockSupport;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
 /**
  * <b>Implementation of the MPU6050 component.</b>
  *
@@ -127,6 +136,8 @@ package meika.poika.cubli;
  */
 public class MPU6050 extends I2CComponent {
 
+    private static final Logger LOG = LoggerFactory.getLogger(MPU6050.class);
+
     /* -----------------------------------------------------------------------
      *                            DEFAULT VALUES
      * -----------------------------------------------------------------------*/
@@ -147,15 +158,70 @@ public class MPU6050 extends I2CComponent {
      */
     public static final int DEFAULT_SMPLRT_DIV = 0x00;
 
+    /**
+     * Bandwidth of the gyroscope, in Hz, for each DLPF_CFG value [datasheet 2 - p.13].
+     */
+    private static final int[] GYRO_DLPF_BANDWIDTHS = {256, 188, 98, 42, 20, 10, 5, 256};
+
+    /**
+     * Absolute raw value of a saturated output.
+     */
+    public static final int RAW_SATURATION = 32767;
+
+    /**
+     * Absolute raw value from which the auto-ranging selects a wider range (90% of the full scale).
+     */
+    public static final int RANGE_UP_THRESHOLD = 29490;
+
+    /**
+     * Absolute raw value under which a value fits in the next narrower range, with margin
+     * (80% of its full scale, the narrower range having half the full scale).
+     */
+    public static final int RANGE_DOWN_THRESHOLD = 13107;
+
+    /**
+     * Time the values must stay within the next narrower range before the auto-ranging selects it, in ns.
+     */
+    public static final long RANGE_DOWN_HOLD_NANOS = 500_000_000L;
+
+    /**
+     * Time after a range switch, in sample periods, from which a sample was surely measured with the new range:
+     * the next sample is produced within one period, half a period is left for the output registers.
+     */
+    private static final double RANGE_SWITCH_SETTLING_PERIODS = 1.5;
+
+    /**
+     * Minimum number of samples of the check of a cached calibration, at startup.
+     */
+    public static final int CALIBRATION_CHECK_SAMPLES = 50;
+
+    /**
+     * Difference, in °/sec, between a cached offset and the measured one from which the gyroscope
+     * is recalibrated. Below it, the drift of the integrated angle is negligible against the correction
+     * of the fusion filters.
+     */
+    public static final double CALIBRATION_DRIFT_TOLERANCE = 0.1;
+
+    /**
+     * Default number of samples kept in the history.
+     * @see #getHistory()
+     */
+    public static final int DEFAULT_HISTORY_CAPACITY = 1024;
+
     /**
      * Coefficient to convert an angle value from radians to degrees.
      */
     public static final double RADIAN_TO_DEGREE = 180. / Math.PI;
 
+    /**
+     * Coefficient to convert an angle value from degrees to radians.
+     */
+    public static final double DEGREE_TO_RADIAN = Math.PI / 180.;
+
     /**
      * It is impossible to calculate an angle for the z axis from the accelerometer.
      */
-    private static final double ACCEL_Z_ANGLE = 0;
+    static final double ACCEL_Z_ANGLE = 0;
 
     /* -----------------------------------------------------------------------
      *                          REGISTERS ADDRESSES
@@ -189,11 +255,38 @@ public class MPU6050 extends I2CComponent {
      */
     public static final int MPU6050_REG_ADDR_ACCEL_CONFIG = 0x1C; // 28
 
+    /**
+     * <b>[datasheet 2 - p.16]</b> FIFO Enable
+     * <p>This register determines which sensor measurements are loaded into the FIFO buffer.</p>
+     */
+    public static final int MPU6050_REG_ADDR_FIFO_EN = 0x23; // 35
+
+    /**
+     * <b>[datasheet 2 - p.26]</b> INT Pin / Bypass Enable Configuration
+     * <p>This register configures the behavior of the interrupt signals at the INT pins.</p>
+     */
+    public static final int MPU6050_REG_ADDR_INT_PIN_CFG = 0x37; // 55
+
     /**
      * <b>[datasheet 2 - p.27]</b> Interrupt Enable
      * <p>This register enables interrupt generation by interrupt sources.</p>
      */
-    public static final int MPU6050_REG_ADDR_INT_ENABLE = 0x1A; // 56
+    public static final int MPU6050_REG_ADDR_INT_ENABLE = 0x38; // 56
+
+    /**
+     * <b>[datasheet 2 - p.28]</b> Interrupt Status
+     * <p>This register shows the interrupt status of each interrupt generation source.
+     * Each bit will clear after the register is read.</p>
+     */
+    public static final int MPU6050_REG_ADDR_INT_STATUS = 0x3A; // 58
+
+    /**
+     * <b>[datasheet 2 - p.38]</b> User Control
+     * <p>This register allows the user to enable and disable the FIFO buffer, I2C Master Mode,
+     * and primary I2C interface. The FIFO buffer, I2C Master, sensor signal paths and sensor
+     * registers can also be reset using this register.</p>
+     */
+    public static final int MPU6050_REG_ADDR_USER_CTRL = 0x6A; // 106
 
     /**
      * <b>[datasheet 2 - p.40]</b> Power Management 1
@@ -355,6 +448,144 @@ public class MPU6050 extends I2CComponent {
      * @see #MPU6050_REG_ADDR_GYRO_ZOUT_H
      */
     public static final int MPU6050_REG_ADDR_GYRO_ZOUT_L = 0x48; // 72
+
+    /**
+     * <b>[datasheet 2 - p.43]</b> FIFO Count Registers
+     * <p>These registers keep track of the number of samples currently in the FIFO buffer.
+     * Reading FIFO_COUNT_H latches the value of both registers, so they must be read together.</p>
+     * @see #MPU6050_REG_ADDR_FIFO_COUNT_L
+     */
+    public static final int MPU6050_REG_ADDR_FIFO_COUNT_H = 0x72; // 114
+
+    /**
+     * <b>[datasheet 2 - p.43]</b> FIFO Count Registers
+     * <p>These registers keep track of the number of samples currently in the FIFO buffer.</p>
+     * @see #MPU6050_REG_ADDR_FIFO_COUNT_H
+     */
+    public static final int MPU6050_REG_ADDR_FIFO_COUNT_L = 0x73; // 115
+
+    /**
+     * <b>[datasheet 2 - p.44]</b> FIFO Read Write
+     * <p>This register is used to read and write data from the FIFO buffer. Data is read
+     * in the order of the register numbers, from lowest to highest.</p>
+     */
+    public static final int MPU6050_REG_ADDR_FIFO_R_W = 0x74; // 116
+
+    /* -----------------------------------------------------------------------
+     *                           SENSOR DATA BLOCK
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * Number of bytes of the sensor data block, from ACCEL_XOUT_H (0x3B) to GYRO_ZOUT_L (0x48).
+     * <p>The block contains seven big endian two's complement words:
+     * ACCEL_X, ACCEL_Y, ACCEL_Z, TEMP, GYRO_X, GYRO_Y and GYRO_Z.
+     * Reading it in a single transaction guarantees that all the values belong to the same sample
+     * <b>[datasheet 2 - p.7]</b>.</p>
+     */
+    public static final int SENSOR_BLOCK_LENGTH = 14;
+
+    /**
+     * Number of words in the sensor data block.
+     * @see #SENSOR_BLOCK_LENGTH
+     */
+    public static final int SENSOR_BLOCK_WORDS = SENSOR_BLOCK_LENGTH / 2;
+
+    /** Index of the accelerometer x axis word in the sensor data block. */
+    public static final int RAW_ACCEL_X = 0;
+    /** Index of the accelerometer y axis word in the sensor data block. */
+    public static final int RAW_ACCEL_Y = 1;
+    /** Index of the accelerometer z axis word in the sensor data block. */
+    public static final int RAW_ACCEL_Z = 2;
+    /** Index of the temperature word in the sensor data block. */
+    public static final int RAW_TEMP = 3;
+    /** Index of the gyroscope x axis word in the sensor data block. */
+    public static final int RAW_GYRO_X = 4;
+    /** Index of the gyroscope y axis word in the sensor data block. */
+    public static final int RAW_GYRO_Y = 5;
+    /** Index of the gyroscope z axis word in the sensor data block. */
+    public static final int RAW_GYRO_Z = 6;
+
+    /* -----------------------------------------------------------------------
+     *                              INTERRUPTS
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * INT_ENABLE bit enabling the Data Ready interrupt, which occurs each time a write operation
+     * to all of the sensor registers has been completed.
+     */
+    public static final int INT_ENABLE_DATA_RDY_EN = 0x01;
+
+    /**
+     * INT_PIN_CFG value used for the Data Ready interrupt: INT pin active high, push-pull
+     * (INT_LEVEL = 0, INT_OPEN = 0), held high until cleared (LATCH_INT_EN = 0x20),
+     * and cleared by any read operation (INT_RD_CLEAR = 0x10).
+     * <p>Reading the sensor data block therefore clears the interrupt, and the next sample
+     * produces a new rising edge.</p>
+     */
+    public static final int INT_PIN_CFG_DATA_RDY = 0x20 | 0x10;
+
+    /**
+     * Number of sample periods the updating thread waits for a Data Ready interrupt before
+     * reading the sensor anyway (which also clears a latched interrupt whose edge was missed).
+     */
+    private static final int DATA_READY_TIMEOUT_PERIODS = 10;
+
+    /* -----------------------------------------------------------------------
+     *                                FIFO
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * Size of the FIFO buffer, in bytes.
+     */
+    public static final int FIFO_SIZE = 1024;
+
+    /**
+     * FIFO_EN value loading the accelerometer, temperature and gyroscope measurements into the FIFO.
+     * <p>Bits TEMP_FIFO_EN (0x80), XG_FIFO_EN (0x40), YG_FIFO_EN (0x20), ZG_FIFO_EN (0x10)
+     * and ACCEL_FIFO_EN (0x08). With this selection, each FIFO frame has exactly the layout
+     * of the sensor data block.</p>
+     * @see #SENSOR_BLOCK_LENGTH
+     */
+    public static final int FIFO_EN_ALL_SENSORS = 0x80 | 0x40 | 0x20 | 0x10 | 0x08;
+
+    /**
+     * USER_CTRL bit enabling FIFO operations.
+     */
+    public static final int USER_CTRL_FIFO_EN = 0x40;
+
+    /**
+     * USER_CTRL bit resetting the FIFO buffer. It automatically clears to 0 after the reset.
+     */
+    public static final int USER_CTRL_FIFO_RESET = 0x04;
+
+    /**
+     * Maximum number of whole frames the FIFO can hold.
+     */
+    public static final int FIFO_MAX_FRAMES = FIFO_SIZE / SENSOR_BLOCK_LENGTH;
+
+    /**
+     * The ways the updating thread can retrieve samples from the MPU6050.
+     */
+    public enum AcquisitionMode {
+        /**
+         * The sensor data block is read from the output registers on each iteration,
+         * paced by the update period if one is set.
+         * @see #setUpdatePeriodNanos(long)
+         */
+        POLLING,
+        /**
+         * The samples are accumulated in the on-chip FIFO and drained in batches.
+         * No sample is lost as long as the FIFO is drained before it overflows.
+         */
+        FIFO,
+        /**
+         * The sensor data block is read once each time the MPU6050 signals new data on its INT pin.
+         * The updating thread sleeps in between.
+         * @see #setDataReadySignal(DataReadySignal)
+         */
+        INTERRUPT
+    }
+
     /* -----------------------------------------------------------------------
      *                             VARIABLES
      * -----------------------------------------------------------------------*/
@@ -373,133 +604,150 @@ public class MPU6050 extends I2CComponent {
      * Sensisitivty of the measures from the accelerometer.
      * Used to convert accelerometer values.
      */
-    private double accelLSBSensitivity;
+    private volatile double accelLSBSensitivity;
 
     /**
      * Sensitivity of the measures from the gyroscope.
      * Used to convert gyroscope values to degrees/sec.
      */
-    private double gyroLSBSensitivity;
+    private volatile double gyroLSBSensitivity;
 
-    private Thread updatingThread = null;
-    private boolean updatingThreadStopped = true;
-    private long lastUpdateTime = 0;
+    /**
+     * Full scale ranges written in GYRO_CONFIG and ACCEL_CONFIG.
+     * <p><i>(used by the updating thread, or while it is stopped)</i></p>
+     */
+    private GyroRange gyroRange = GyroRange.DPS_250;
+    private AccelRange accelRange = AccelRange.G_2;
 
-    // ACCELEROMETER
+    /**
+     * Full scale ranges requested by the API or the auto-ranging, written by the updating thread between two samples.
+     */
+    private volatile GyroRange requestedGyroRange = GyroRange.DPS_250;
+    private volatile AccelRange requestedAccelRange = AccelRange.G_2;
 
     /**
-     * Last acceleration value, in g, retrieved from the accelerometer, for the x axis.
-     * <p><i>(using the updating thread)</i></p>
+     * True from the write of new ranges until the samples are known to use them.
+     * <p><i>(used by the updating thread)</i></p>
      */
-    private double accelAccelerationX = 0.;
+    private boolean rangeSwitchPending = false;
 
     /**
-     * Last acceleration value, in g, retrieved from the accelerometer, for the y axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Time of the last write of the ranges, in the time base of the time source.
      */
-    private double accelAccelerationY = 0.;
+    private long rangeSwitchTime;
 
     /**
-     * Last acceleration value, in g, retrieved from the accelerometer, for the z axis.
-     * <p><i>(using the updating thread)</i></p>
+     * True to switch the ranges automatically, according to the measured values.
      */
-    private double accelAccelerationZ = 0.;
+    private volatile boolean autoRanging = false;
 
     /**
-     * Last angle value, in °, retrieved from the accelerometer, for the x axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Last time a value was too large for the next narrower range, for the gyroscope and the accelerometer.
+     * <p><i>(used by the updating thread)</i></p>
      */
-    private double accelAngleX = 0.;
+    private long gyroHighTime;
+    private long accelHighTime;
 
     /**
-     * Last angle value, in °, retrieved from the accelerometer, for the y axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Number of samples discarded because their range was unknown, just after a range switch.
      */
-    private double accelAngleY = 0.;
+    private volatile long rangeSwitchSkippedCount = 0;
 
     /**
-     * Last angle value, in °, retrieved from the accelerometer, for the z axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Buffer receiving the sensor data block.
+     * <p><i>(used by the updating thread)</i></p>
      */
-    private double accelAngleZ = 0.;
+    private final byte[] sensorBlockBuffer = new byte[SENSOR_BLOCK_LENGTH];
 
-    // GYROSCOPE
+    /**
+     * Decoded words of the last sensor data block.
+     * <p><i>(used by the updating thread)</i></p>
+     */
+    private final int[] rawSensorValues = new int[SENSOR_BLOCK_WORDS];
 
     /**
-     * Last angular speed value, in °/sec, retrieved from the gyroscope, for the x axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Buffer receiving the three words of an accelerometer or gyroscope vector.
      */
-    private double gyroAngularSpeedX = 0.;
+    private final byte[] vectorBuffer = new byte[6];
 
     /**
-     * Last angular speed value, in °/sec, retrieved from the gyroscope, for the y axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Buffer receiving whole frames drained from the FIFO.
      */
-    private double gyroAngularSpeedY = 0.;
+    private final byte[] fifoBuffer = new byte[FIFO_MAX_FRAMES * SENSOR_BLOCK_LENGTH];
 
     /**
-     * Last angular speed value, in °/sec, retrieved from the gyroscope, for the z axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Batch of samples drained from the FIFO by the updating thread.
      */
-    private double gyroAngularSpeedZ = 0.;
+    private final SampleBatch fifoBatch = new SampleBatch(FIFO_MAX_FRAMES);
 
     /**
-     * Last angle value, in °, calculated from the gyroscope, for the x axis.
-     * <p><i>(using the updating thread)</i></p>
+     * The way the updating thread retrieves samples.
      */
-    private double gyroAngleX = 0.;
+    private AcquisitionMode acquisitionMode = AcquisitionMode.POLLING;
 
     /**
-     * Last angle value, in °, calculated from the gyroscope, for the y axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Source of the Data Ready notifications, used in INTERRUPT acquisition mode.
      */
-    private double gyroAngleY = 0.;
+    private DataReadySignal dataReadySignal = null;
 
     /**
-     * Last angle value, in °, calculated from the gyroscope, for the z axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Paces the updating thread in POLLING acquisition mode. Null to read the sensor as fast as possible.
      */
-    private double gyroAngleZ = 0.;
+    private FixedRateScheduler scheduler = null;
 
     /**
-     * Calculated offset for the angular speed from the gyroscope, for the x axis.
+     * Metrics of the sampling: rate, i2c latencies, overruns, errors and staleness.
      */
-    private double gyroAngularSpeedOffsetX = 0.;
+    private final MPU6050Metrics metrics = new MPU6050Metrics(this);
 
     /**
-     * Calculated offset for the angular speed from the gyroscope, for the y axis.
+     * Reconstructs the timestamps of the samples drained from the FIFO.
      */
-    private double gyroAngularSpeedOffsetY = 0.;
+    private final SampleClock sampleClock;
+
+    private Thread updatingThread = null;
+    private volatile boolean updatingThreadStopped = true;
 
     /**
-     * Calculated offset for the angular speed from the gyroscope, for the z axis.
+     * Run by the updating thread when it ends, stopped or failed; null for none.
      */
-    private double gyroAngularSpeedOffsetZ = 0.;
+    private volatile Runnable updatingThreadTerminationHandler = null;
 
-    // FILTERED
+    /**
+     * True while the samples are read by an external thread instead of the updating thread.
+     * @see ImuArray
+     */
+    private volatile boolean externallySampled = false;
 
     /**
-     * Last angle value, in °, calculated from the accelerometer and the gyroscope,
-     * for the x axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Source of the timestamps of the samples.
      */
-    private double filteredAngleX = 0.;
+    private TimeSource timeSource = TimeSource.SYSTEM;
 
     /**
-     * Last angle value, in °, calculated from the accelerometer and the gyroscope,
-     * for the y axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Processes the samples read by the updating thread and publishes them.
      */
-    private double filteredAngleY = 0.;
+    private final SensorPipeline pipeline = new SensorPipeline();
 
     /**
-     * Last angle value, in °, calculated from the accelerometer and the gyroscope,
-     * for the z axis.
-     * <p><i>(using the updating thread)</i></p>
+     * Frame reused by each reader thread to copy the published values, so the getters don't allocate it.
+     */
+    private final ThreadLocal<SensorFrame> readerFrames = ThreadLocal.withInitial(SensorFrame::new);
+
+    /**
+     * Last calibration of the gyroscope, seeding the bias model of the pipeline.
+     */
+    private volatile GyroCalibration gyroCalibration = GyroCalibration.NONE;
+
+    /**
+     * Cache of the gyroscope calibrations, null to always calibrate at startup.
      */
-    private double filteredAngleZ = 0.;
+    private final CalibrationCache calibrationCache;
 
-    private long lastUpdateCompleted = 0;
+    /**
+     * Calibration running on the updating thread, null if none.
+     */
+    private volatile BackgroundCalibration backgroundCalibration = null;
 
     /* -----------------------------------------------------------------------
      *                             CONSTRUCTORS
@@ -525,13 +773,53 @@ public class MPU6050 extends I2CComponent {
      * @param smplrtDiv the value of the sample rate divider.
      */
     public MPU6050(int i2cAddress, int dlpfCfg, int smplrtDiv) {
-        super(i2cAddress);
+        this(new Pi4jI2CBus(Pi4jI2CBus.DEFAULT_BUS), i2cAddress, dlpfCfg, smplrtDiv);
+    }
+
+    /**
+     * Constructor for a new MPU6050 on a specific i2c bus (for instance a {@link SimulatedI2CBus}),
+     * using the default i2c address and the default value for the DLPF setting.
+     * @param bus the i2c bus of the MPU6050.
+     */
+    public MPU6050(I2CBus bus) {
+        this(bus, DEFAULT_MPU6050_ADDRESS, DEFAULT_DLPF_CFG, DEFAULT_SMPLRT_DIV);
+    }
+
+    /**
+     * Constructor for a new MPU6050 on a specific i2c bus, using a specific i2c address
+     * and a specific value for the DLPF setting.
+     * @param bus the i2c bus of the MPU6050.
+     * @param i2cAddress the i2c address of the MPU6050.
+     * @param dlpfCfg the value of the DLPF setting.
+     * @param smplrtDiv the value of the sample rate divider.
+     */
+    public MPU6050(I2CBus bus, int i2cAddress, int dlpfCfg, int smplrtDiv) {
+        this(bus, i2cAddress, dlpfCfg, smplrtDiv, CalibrationCache.getDefault());
+    }
+
+    /**
+     * Constructor for a new MPU6050 on a specific i2c bus, using a specific i2c address,
+     * a specific value for the DLPF setting and a specific calibration cache.
+     * @param bus the i2c bus of the MPU6050.
+     * @param i2cAddress the i2c address of the MPU6050.
+     * @param dlpfCfg the value of the DLPF setting.
+     * @param smplrtDiv the value of the sample rate divider.
+     * @param calibrationCache the cache of the gyroscope calibrations, null to calibrate at each startup.
+     * @see #calibrateSensors()
+     */
+    public MPU6050(I2CBus bus, int i2cAddress, int dlpfCfg, int smplrtDiv, CalibrationCache calibrationCache) {
+        super(bus, i2cAddress);
+        this.calibrationCache = calibrationCache;
         this.dlpfCfg = dlpfCfg;
         this.smplrtDiv = smplrtDiv;
+        this.sampleClock = new SampleClock(getSamplePeriodNanos());
 
         // 1. waking up the MPU6050 (0x00 = 0000 0000) as it starts in sleep mode.
         updateRegisterValue(MPU6050_REG_ADDR_PWR_MGMT_1, 0x00);
 
+        // 2. to 5. are adjacent registers, written in a single transaction
+        beginRegisterBatch();
+
         // 2. sample rate divider
         // The sensor register output, FIFO output, and DMP sampling are all based on the Sample Rate.
         // The Sample Rate is generated by dividing the gyroscope output rate by SMPLRT_DIV:
@@ -547,15 +835,16 @@ public class MPU6050 extends I2CComponent {
         setDLPFConfig(dlpfCfg);
 
         // 4. Gyroscope configuration
-        // FS_SEL selects the full scale range of the gyroscope outputs.
-        byte fsSel = 0 << 3; // FS_SEL +- 250 °/s
-        gyroLSBSensitivity = 131.; // cfr [datasheet 2 - p.31]
-        updateRegisterValue(MPU6050_REG_ADDR_GYRO_CONFIG, fsSel);
-
+        // FS_SEL selects the full scale range of the gyroscope outputs: ± 250 °/s, 131 LSB per °/s [datasheet 2 - p.31]
         // 5. Accelerometer configuration [datasheet 2 - p.29]
-        byte afsSel = 0; // AFS_SEL full scale range: ± 2g. LSB sensitivity : 16384 LSB/g
-        accelLSBSensitivity = 16384.; // LSB Sensitivity corresponding to AFS_SEL 0
-        updateRegisterValue(MPU6050_REG_ADDR_ACCEL_CONFIG, afsSel);
+        // AFS_SEL selects the full scale range of the accelerometer outputs: ± 2g, 16384 LSB per g
+        // Both can be changed later, see setGyroRange, setAccelRange and setAutoRanging.
+        updateRegisterValue(MPU6050_REG_ADDR_GYRO_CONFIG, gyroRange.getConfigValue());
+        updateRegisterValue(MPU6050_REG_ADDR_ACCEL_CONFIG, accelRange.getConfigValue());
+        commitRegisterBatch();
+        gyroLSBSensitivity = gyroRange.getLSBSensitivity();
+        accelLSBSensitivity = accelRange.getLSBSensitivity();
+        pipeline.setRanges(gyroRange, accelRange);
 
         // 6. Disable interrupts
         updateRegisterValue(MPU6050_REG_ADDR_INT_ENABLE, 0x00);
@@ -607,6 +896,8 @@ public class MPU6050 extends I2CComponent {
             throw new IllegalArgumentException("The DLPF config must be in the 0..7 range.");
         dlpfCfg  = dlpfConfig;
         updateRegisterValue(MPU6050_REG_ADDR_CONFIG, dlpfCfg);
+        // the gyroscope output rate depends on the DLPF
+        sampleClock.setNominalPeriodNanos(getSamplePeriodNanos());
     }
 
     /**
@@ -616,14 +907,22 @@ public class MPU6050 extends I2CComponent {
      * @return [ACCEL_X, ACCEL_Y, ACCEL_Z], the accelerations in g for the x, y and z axis.
      */
     public double[] readScaledAccelerometerValues() {
-        double accelX = readWord2C(MPU6050_REG_ADDR_ACCEL_XOUT_H);
-        accelX /= accelLSBSensitivity;
-        double accelY = readWord2C(MPU6050_REG_ADDR_ACCEL_YOUT_H);
-        accelY /= accelLSBSensitivity;
-        double accelZ = readWord2C(MPU6050_REG_ADDR_ACCEL_ZOUT_H);
-        accelZ /= accelLSBSensitivity;
+        double[] values = new double[3];
+        readScaledAccelerometerValues(values);
+        return values;
+    }
 
-        return new double[]{accelX, accelY, -accelZ};
+    /**
+     * Reads the most recent accelerometer values on MPU6050 for X, Y and Z axis, in a single
+     * i2c transaction, and stores the corresponding accelerations in g, according to the
+     * selected AFS_SEL mode. Nothing is allocated.
+     * @param values the destination of [ACCEL_X, ACCEL_Y, ACCEL_Z], the accelerations in g for the x, y and z axis.
+     */
+    public void readScaledAccelerometerValues(double[] values) {
+        readRegisters(MPU6050_REG_ADDR_ACCEL_XOUT_H, vectorBuffer, 0, 6);
+        values[X] = decodeWord2C(vectorBuffer, 0) / accelLSBSensitivity;
+        values[Y] = decodeWord2C(vectorBuffer, 2) / accelLSBSensitivity;
+        values[Z] = -decodeWord2C(vectorBuffer, 4) / accelLSBSensitivity;
     }
 
     /**
@@ -633,53 +932,482 @@ public class MPU6050 extends I2CComponent {
      * @return [GYRO_X, GYRO_Y, GYRO_Z], the angular velocities in degrees/sec for the x, y and z axis.
      */
     public double[] readScaledGyroscopeValues() {
-        double gyroX = readWord2C(MPU6050_REG_ADDR_GYRO_XOUT_H);
-        gyroX /= gyroLSBSensitivity;
-        double gyroY = readWord2C(MPU6050_REG_ADDR_GYRO_YOUT_H);
-        gyroY /= gyroLSBSensitivity;
-        double gyroZ = readWord2C(MPU6050_REG_ADDR_GYRO_ZOUT_H);
-        gyroZ /= gyroLSBSensitivity;
+        double[] values = new double[3];
+        readScaledGyroscopeValues(values);
+        return values;
+    }
 
-        return new double[]{gyroX, gyroY, gyroZ};
+    /**
+     * Reads the most recent gyroscope values on the MPU6050 for X, Y and Z axis, in a single
+     * i2c transaction, and stores the corresponding angular speeds in degrees/sec,
+     * according to the selected FS_SEL mode. Nothing is allocated.
+     * @param values the destination of [GYRO_X, GYRO_Y, GYRO_Z], the angular velocities in degrees/sec for the x, y and z axis.
+     */
+    public void readScaledGyroscopeValues(double[] values) {
+        readRegisters(MPU6050_REG_ADDR_GYRO_XOUT_H, vectorBuffer, 0, 6);
+        values[X] = decodeWord2C(vectorBuffer, 0) / gyroLSBSensitivity;
+        values[Y] = decodeWord2C(vectorBuffer, 2) / gyroLSBSensitivity;
+        values[Z] = decodeWord2C(vectorBuffer, 4) / gyroLSBSensitivity;
     }
 
     /**
-     * Callibrate the accelerometer and gyroscope sensors.
+     * Reads the whole sensor data block (accelerometer, temperature and gyroscope) in a single
+     * i2c transaction, and decodes its seven words in values.
+     * <p>All the values come from the same sample, which is not guaranteed when the
+     * registers are read one by one.</p>
+     * @param values the destination of the seven raw words, indexed by RAW_ACCEL_X..RAW_GYRO_Z.
+     * Its length must be at least SENSOR_BLOCK_WORDS.
+     * @see #SENSOR_BLOCK_LENGTH
      */
-    private void calibrateSensors() {
-        int nbReadings = 50;
-
-        // Gyroscope offsets
-        gyroAngularSpeedOffsetX = 0.;
-        gyroAngularSpeedOffsetY = 0.;
-        gyroAngularSpeedOffsetZ = 0.;
-        for(int i = 0; i < nbReadings; i++) {
-            double[] angularSpeeds = readScaledGyroscopeValues();
-            gyroAngularSpeedOffsetX += angularSpeeds[0];
-            gyroAngularSpeedOffsetY += angularSpeeds[1];
-            gyroAngularSpeedOffsetZ += angularSpeeds[2];
+    public void readRawSensorValues(int[] values) {
+        timedReadRegisters(MPU6050_REG_ADDR_ACCEL_XOUT_H, sensorBlockBuffer, SENSOR_BLOCK_LENGTH, metrics.getSensorReadLatency());
+        decodeSensorBlock(sensorBlockBuffer, 0, values);
+    }
+
+    /**
+     * Reads consecutive registers, recording the duration of the transaction, or counting its failure.
+     */
+    private void timedReadRegisters(int reg, byte[] buffer, int length, LatencyHistogram latency) {
+        long start = System.nanoTime();
+        try {
+            readRegisters(reg, buffer, 0, length);
+        } catch (RuntimeException e) {
+            metrics.countBusError();
+            throw e;
+        }
+        latency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Decodes the seven big endian two's complement words of a sensor data block.
+     * @param buffer the buffer containing the sensor data block.
+     * @param offset the index of ACCEL_XOUT_H in buffer.
+     * @param values the destination of the seven raw words.
+     */
+    public static void decodeSensorBlock(byte[] buffer, int offset, int[] values) {
+        for (int i = 0; i < SENSOR_BLOCK_WORDS; i++)
+            values[i] = decodeWord2C(buffer, offset + 2 * i);
+    }
+
+    /**
+     * Decodes a big endian two's complement word.
+     * @param buffer the buffer containing the word.
+     * @param offset the index of the high byte of the word in buffer.
+     * @return the signed value of the word, in the -32768..32767 interval.
+     */
+    public static int decodeWord2C(byte[] buffer, int offset) {
+        // the high byte carries the sign, the low byte is unsigned
+        return (buffer[offset] << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Enables the FIFO buffer, loaded with the accelerometer, temperature and gyroscope measurements.
+     * <p>The FIFO is reset, so that it starts empty and aligned on a frame boundary.</p>
+     * @see #FIFO_EN_ALL_SENSORS
+     */
+    public void enableFifo() {
+        updateRegisterValue(MPU6050_REG_ADDR_FIFO_EN, FIFO_EN_ALL_SENSORS);
+        updateRegisterValue(MPU6050_REG_ADDR_USER_CTRL, USER_CTRL_FIFO_EN);
+        resetFifo();
+    }
+
+    /**
+     * Disables the FIFO buffer.
+     */
+    public void disableFifo() {
+        updateRegisterValue(MPU6050_REG_ADDR_USER_CTRL, 0x00);
+        updateRegisterValue(MPU6050_REG_ADDR_FIFO_EN, 0x00);
+    }
+
+    /**
+     * Empties the FIFO buffer, keeping it enabled.
+     * <p>The FIFO_RESET bit clears itself, so the register can't be checked after the write.</p>
+     */
+    public void resetFifo() {
+        writeUnsignedValueToRegister(MPU6050_REG_ADDR_USER_CTRL, USER_CTRL_FIFO_EN | USER_CTRL_FIFO_RESET);
+    }
+
+    /**
+     * Reads the number of bytes currently stored in the FIFO buffer.
+     * @return the number of bytes in the FIFO, in the 0..FIFO_SIZE interval.
+     */
+    public int readFifoCount() {
+        timedReadRegisters(MPU6050_REG_ADDR_FIFO_COUNT_H, fifoBuffer, 2, metrics.getFifoCountReadLatency());
+        return ((fifoBuffer[0] & 0xFF) << 8) | (fifoBuffer[1] & 0xFF);
+    }
+
+    /**
+     * Drains the whole frames currently stored in the FIFO into batch, in bulk reads.
+     *
+     * <p>The samples are stored from the oldest to the most recent. Their timestamps are reconstructed
+     * by a {@link SampleClock}: they are spaced by the actual sample period of the MPU6050, estimated
+     * from its nominal value ({@link #getSampleRate()}) and corrected against the time of the FIFO count reads.</p>
+     *
+     * <p>If the FIFO overflowed, its content is no longer aligned on a frame boundary: it is reset,
+     * the batch is left empty and marked as overflowed.</p>
+     *
+     * @param batch the destination of the samples. Its previous content is discarded.
+     * @return the number of samples drained.
+     */
+    public int readFifo(SampleBatch batch) {
+        batch.clear();
+        int count = readFifoCount();
+        long readTime = timeSource.nanoTime();
+        if (count >= FIFO_SIZE) {
+            resetFifo();
+            sampleClock.resync();
+            batch.markOverflowed();
+            metrics.countFifoOverflow();
+            return 0;
+        }
+
+        int frames = Math.min(Math.min(count / SENSOR_BLOCK_LENGTH, batch.capacity()), FIFO_MAX_FRAMES);
+        if (frames == 0)
+            return 0;
+
+        timedReadRegisters(MPU6050_REG_ADDR_FIFO_R_W, fifoBuffer, frames * SENSOR_BLOCK_LENGTH, metrics.getFifoReadLatency());
+        int[] values = batch.rawValues();
+        for (int i = 0; i < frames; i++)
+            for (int w = 0; w < SENSOR_BLOCK_WORDS; w++)
+                values[i * SENSOR_BLOCK_WORDS + w] = decodeWord2C(fifoBuffer, i * SENSOR_BLOCK_LENGTH + 2 * w);
+
+        // frames left in the FIFO (batch too small) are more recent than the drained ones:
+        // the last drained frame is one period older per frame still waiting.
+        long pendingFrames = count / SENSOR_BLOCK_LENGTH - frames;
+        long newestTime = readTime - (long) (pendingFrames * sampleClock.getEstimatedPeriodNanos());
+        sampleClock.timestampBatch(newestTime, frames, batch.timestamps());
+        batch.setSize(frames);
+        return frames;
+    }
+
+    /**
+     * @return the sample period of the MPU6050, in nanoseconds.
+     * @see #getSampleRate()
+     */
+    public long getSamplePeriodNanos() {
+        return 1_000_000_000L / getSampleRate();
+    }
+
+    /**
+     * Sets the way the updating thread retrieves the samples.
+     * <p>The FIFO is enabled or disabled accordingly. The mode can't be changed while the updating thread is running.</p>
+     * @param mode the new acquisition mode.
+     */
+    public void setAcquisitionMode(AcquisitionMode mode) {
+        if (!updatingThreadStopped)
+            throw new IllegalStateException("The acquisition mode can't be changed while the updating thread is running.");
+        if (mode == AcquisitionMode.INTERRUPT && dataReadySignal == null)
+            throw new IllegalStateException("A data ready signal must be set before using the INTERRUPT acquisition mode.");
+
+        if (mode == AcquisitionMode.FIFO)
+            enableFifo();
+        else if (acquisitionMode == AcquisitionMode.FIFO)
+            disableFifo();
+
+        if (mode == AcquisitionMode.INTERRUPT) {
+            beginRegisterBatch();
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                updateRegisterValue(MPU6050_REG_ADDR_INT_PIN_CFG, INT_PIN_CFG_DATA_RDY);
+                updateRegisterValue(MPU6050_REG_ADDR_INT_ENABLE, INT_ENABLE_DATA_RDY_EN);
+            } finally {
+                commitRegisterBatch();
+            }
+        } else if (acquisitionMode == AcquisitionMode.INTERRUPT) {
+            updateRegisterValue(MPU6050_REG_ADDR_INT_ENABLE, 0x00);
+        }
+        acquisitionMode = mode;
+    }
+
+    /**
+     * Sets the source of the Data Ready notifications used in INTERRUPT acquisition mode.
+     * @param signal the data ready signal, typically a {@link GpioDataReadySignal} on the GPIO wired to the INT pin.
+     * @see AcquisitionMode#INTERRUPT
+     */
+    public void setDataReadySignal(DataReadySignal signal) {
+        if (!updatingThreadStopped)
+            throw new IllegalStateException("The data ready signal can't be changed while the updating thread is running.");
+        dataReadySignal = signal;
+    }
+
+    /**
+     * @return the way the updating thread retrieves the samples.
+     */
+    public AcquisitionMode getAcquisitionMode() {
+        return acquisitionMode;
+    }
+
+    /**
+     * Sets the period at which the updating thread reads the sensor and updates the values,
+     * in POLLING acquisition mode.
+     * <p>In the other modes, the rate is driven by the MPU6050 sample rate.</p>
+     * @param periodNanos the update period, in nanoseconds. 0 to read the sensor as fast as possible.
+     * @see FixedRateScheduler
+     */
+    public void setUpdatePeriodNanos(long periodNanos) {
+        if (!updatingThreadStopped)
+            throw new IllegalStateException("The update period can't be changed while the updating thread is running.");
+        if (periodNanos < 0)
+            throw new IllegalArgumentException("The update period can't be negative.");
+        scheduler = periodNanos == 0 ? null : new FixedRateScheduler(periodNanos);
+    }
+
+    /**
+     * Selects the sensor fusion algorithm producing the filtered angles.
+     * <p>It can be changed while the updating thread is running: the new filter is reset and
+     * used from the next sample on.</p>
+     * @param filter the fusion filter, used by the updating thread only.
+     * @see FusionAlgorithm
+     */
+    public void setFusionFilter(FusionFilter filter) {
+        if (filter == null)
+            throw new IllegalArgumentException("The fusion filter can't be null.");
+        pipeline.setFusionFilter(filter);
+    }
+
+    /**
+     * @return the sensor fusion algorithm producing the filtered angles.
+     */
+    public FusionFilter getFusionFilter() {
+        return pipeline.getFusionFilter();
+    }
+
+    /**
+     * Get the distribution of the duration of the updates of the current fusion filter, to compare the cost
+     * of the algorithms on the target. The histogram is cleared when the filter is replaced.
+     * @return the histogram of the update durations, in nanoseconds.
+     */
+    public LatencyHistogram getFusionCostHistogram() {
+        return pipeline.getFusionCostHistogram();
+    }
+
+    /**
+     * Get the metrics of the sampling, to publish them over JMX ({@link MPU6050Metrics#registerMBean()})
+     * or to log them periodically ({@link MPU6050Metrics#startReporting(long)}).
+     * @return the metrics of the MPU6050.
+     */
+    public MPU6050Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the source of the timestamps of the samples, {@link TimeSource#SYSTEM} by default.
+     * <p>The time source can only be changed while the updating thread is stopped.</p>
+     * @param timeSource the source of the timestamps.
+     */
+    public void setTimeSource(TimeSource timeSource) {
+        if (!updatingThreadStopped)
+            throw new IllegalStateException("The time source can't be changed while the updating thread is running.");
+        if (timeSource == null)
+            throw new IllegalArgumentException("The time source can't be null.");
+        this.timeSource = timeSource;
+    }
+
+    /**
+     * @return the source of the timestamps of the samples.
+     */
+    public TimeSource getTimeSource() {
+        return timeSource;
+    }
+
+    /**
+     * Get the scheduler pacing the updating thread, which reports the achieved rate, the overruns
+     * and the period jitter.
+     * @return the scheduler, or null if no update period is set.
+     * @see #setUpdatePeriodNanos(long)
+     */
+    public FixedRateScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Calibrates the gyroscope at startup.
+     * <p>The sensor is read at the full sample rate, one burst per sample, until the offsets are known
+     * with GyroCalibrator.DEFAULT_PRECISION (a fraction of a second to two seconds, depending on the noise
+     * and the DLPF setting). The calibration is stored in the calibration cache, under the device name.</p>
+     * <p>When the cache holds a calibration for this device, it is applied at once and only checked with
+     * a few samples. If the measured offsets drifted away from the cached ones, or if the sensor moves
+     * during the check, the gyroscope is recalibrated in background, by the updating thread, once it is
+     * started. The same happens when the sensor moves during a calibration at startup: its rough offsets
+     * are applied meanwhile, and not stored.</p>
+     * <p>The accelerometer is not calibrated.</p>
+     */
+    private void calibrateSensors() {
+        String deviceName = getDeviceName();
+        GyroCalibration cached = calibrationCache == null ? null : calibrationCache.load(deviceName);
+        int correlationLength = getGyroCorrelationLength();
+        if (cached == null) {
+            GyroCalibrator calibrator = new GyroCalibrator(correlationLength);
+            measureGyroCalibration(calibrator);
+            setGyroCalibration(calibrator.getCalibration());
+            if (calibrator.isStationary()) {
+                LOG.info("Gyroscope of {} calibrated: {}", deviceName, gyroCalibration);
+                if (calibrationCache != null)
+                    calibrationCache.store(deviceName, gyroCalibration);
+            } else {
+                LOG.warn("{} moved during the gyroscope calibration, recalibrating in background", deviceName);
+                recalibrateGyroscope();
+            }
+        } else {
+            setGyroCalibration(cached);
+            int checkSamples = Math.max(CALIBRATION_CHECK_SAMPLES, 2 * correlationLength);
+            GyroCalibrator check = new GyroCalibrator(checkSamples, checkSamples, 0., correlationLength);
+            measureGyroCalibration(check);
+            double tolerance = Math.max(CALIBRATION_DRIFT_TOLERANCE, 4 * check.getStandardError());
+            boolean drifted = false;
+            for (int axis = X; axis <= Z; axis++)
+                drifted |= Math.abs(check.getMean(axis) - cached.getOffset(axis)) > tolerance;
+            if (drifted || !check.isStationary()) {
+                LOG.info("Cached gyroscope calibration of {} not confirmed (measured {}), recalibrating in background",
+                        deviceName, check.getCalibration());
+                recalibrateGyroscope();
+            } else {
+                LOG.info("Gyroscope of {} calibrated from the cache: {}", deviceName, cached);
+            }
+        }
+    }
+
+    /**
+     * Feeds a calibrator with samples read at the sample rate, until it is complete.
+     * <p>Only used while the updating thread is stopped, as it reads the sensor.</p>
+     * @param calibrator the calibrator.
+     */
+    private void measureGyroCalibration(GyroCalibrator calibrator) {
+        // the registers are updated once per sample: reading faster would count the same sample twice
+        FixedRateScheduler pacing = new FixedRateScheduler(getSamplePeriodNanos());
+        pacing.start();
+        while (!calibrator.isComplete()) {
+            pacing.awaitNextPeriod();
+            readRawSensorValues(rawSensorValues);
+            calibrator.add(rawSensorValues[RAW_GYRO_X] / gyroLSBSensitivity,
+                    rawSensorValues[RAW_GYRO_Y] / gyroLSBSensitivity,
+                    rawSensorValues[RAW_GYRO_Z] / gyroLSBSensitivity,
+                    rawToTemperature(rawSensorValues[RAW_TEMP]));
+        }
+    }
+
+    private void setGyroCalibration(GyroCalibration calibration) {
+        gyroCalibration = calibration;
+        pipeline.setGyroOffsets(calibration.getOffset(X), calibration.getOffset(Y), calibration.getOffset(Z),
+                calibration.getTemperature());
+    }
+
+    /**
+     * Recalibrates the gyroscope in background: the samples processed by the updating thread are
+     * accumulated until the offsets are known, then the new calibration is applied and stored in the
+     * calibration cache. The accumulation restarts whenever the sensor moves.
+     * <p>Nothing happens while the updating thread is stopped. Does nothing if a recalibration is running.</p>
+     * @see #isRecalibrating()
+     */
+    public synchronized void recalibrateGyroscope() {
+        if (backgroundCalibration != null)
+            return;
+        backgroundCalibration = new BackgroundCalibration(getGyroCorrelationLength());
+        pipeline.addSampleListener(backgroundCalibration);
+    }
+
+    /**
+     * @return true while the gyroscope is recalibrated in background.
+     * @see #recalibrateGyroscope()
+     */
+    public boolean isRecalibrating() {
+        return backgroundCalibration != null;
+    }
+
+    /**
+     * Returns the number of consecutive samples carrying the information of a single independent one:
+     * the DLPF smooths the gyroscope over about 1 / (2 × bandwidth) seconds.
+     * @return the correlation length of the gyroscope samples, at least 1.
+     */
+    public int getGyroCorrelationLength() {
+        return Math.max(1, getSampleRate() / (2 * GYRO_DLPF_BANDWIDTHS[dlpfCfg]));
+    }
+
+    /**
+     * <b>Gyroscope calibration fed by the updating thread.</b>
+     */
+    private final class BackgroundCalibration implements SampleListener {
+
+        private final GyroCalibrator calibrator;
+
+        BackgroundCalibration(int correlationLength) {
+            calibrator = new GyroCalibrator(correlationLength);
+        }
+
+        @Override
+        public void onSample(SensorFrame frame) {
+            // the raw words, as the processed angular speeds are corrected with the offsets being replaced
+            int[] raw = frame.rawValues;
+            double sensitivity = frame.gyroRange.getLSBSensitivity();
+            calibrator.add(raw[RAW_GYRO_X] / sensitivity, raw[RAW_GYRO_Y] / sensitivity,
+                    raw[RAW_GYRO_Z] / sensitivity, frame.temperature);
+            if (!calibrator.isComplete())
+                return;
+            if (!calibrator.isStationary()) {
+                calibrator.reset();
+            } else {
+                GyroCalibration calibration = calibrator.getCalibration();
+                setGyroCalibration(calibration);
+                pipeline.removeSampleListener(this);
+                backgroundCalibration = null;
+                LOG.info("Gyroscope of {} recalibrated: {}", getDeviceName(), calibration);
+                // the cache is written by another thread, the updating thread never waits for storage
+                if (calibrationCache != null)
+                    new Thread(() -> calibrationCache.store(getDeviceName(), calibration), "calibration-cache").start();
             }
         }
-        gyroAngularSpeedOffsetX /= nbReadings;
-        gyroAngularSpeedOffsetY /= nbReadings;
-        gyroAngularSpeedOffsetZ /= nbReadings;
+    }
 
+    /**
+     * Sets the action run by the updating thread when it ends, whether it was stopped or failed on an error.
+     * It runs on the updating thread, after the last sample.
+     * @param handler the action, null for none.
+     */
+    public void setUpdatingThreadTerminationHandler(Runnable handler) {
+        this.updatingThreadTerminationHandler = handler;
     }
 
     /**
      * Starts the thread responsible to update MPU6050 values in background.
      */
-    public void startUpdatingThread() {
+    public synchronized void startUpdatingThread() {
+        if (externallySampled)
+            throw new IllegalStateException("The MPU6050 is sampled by an external thread.");
         if(updatingThread == null || !updatingThread.isAlive()) {
             updatingThreadStopped = false;
-            lastUpdateTime = System.currentTimeMillis();
+            pipeline.restart(timeSource.nanoTime());
+            if (acquisitionMode == AcquisitionMode.FIFO) {
+                resetFifo();
+                sampleClock.resync();
+            }
+            if (scheduler != null)
+                scheduler.start();
             updatingThread = new Thread(() -> {
-                while(!updatingThreadStopped) {
-                    updateValues();
+                try {
+                    while(!updatingThreadStopped) {
+                        long busErrors = metrics.getBusErrorCount();
+                        try {
+                            if (acquisitionMode == AcquisitionMode.FIFO)
+                                updateValuesFromFifo();
+                            else if (acquisitionMode == AcquisitionMode.INTERRUPT)
+                                updateValuesOnDataReady();
+                            else {
+                                if (scheduler != null)
+                                    scheduler.awaitNextPeriod();
+                                updateValues();
+                            }
+                        } catch (RuntimeException e) {
+                            // a failed transaction is counted and the sensor read again, any other error stops the thread
+                            if (metrics.getBusErrorCount() == busErrors)
+                                throw e;
+                            if (busErrors == 0)
+                                LOG.warn("i2c error while sampling {}, the next ones are only counted", getDeviceName(), e);
+                            LockSupport.parkNanos(getSamplePeriodNanos());
+                        }
+                    }
+                } finally {
+                    Runnable handler = updatingThreadTerminationHandler;
+                    if (handler != null)
+                        handler.run();
                 }
             });
             updatingThread.start();
@@ -693,58 +1421,260 @@ public class MPU6050 extends I2CComponent {
      * The interrupted status of the current thread is cleared when this exception is thrown.
      */
     public void stopUpdatingThread() throws InterruptedException {
-        updatingThreadStopped = true;
-        try {
-            updatingThread.join();
-        } catch (InterruptedException e) {
-            throw e;
+        Thread thread;
+        synchronized (this) {
+            updatingThreadStopped = true;
+            thread = updatingThread;
+        }
+        // joined without the lock, which the updating thread takes to write the registers
+        if (thread != null)
+            thread.join();
+        synchronized (this) {
+            if (updatingThread == thread)
+                updatingThread = null;
         }
-        updatingThread = null;
+        // the ranges requested while the thread was stopping
+        applyRangesIfStopped();
     }
 
     public boolean isUpdatingThreadStopped() {
         return updatingThreadStopped;
     }
 
+    /**
+     * Hands the sampling over to an external thread, which calls {@link #updateValues()} at its own pace
+     * (see {@link ImuArray}). The getters then return the processed values, as with the updating thread.
+     * @throws IllegalStateException if the updating thread is running.
+     */
+    synchronized void startExternalSampling() {
+        if (updatingThread != null && updatingThread.isAlive())
+            throw new IllegalStateException("The updating thread of the MPU6050 is running.");
+        externallySampled = true;
+        updatingThreadStopped = false;
+        pipeline.restart(timeSource.nanoTime());
+    }
+
+    /**
+     * Ends the sampling by an external thread, once it doesn't call {@link #updateValues()} anymore.
+     */
+    synchronized void stopExternalSampling() {
+        updatingThreadStopped = true;
+        externallySampled = false;
+    }
+
     /**
      * Update values for the accelerometer angles, gyroscope angles and filtered angles values.
+     * <p><i>This method is used with the updating thread, by the ImuArray bus threads and by the benchmarks.</i></p>
+     */
+    void updateValues() {
+        // Accelerometer, temperature and gyroscope are read in one burst.
+        // The registers are latched when the transaction starts.
+        long timestamp = timeSource.nanoTime();
+        readRawSensorValues(rawSensorValues);
+        processSample(rawSensorValues, 0, timestamp);
+    }
+
+    /**
+     * Waits for the MPU6050 to signal new data, then updates the values with it.
+     * If no notification arrives within a few sample periods, the sensor is read anyway.
      * <p><i>This method is used with the updating thread.</i></p>
      */
-    private void updateValues() {
-        // Accelerometer
-        double[] accelerations = readScaledAccelerometerValues();
-        accelAccelerationX = accelerations[0];
-        accelAccelerationY = accelerations[1];
-        accelAccelerationZ = accelerations[2];
-        accelAngleX = getAccelXAngle(accelAccelerationX, accelAccelerationY, accelAccelerationZ);
-        accelAngleY = getAccelYAngle(accelAccelerationX, accelAccelerationY, accelAccelerationZ);
-        accelAngleZ = getAccelZAngle();
-
-        // Gyroscope
-        double[] angularSpeeds = readScaledGyroscopeValues();
-        gyroAngularSpeedX = angularSpeeds[0] - gyroAngularSpeedOffsetX;
-        gyroAngularSpeedY = angularSpeeds[1] - gyroAngularSpeedOffsetY;
-        gyroAngularSpeedZ = angularSpeeds[2] - gyroAngularSpeedOffsetZ;
-        // angular speed * time = angle
-        double dt = Math.abs(System.currentTimeMillis() - lastUpdateTime) / 1000.; // s
-        double deltaGyroAngleX = gyroAngularSpeedX * dt;
-        double deltaGyroAngleY = gyroAngularSpeedY * dt;
-        double deltaGyroAngleZ = gyroAngularSpeedZ * dt;
-        lastUpdateTime = System.currentTimeMillis();
-
-        gyroAngleX += deltaGyroAngleX;
-        gyroAngleY += deltaGyroAngleY;
-        gyroAngleZ += deltaGyroAngleZ;
-
-        // Complementary Filter
-        double alpha = 0.96;
-        filteredAngleX = alpha * (filteredAngleX + deltaGyroAngleX) + (1. - alpha) * accelAngleX;
-        filteredAngleY = alpha * (filteredAngleY + deltaGyroAngleY) + (1. - alpha) * accelAngleY;
-        filteredAngleZ = filteredAngleZ + deltaGyroAngleZ;
-
-//        long t = System.currentTimeMillis();
-//        System.out.println("Hz: " + (1000. / (t - lastUpdateCompleted)));
-//        lastUpdateCompleted = t;
+    private void updateValuesOnDataReady() {
+        try {
+            if (!dataReadySignal.awaitDataReady(DATA_READY_TIMEOUT_PERIODS * getSamplePeriodNanos()))
+                metrics.countDataReadyTimeout();
+        } catch (InterruptedException e) {
+            updatingThreadStopped = true;
+            Thread.currentThread().interrupt();
+            return;
+        }
+        updateValues();
+    }
+
+    /**
+     * Drains the FIFO and updates the values with each drained sample, in order.
+     * When the FIFO is empty, the thread sleeps while the MPU6050 accumulates half a FIFO of samples.
+     * <p><i>This method is used with the updating thread.</i></p>
+     */
+    private void updateValuesFromFifo() {
+        int samples = readFifo(fifoBatch);
+        if (samples == 0) {
+            LockSupport.parkNanos(FIFO_MAX_FRAMES / 2 * getSamplePeriodNanos());
+            return;
+        }
+
+        int[] values = fifoBatch.rawValues();
+        for (int i = 0; i < samples; i++)
+            processSample(values, i * SENSOR_BLOCK_WORDS, fifoBatch.getTimestampNanos(i));
+    }
+
+    /**
+     * Updates the accelerometer, temperature, gyroscope and filtered values with one sample.
+     * <p><i>This method is used with the updating thread, and by the benchmarks.</i></p>
+     * @param values the raw words of the sample.
+     * @param offset the index of the RAW_ACCEL_X word of the sample in values.
+     * @param timestamp the timestamp of the sample, in nanoseconds (time base of the time source).
+     * @see SensorPipeline#process(int[], int, long)
+     */
+    void processSample(int[] values, int offset, long timestamp) {
+        if (rangeSwitchPending) {
+            // samples from before the switch still use the previous ranges
+            if (timestamp - rangeSwitchTime >= 0) {
+                if (timestamp - rangeSwitchTime < RANGE_SWITCH_SETTLING_PERIODS * getSamplePeriodNanos()) {
+                    // measured with the previous or the new ranges: the next sample is integrated over the gap
+                    rangeSwitchSkippedCount++;
+                    return;
+                }
+                rangeSwitchPending = false;
+                pipeline.setRanges(gyroRange, accelRange);
+                accelLSBSensitivity = accelRange.getLSBSensitivity();
+                gyroLSBSensitivity = gyroRange.getLSBSensitivity();
+            }
+        }
+        pipeline.process(values, offset, timestamp);
+        if (rangeSwitchPending)
+            return;
+        if (autoRanging)
+            autoRange(values, offset, timestamp);
+        if (requestedGyroRange != gyroRange || requestedAccelRange != accelRange) {
+            writeRanges(requestedGyroRange, requestedAccelRange);
+            rangeSwitchTime = timeSource.nanoTime();
+            rangeSwitchPending = true;
+        }
+    }
+
+    /**
+     * Writes the full scale ranges in GYRO_CONFIG and ACCEL_CONFIG, if they changed.
+     */
+    private void writeRanges(GyroRange newGyroRange, AccelRange newAccelRange) {
+        // adjacent registers: a single transaction, only the changed one is written
+        beginRegisterBatch();
+        try {
+            updateRegisterValue(MPU6050_REG_ADDR_GYRO_CONFIG, newGyroRange.getConfigValue());
+            updateRegisterValue(MPU6050_REG_ADDR_ACCEL_CONFIG, newAccelRange.getConfigValue());
+        } finally {
+            commitRegisterBatch();
+        }
+        gyroRange = newGyroRange;
+        accelRange = newAccelRange;
+    }
+
+    /**
+     * Requests a wider range when a value approaches the full scale, and a narrower one when the values
+     * stayed within the narrower range for RANGE_DOWN_HOLD_NANOS. A saturated value selects the widest range
+     * at once, as the real value is unknown.
+     */
+    private void autoRange(int[] values, int offset, long timestamp) {
+        int gyroPeak = Math.max(Math.abs(values[offset + RAW_GYRO_X]),
+                Math.max(Math.abs(values[offset + RAW_GYRO_Y]), Math.abs(values[offset + RAW_GYRO_Z])));
+        if (gyroPeak >= RAW_SATURATION) {
+            requestedGyroRange = GyroRange.DPS_2000;
+            gyroHighTime = timestamp;
+        } else if (gyroPeak >= RANGE_UP_THRESHOLD && gyroRange.wider() != null) {
+            requestedGyroRange = gyroRange.wider();
+            gyroHighTime = timestamp;
+        } else if (gyroPeak >= RANGE_DOWN_THRESHOLD) {
+            gyroHighTime = timestamp;
+        } else if (timestamp - gyroHighTime >= RANGE_DOWN_HOLD_NANOS && gyroRange.narrower() != null) {
+            requestedGyroRange = gyroRange.narrower();
+            gyroHighTime = timestamp;
+        }
+
+        int accelPeak = Math.max(Math.abs(values[offset + RAW_ACCEL_X]),
+                Math.max(Math.abs(values[offset + RAW_ACCEL_Y]), Math.abs(values[offset + RAW_ACCEL_Z])));
+        if (accelPeak >= RAW_SATURATION) {
+            requestedAccelRange = AccelRange.G_16;
+            accelHighTime = timestamp;
+        } else if (accelPeak >= RANGE_UP_THRESHOLD && accelRange.wider() != null) {
+            requestedAccelRange = accelRange.wider();
+            accelHighTime = timestamp;
+        } else if (accelPeak >= RANGE_DOWN_THRESHOLD) {
+            accelHighTime = timestamp;
+        } else if (timestamp - accelHighTime >= RANGE_DOWN_HOLD_NANOS && accelRange.narrower() != null) {
+            requestedAccelRange = accelRange.narrower();
+            accelHighTime = timestamp;
+        }
+    }
+
+    /**
+     * Selects the full scale range of the gyroscope.
+     * <p>While the updating thread runs, the range is switched between two samples, and the samples
+     * measured during the switch are discarded (see getRangeSwitchSkippedCount()). Each processed sample
+     * is tagged with its range ({@link SensorFrame#getGyroRange()}).</p>
+     * @param range the new range.
+     */
+    public void setGyroRange(GyroRange range) {
+        if (range == null)
+            throw new IllegalArgumentException("The gyroscope range can't be null.");
+        requestedGyroRange = range;
+        applyRangesIfStopped();
+    }
+
+    /**
+     * Selects the full scale range of the accelerometer.
+     * <p>While the updating thread runs, the range is switched between two samples, and the samples
+     * measured during the switch are discarded (see getRangeSwitchSkippedCount()). Each processed sample
+     * is tagged with its range ({@link SensorFrame#getAccelRange()}).</p>
+     * @param range the new range.
+     */
+    public void setAccelRange(AccelRange range) {
+        if (range == null)
+            throw new IllegalArgumentException("The accelerometer range can't be null.");
+        requestedAccelRange = range;
+        applyRangesIfStopped();
+    }
+
+    /**
+     * Writes the requested ranges at once if no thread samples the sensor, otherwise the sampling thread
+     * writes them between two samples. Takes the lock of startUpdatingThread(), so no thread starts meanwhile.
+     */
+    private synchronized void applyRangesIfStopped() {
+        if (!updatingThreadStopped || updatingThread != null && updatingThread.isAlive())
+            return;
+        writeRanges(requestedGyroRange, requestedAccelRange);
+        pipeline.setRanges(gyroRange, accelRange);
+        accelLSBSensitivity = accelRange.getLSBSensitivity();
+        gyroLSBSensitivity = gyroRange.getLSBSensitivity();
+    }
+
+    /**
+     * @return the full scale range of the gyroscope of the last processed samples.
+     */
+    public GyroRange getGyroRange() {
+        return pipeline.getGyroRange();
+    }
+
+    /**
+     * @return the full scale range of the accelerometer of the last processed samples.
+     */
+    public AccelRange getAccelRange() {
+        return pipeline.getAccelRange();
+    }
+
+    /**
+     * Enables or disables the automatic selection of the full scale ranges (disabled by default).
+     * <p>When a value approaches the full scale of its range, the next wider range is selected, and
+     * the widest one if the value saturates. When all the values of a sensor stayed within the next
+     * narrower range for RANGE_DOWN_HOLD_NANOS, it is selected back: the resolution is the best at rest,
+     * and the values don't clip during the flips and the jumps.</p>
+     * @param autoRanging true to switch the ranges automatically.
+     */
+    public void setAutoRanging(boolean autoRanging) {
+        this.autoRanging = autoRanging;
+    }
+
+    /**
+     * @return true if the full scale ranges are switched automatically.
+     */
+    public boolean isAutoRanging() {
+        return autoRanging;
+    }
+
+    /**
+     * @return the number of samples discarded because they were measured during a range switch.
+     */
+    public long getRangeSwitchSkippedCount() {
+        return rangeSwitchSkippedCount;
     }
 
     /**
@@ -754,9 +1684,18 @@ public class MPU6050 extends I2CComponent {
      * @return the accelerations for the x, y and z axis. [-1, -1, -1] if the updating thread isn't running.
      */
     public double[] getAccelAccelerations() {
-        if(updatingThreadStopped)
-            return new double[] {-1., -1., -1.};
-        return new double[] {accelAccelerationX, accelAccelerationY, accelAccelerationZ};
+        double[] values = new double[3];
+        getAccelAccelerations(values);
+        return values;
+    }
+
+    /**
+     * Same as {@link #getAccelAccelerations()}, without allocation: the accelerations for the x, y and z axis
+     * are copied into values, [-1, -1, -1] if the updating thread isn't running.
+     * @param values the destination of the accelerations. Its length must be at least 3.
+     */
+    public void getAccelAccelerations(double[] values) {
+        copyVector(snapshot().accelAccelerations, values);
     }
 
     /**
@@ -766,9 +1705,107 @@ public class MPU6050 extends I2CComponent {
      * @return the angle values for the x, y and z axis. [-1, -1, -1] if the updating thread isn't running.
      */
     public double[] getAccelAngles() {
+        double[] values = new double[3];
+        getAccelAngles(values);
+        return values;
+    }
+
+    /**
+     * Same as {@link #getAccelAngles()}, without allocation: the accelerometer angles for the x, y and z axis
+     * are copied into values, [-1, -1, -1] if the updating thread isn't running.
+     * @param values the destination of the accelerometer angles. Its length must be at least 3.
+     */
+    public void getAccelAngles(double[] values) {
+        SensorFrame snapshot = snapshot();
+        if(!fillIfStopped(values))
+            snapshot.getAccelAngles(values);
+    }
+
+    /**
+     * Copies all the values of the last processed sample into a frame.
+     * <p>The values are consistent: they all come from the same sample, whatever the axis or the quantity,
+     * and the updating thread is never blocked by the readers.</p>
+     * <p><i>(using the updating thread)</i></p>
+     * @param destination the frame receiving the values.
+     * @return the sequence number of the sample, 0 if no sample was processed yet.
+     * @see SensorFramePublisher
+     */
+    public long readFrame(SensorFrame destination) {
+        return pipeline.readFrame(destination);
+    }
+
+    /**
+     * Get the number of samples processed so far. Compared with the sequence number of a frame,
+     * it tells whether new data is available, without copying anything.
+     * @return the number of processed samples.
+     */
+    public long getSampleCount() {
+        return pipeline.getSampleCount();
+    }
+
+    /**
+     * Get the history of the last processed samples.
+     * <p>Readers needing every sample (logging, plotting, derivative terms...) create their own
+     * cursor with {@link SampleRingBuffer#newCursor()} and poll it at their own pace, without
+     * slowing the updating thread down.</p>
+     * @return the history of the last DEFAULT_HISTORY_CAPACITY samples.
+     */
+    public SampleRingBuffer getHistory() {
+        return pipeline.getHistory();
+    }
+
+    /**
+     * Get the pipeline processing the samples, to add sample listeners for instance.
+     * @return the sample processing pipeline.
+     */
+    public SensorPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return a copy of the last processed sample, in a frame owned by the calling thread.
+     */
+    private SensorFrame snapshot() {
+        SensorFrame snapshot = readerFrames.get();
+        pipeline.readFrame(snapshot);
+        if (!updatingThreadStopped && snapshot.sequence != 0)
+            metrics.getStaleness().record(timeSource.nanoTime() - snapshot.timestampNanos);
+        return snapshot;
+    }
+
+    /**
+     * Copies a vector of the last processed sample, or [-1, -1, -1] if the updating thread isn't running.
+     * @param source the vector, in the frame of the calling thread.
+     * @param values the destination of the vector.
+     */
+    private void copyVector(double[] source, double[] values) {
+        if(!fillIfStopped(values))
+            System.arraycopy(source, 0, values, 0, 3);
+    }
+
+    /**
+     * Fills values with [-1, -1, -1] if the updating thread isn't running.
+     * @param values the destination of the vector.
+     * @return true if the updating thread isn't running.
+     */
+    private boolean fillIfStopped(double[] values) {
+        if(!updatingThreadStopped)
+            return false;
+        values[X] = -1.;
+        values[Y] = -1.;
+        values[Z] = -1.;
+        return true;
+    }
+
+    /**
+     * Get the last temperature value, in °C, retrieved from the temperature sensor.
+     * <p><i>(using the updating thread)</i></p>
+     * @return the temperature in °C. -1 if the updating thread isn't running.
+     */
+    public double getTemperature() {
         if(updatingThreadStopped)
-            return new double[] {-1., -1., -1.};
-        return new double[] {accelAngleX, accelAngleY, accelAngleZ};
+            return -1.;
+        return snapshot().temperature;
     }
 
     /**
@@ -778,9 +1815,18 @@ public class MPU6050 extends I2CComponent {
      * @return the angular speed values for the x, y and z axis. [-1, -1, -1] if the updating thread isn't running.
      */
     public double[] getGyroAngularSpeeds() {
-        if(updatingThreadStopped)
-            return new double[] {-1., -1., -1.};
-        return new double[] {gyroAngularSpeedX, gyroAngularSpeedY, gyroAngularSpeedZ};
+        double[] values = new double[3];
+        getGyroAngularSpeeds(values);
+        return values;
+    }
+
+    /**
+     * Same as {@link #getGyroAngularSpeeds()}, without allocation: the angular speeds for the x, y and z axis
+     * are copied into values, [-1, -1, -1] if the updating thread isn't running.
+     * @param values the destination of the angular speeds. Its length must be at least 3.
+     */
+    public void getGyroAngularSpeeds(double[] values) {
+        copyVector(snapshot().gyroAngularSpeeds, values);
     }
 
     /**
@@ -790,19 +1836,69 @@ public class MPU6050 extends I2CComponent {
      * @return the angles values from the gyroscope for the x, y and z axis. [-1, -1, -1] if the updating thread isn't running.
      */
     public double[] getGyroAngles() {
+        double[] values = new double[3];
+        getGyroAngles(values);
+        return values;
+    }
+
+    /**
+     * Same as {@link #getGyroAngles()}, without allocation: the gyroscope angles for the x, y and z axis
+     * are copied into values, [-1, -1, -1] if the updating thread isn't running.
+     * @param values the destination of the gyroscope angles. Its length must be at least 3.
+     */
+    public void getGyroAngles(double[] values) {
+        SensorFrame snapshot = snapshot();
+        if(!fillIfStopped(values))
+            snapshot.getGyroAngles(values);
+    }
+
+    /**
+     * Get the last orientation integrated from the gyroscope, since the start of the updating thread.
+     * <p>Unlike the gyroscope angles, it has no singularity: it is the attitude to use for control.</p>
+     * <p><i>(using the updating thread)</i></p>
+     * @param destination the quaternion receiving the orientation. Identity if the updating thread isn't running.
+     */
+    public void getGyroAttitude(Quaternion destination) {
         if(updatingThreadStopped)
-            return new double[] {-1., -1., -1.};
-        return new double[] {gyroAngleX, gyroAngleY, gyroAngleZ};
+            destination.setIdentity();
+        else
+            snapshot().getGyroAttitude(destination);
+    }
+
+    /**
+     * @return the LSB sensitivity of the accelerometer (raw value per g), for the selected AFS_SEL.
+     */
+    public double getAccelLSBSensitivity() {
+        return accelLSBSensitivity;
+    }
+
+    /**
+     * @return the LSB sensitivity of the gyroscope (raw value per °/sec), for the selected FS_SEL.
+     */
+    public double getGyroLSBSensitivity() {
+        return gyroLSBSensitivity;
     }
 
     /**
      * Get the calculated offsets for the angular speeds from the gyroscope,
      * for the x, y and z axis.
-     * <p><i>(calculated with the calibration function)</i></p>
+     * <p><i>(calculated with the calibration function, then tracked with the temperature and during the
+     * stationary periods)</i></p>
      * @return the offsets for the angular speeds from the gyroscope.
+     * @see SensorPipeline#setGyroBiasTracking(boolean)
      */
     public double[] getGyroAngularSpeedsOffsets() {
-        return new double[] {gyroAngularSpeedOffsetX, gyroAngularSpeedOffsetY, gyroAngularSpeedOffsetZ};
+        double[] offsets = new double[3];
+        pipeline.getGyroOffsets(offsets);
+        return offsets;
+    }
+
+    /**
+     * @return the calibration of the gyroscope currently applied.
+     * @see #calibrateSensors()
+     */
+    public GyroCalibration getGyroCalibration() {
+        return gyroCalibration;
     }
 
     /**
@@ -812,9 +1908,18 @@ public class MPU6050 extends I2CComponent {
      * @return the angles values, in °, filtered with values from the accelerometer and the gyroscope.
      */
     public double[] getFilteredAngles() {
-        if(updatingThreadStopped)
-            return new double[] {-1., -1., -1.};
-        return new double[] {filteredAngleX, filteredAngleY, filteredAngleZ};
+        double[] values = new double[3];
+        getFilteredAngles(values);
+        return values;
+    }
+
+    /**
+     * Same as {@link #getFilteredAngles()}, without allocation: the filtered angles for the x, y and z axis
+     * are copied into values, [-1, -1, -1] if the updating thread isn't running.
+     * @param values the destination of the filtered angles. Its length must be at least 3.
+     */
+    public void getFilteredAngles(double[] values) {
+        copyVector(snapshot().filteredAngles, values);
     }
 
     /* -----------------------------------------------------------------------
@@ -823,17 +1928,14 @@ public class MPU6050 extends I2CComponent {
 
     /**
      * This method updates the value of a specific register with a specific value.
-     * The method also checks that the update was successfull.
+     * The register is only written if its value changed, and the update is checked according to the
+     * verify mode (see I2CComponent#setVerifyMode(VerifyMode)).
      * @param address the address of the register to update.
      * @param value the new value to set in the register.
+     * @see I2CComponent#updateRegister(int, int)
      */
     public void updateRegisterValue(int address, int value) {
-        writeUnsignedValueToRegister(address, value);
-        // we check that the value of the register has been updated
-        int readRegisterValue = readUnsignedRegisterValue(address);
-        if(readRegisterValue != value)
-            throw new RuntimeException("Error when updating the MPU6050 register value (register: " +
-                    address + ", value: " + value + ", actual value was: " + readRegisterValue);
+        updateRegister(address, value);
     }
 
     /**
@@ -846,84 +1948,13 @@ public class MPU6050 extends I2CComponent {
     }
 
     /**
-     * Reads the content of two consecutive registers, starting at registerAddress,
-     * and returns the int representation of the combination of those registers,
-     * with a two's complement representation.
-     * @param registerAddress the address of the first register to read.
-     * @return the int representation of the combination of the two consecutive
-     * registers, with a two's complement representation.
+     * Converts a raw TEMP_OUT word to a temperature in °C.
+     * <p><b>[datasheet 2 - p.30]</b> Temperature in degrees C = (TEMP_OUT Register Value as a signed quantity)/340 + 36.53</p>
+     * @param rawTemperature the signed TEMP_OUT word.
+     * @return the temperature in °C.
      */
-    private int readWord2C(int registerAddress) {
-        int value = readRegisterValue(registerAddress);
-        value = value << 8;
-        value += readRegisterValue(registerAddress + 1);
-
-        if (value >= 0x8000)
-            value = -(65536 - value);
-        return value;
-    }
-
-    /**
-     * Get the distance between two points.
-     * @param a the first point.
-     * @param b the second point.
-     * @return the distance between a and b.
-     */
-    private double distance(double a, double b) {
-        return Math.sqrt(a * a + b * b);
-    }
-
-    private double getAccelXAngle(double x, double y, double z) {
-        // v1 - 360
-        double radians = Math.atan2(y, distance(x, z));
-        double delta = 0.;
-        if(y >= 0) {
-            if(z >= 0) {
-                // pass
-            } else {
-                radians *= -1;
-                delta = 180.;
-            }
-        } else {
-            if(z <= 0) {
-                radians *= -1;
-                delta = 180.;
-            } else {
-                delta = 360.;
-            }
-        }
-        return radians * RADIAN_TO_DEGREE + delta;
-    }
-
-    private double getAccelYAngle(double x, double y, double z) {
-        // v2
-        double tan = -1 * x / distance(y, z);
-        double delta = 0.;
-        if(x <= 0) {
-            if(z >= 0) {
-                // q1
-                // nothing to do
-            } else {
-                // q2
-                tan *= -1;
-                delta = 180.;
-            }
-        } else {
-            if(z <= 0) {
-                // q3
-                tan *= -1;
-                delta = 180.;
-            } else {
-                // q4
-                delta = 360.;
-            }
-        }
-
-        return Math.atan(tan) * RADIAN_TO_DEGREE + delta;
-    }
-
-    private double getAccelZAngle() {
-        return ACCEL_Z_ANGLE;
+    public static double rawToTemperature(int rawTemperature) {
+        return rawTemperature / 340. + 36.53;
     }
 
     /**
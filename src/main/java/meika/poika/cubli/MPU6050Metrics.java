@@ -0,0 +1,367 @@
+package meika.poika.cubli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * <b>Metrics of the sampling of an MPU6050: rate, i2c latencies, fusion cost, overruns, errors and staleness.</b>
+ *
+ * <p>The sampling thread only increments counters and records durations in {@link LatencyHistogram}s:
+ * nothing is allocated, and nothing is computed on the hot path. The percentiles are computed when they
+ * are read, by the JMX clients or by the reporting thread; the achieved rate is measured by the reporting
+ * thread, over each reporting period, and the getters only read it.</p>
+ *
+ * <p>The metrics are published as an MXBean named "meika.poika.cubli:type=MPU6050,name=&lt;device name&gt;"
+ * (see {@link #registerMBean()}), and can be logged periodically in one compact line
+ * (see {@link #startReporting(long)}). The line is logged as a warning when the achieved rate drops below
+ * LOW_RATE_RATIO of the nominal rate, long before the filtered angles degrade.</p>
+ */
+public class MPU6050Metrics implements MPU6050MetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MPU6050Metrics.class);
+
+    /**
+     * Domain of the MBeans of the application.
+     */
+    public static final String JMX_DOMAIN = "meika.poika.cubli";
+
+    /**
+     * Minimum duration over which the achieved sample rate is measured, in ns: the shortest reporting period.
+     */
+    public static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    /**
+     * Fraction of the nominal rate under which the reported line is a warning.
+     */
+    public static final double LOW_RATE_RATIO = 0.9;
+
+    private final MPU6050 mpu6050;
+
+    private final LatencyHistogram sensorReadLatency = new LatencyHistogram();
+    private final LatencyHistogram fifoCountReadLatency = new LatencyHistogram();
+    private final LatencyHistogram fifoReadLatency = new LatencyHistogram();
+    private final LatencyHistogram staleness = new LatencyHistogram();
+
+    /*
+     * Counters, incremented by the sampling thread only.
+     */
+    private volatile long busErrorCount = 0;
+    private volatile long fifoOverflowCount = 0;
+    private volatile long dataReadyTimeoutCount = 0;
+
+    /*
+     * Rate window, moved by the reporting thread only (guarded by this across restarts of the reporting).
+     */
+    private long rateWindowStart;
+    private long rateWindowSamples;
+    private volatile double sampleRate = 0.;
+
+    private ObjectName objectName;
+    private volatile Thread reportingThread;
+
+    /**
+     * Constructor for the metrics of an MPU6050.
+     * @param mpu6050 the MPU6050.
+     */
+    MPU6050Metrics(MPU6050 mpu6050) {
+        this.mpu6050 = mpu6050;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              RECORDING
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * @return the distribution of the durations of the burst reads of the sensor data block, in ns.
+     */
+    public LatencyHistogram getSensorReadLatency() {
+        return sensorReadLatency;
+    }
+
+    /**
+     * @return the distribution of the durations of the reads of FIFO_COUNT, in ns.
+     */
+    public LatencyHistogram getFifoCountReadLatency() {
+        return fifoCountReadLatency;
+    }
+
+    /**
+     * @return the distribution of the durations of the bulk reads of the FIFO, in ns.
+     */
+    public LatencyHistogram getFifoReadLatency() {
+        return fifoReadLatency;
+    }
+
+    /**
+     * @return the distribution of the age of the samples returned by the getters of the MPU6050, in ns.
+     */
+    public LatencyHistogram getStaleness() {
+        return staleness;
+    }
+
+    void countBusError() {
+        busErrorCount++;
+    }
+
+    void countFifoOverflow() {
+        fifoOverflowCount++;
+    }
+
+    void countDataReadyTimeout() {
+        dataReadyTimeoutCount++;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              MXBEAN
+     * -----------------------------------------------------------------------*/
+
+    @Override
+    public String getDeviceName() {
+        return mpu6050.getDeviceName();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return !mpu6050.isUpdatingThreadStopped();
+    }
+
+    @Override
+    public long getSampleCount() {
+        return mpu6050.getSampleCount();
+    }
+
+    /**
+     * The rate is the one of the last reporting period (see {@link #startReporting(long)}), so a stalled loop
+     * shows a null rate at the next report; 0 until the first report. Reading it changes nothing.
+     */
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public double getNominalSampleRate() {
+        FixedRateScheduler scheduler = mpu6050.getScheduler();
+        if (scheduler != null && mpu6050.getAcquisitionMode() == MPU6050.AcquisitionMode.POLLING)
+            return 1e9 / scheduler.getPeriodNanos();
+        return mpu6050.getSampleRate();
+    }
+
+    @Override
+    public long getOverrunCount() {
+        FixedRateScheduler scheduler = mpu6050.getScheduler();
+        return scheduler == null ? 0 : scheduler.getOverrunCount();
+    }
+
+    @Override
+    public long getMissedPeriodCount() {
+        FixedRateScheduler scheduler = mpu6050.getScheduler();
+        return scheduler == null ? 0 : scheduler.getMissedPeriodCount();
+    }
+
+    @Override
+    public long getFifoOverflowCount() {
+        return fifoOverflowCount;
+    }
+
+    @Override
+    public long getDataReadyTimeoutCount() {
+        return dataReadyTimeoutCount;
+    }
+
+    @Override
+    public long getBusErrorCount() {
+        return busErrorCount;
+    }
+
+    @Override
+    public long getRangeSwitchSkippedCount() {
+        return mpu6050.getRangeSwitchSkippedCount();
+    }
+
+    @Override
+    public long getRegisterWriteCount() {
+        return mpu6050.getRegisterWriteCount();
+    }
+
+    @Override
+    public double getSensorReadP50Micros() {
+        return sensorReadLatency.getPercentile(50) / 1000.;
+    }
+
+    @Override
+    public double getSensorReadP99Micros() {
+        return sensorReadLatency.getPercentile(99) / 1000.;
+    }
+
+    @Override
+    public double getSensorReadMaxMicros() {
+        return sensorReadLatency.getMax() / 1000.;
+    }
+
+    @Override
+    public double getFifoCountReadP99Micros() {
+        return fifoCountReadLatency.getPercentile(99) / 1000.;
+    }
+
+    @Override
+    public double getFifoReadP99Micros() {
+        return fifoReadLatency.getPercentile(99) / 1000.;
+    }
+
+    @Override
+    public double getFusionP50Micros() {
+        return mpu6050.getFusionCostHistogram().getPercentile(50) / 1000.;
+    }
+
+    @Override
+    public double getFusionP99Micros() {
+        return mpu6050.getFusionCostHistogram().getPercentile(99) / 1000.;
+    }
+
+    @Override
+    public double getFusionMaxMicros() {
+        return mpu6050.getFusionCostHistogram().getMax() / 1000.;
+    }
+
+    @Override
+    public double getStalenessP99Micros() {
+        return staleness.getPercentile(99) / 1000.;
+    }
+
+    @Override
+    public double getStalenessMaxMicros() {
+        return staleness.getMax() / 1000.;
+    }
+
+    @Override
+    public double getJitterP99Micros() {
+        FixedRateScheduler scheduler = mpu6050.getScheduler();
+        return scheduler == null ? 0. : scheduler.getJitterHistogram().getPercentile(99) / 1000.;
+    }
+
+    @Override
+    public void resetHistograms() {
+        sensorReadLatency.reset();
+        fifoCountReadLatency.reset();
+        fifoReadLatency.reset();
+        staleness.reset();
+        mpu6050.getFusionCostHistogram().reset();
+        FixedRateScheduler scheduler = mpu6050.getScheduler();
+        if (scheduler != null)
+            scheduler.getJitterHistogram().reset();
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              PUBLICATION
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * Registers the metrics in the platform MBean server. A failure is logged, the sampling doesn't depend on it.
+     */
+    public synchronized void registerMBean() {
+        if (objectName != null)
+            return;
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=MPU6050,name=" + getDeviceName());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("Cannot register the metrics of {}: {}", getDeviceName(), e.toString());
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.warn("Cannot unregister the metrics of {}: {}", getDeviceName(), e.toString());
+        }
+        objectName = null;
+    }
+
+    /**
+     * Returns the metrics in one compact line, in the "name rate=xHz/xHz samples=n overruns=n missed=n
+     * fifoOverflows=n drdyTimeouts=n busErrors=n read p99=xus fusion p99=xus stale p99=xus max=xus" format.
+     * @return the summary of the metrics.
+     */
+    public String summary() {
+        return String.format("%s rate=%.1fHz/%.0fHz samples=%d overruns=%d missed=%d fifoOverflows=%d drdyTimeouts=%d busErrors=%d"
+                        + " read p99=%.1fus fusion p99=%.1fus stale p99=%.1fus max=%.1fus",
+                getDeviceName(), getSampleRate(), getNominalSampleRate(), getSampleCount(), getOverrunCount(),
+                getMissedPeriodCount(), getFifoOverflowCount(), getDataReadyTimeoutCount(), getBusErrorCount(),
+                getSensorReadP99Micros(), getFusionP99Micros(), getStalenessP99Micros(), getStalenessMaxMicros());
+    }
+
+    /**
+     * Starts a daemon thread logging the summary of the metrics periodically. The line is a warning
+     * while the samples are processed below LOW_RATE_RATIO of the nominal rate.
+     * @param periodMillis the logging period, in ms. At least RATE_WINDOW_NANOS, for a meaningful rate.
+     */
+    public synchronized void startReporting(long periodMillis) {
+        if (periodMillis * 1_000_000L < RATE_WINDOW_NANOS)
+            throw new IllegalArgumentException("The reporting period must be at least " + RATE_WINDOW_NANOS / 1_000_000 + " ms.");
+        if (reportingThread != null)
+            throw new IllegalStateException("The metrics of " + getDeviceName() + " are already reported.");
+        Thread thread = new Thread(() -> {
+            startRateWindow();
+            while (reportingThread == Thread.currentThread()) {
+                try {
+                    Thread.sleep(periodMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                closeRateWindow();
+                report();
+            }
+        }, "metrics-" + getDeviceName());
+        thread.setDaemon(true);
+        reportingThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the periodic logging of the metrics.
+     */
+    public synchronized void stopReporting() {
+        Thread thread = reportingThread;
+        reportingThread = null;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private synchronized void startRateWindow() {
+        rateWindowStart = System.nanoTime();
+        rateWindowSamples = getSampleCount();
+    }
+
+    /**
+     * Measures the rate since the start of the window, and starts the next window.
+     */
+    private synchronized void closeRateWindow() {
+        long now = System.nanoTime();
+        long samples = getSampleCount();
+        sampleRate = (samples - rateWindowSamples) * 1e9 / (now - rateWindowStart);
+        rateWindowStart = now;
+        rateWindowSamples = samples;
+    }
+
+    private void report() {
+        String line = summary();
+        if (isRunning() && sampleRate < LOW_RATE_RATIO * getNominalSampleRate())
+            LOG.warn("Low sample rate: {}", line);
+        else
+            LOG.info(line);
+    }
+}
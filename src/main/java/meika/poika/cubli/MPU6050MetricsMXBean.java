@@ -0,0 +1,132 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Management interface of the metrics of an MPU6050, published over JMX.</b>
+ *
+ * <p>The durations are in microseconds, the rates in Hz. The counters count from the creation of the
+ * MPU6050, the distributions from the creation or the last {@link #resetHistograms()}.</p>
+ *
+ * @see MPU6050Metrics
+ */
+public interface MPU6050MetricsMXBean {
+
+    /**
+     * @return the name of the device: its bus and its address.
+     */
+    String getDeviceName();
+
+    /**
+     * @return true while the samples are processed.
+     */
+    boolean isRunning();
+
+    /**
+     * @return the number of processed samples.
+     */
+    long getSampleCount();
+
+    /**
+     * @return the sample rate achieved over the last reporting period, in Hz, 0 if the metrics are not reported.
+     */
+    double getSampleRate();
+
+    /**
+     * @return the rate the loop should achieve, in Hz.
+     */
+    double getNominalSampleRate();
+
+    /**
+     * @return the number of iterations of the polling loop which took longer than a period.
+     */
+    long getOverrunCount();
+
+    /**
+     * @return the number of periods skipped by the polling loop because of overruns.
+     */
+    long getMissedPeriodCount();
+
+    /**
+     * @return the number of FIFO overflows, each losing the content of the FIFO.
+     */
+    long getFifoOverflowCount();
+
+    /**
+     * @return the number of Data Ready notifications which didn't arrive in time.
+     */
+    long getDataReadyTimeoutCount();
+
+    /**
+     * @return the number of failed i2c transactions of the sampling.
+     */
+    long getBusErrorCount();
+
+    /**
+     * @return the number of samples discarded during range switches.
+     */
+    long getRangeSwitchSkippedCount();
+
+    /**
+     * @return the number of register write transactions.
+     */
+    long getRegisterWriteCount();
+
+    /**
+     * @return the median duration of the burst reads of the sensor data block.
+     */
+    double getSensorReadP50Micros();
+
+    /**
+     * @return the 99th percentile of the duration of the burst reads of the sensor data block.
+     */
+    double getSensorReadP99Micros();
+
+    /**
+     * @return the longest burst read of the sensor data block.
+     */
+    double getSensorReadMaxMicros();
+
+    /**
+     * @return the 99th percentile of the duration of the reads of FIFO_COUNT.
+     */
+    double getFifoCountReadP99Micros();
+
+    /**
+     * @return the 99th percentile of the duration of the bulk reads of the FIFO.
+     */
+    double getFifoReadP99Micros();
+
+    /**
+     * @return the median duration of the updates of the fusion filter.
+     */
+    double getFusionP50Micros();
+
+    /**
+     * @return the 99th percentile of the duration of the updates of the fusion filter.
+     */
+    double getFusionP99Micros();
+
+    /**
+     * @return the longest update of the fusion filter.
+     */
+    double getFusionMaxMicros();
+
+    /**
+     * @return the 99th percentile of the age of the sample returned to the readers of the getters.
+     */
+    double getStalenessP99Micros();
+
+    /**
+     * @return the largest age of the sample returned to the readers of the getters.
+     */
+    double getStalenessMaxMicros();
+
+    /**
+     * @return the 99th percentile of the jitter of the period of the polling loop.
+     */
+    double getJitterP99Micros();
+
+    /**
+     * Forgets the recorded durations, to observe the distributions from now on.
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,79 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Madgwick gradient descent orientation filter (IMU version).</b>
+ *
+ * <p>The quaternion is integrated from the gyroscope, and pulled towards the orientation
+ * matching the measured gravity by one gradient descent step per sample, of size beta.</p>
+ *
+ * <p>S. O. H. Madgwick, "An efficient orientation filter for inertial and inertial/magnetic sensor arrays", 2010.</p>
+ */
+public class MadgwickFilter extends QuaternionFusionFilter {
+
+    /**
+     * Default gain of the gradient descent step, in rad/s.
+     */
+    public static final double DEFAULT_BETA = 0.1;
+
+    /**
+     * Gain of the gradient descent step, in rad/s.
+     */
+    private final double beta;
+
+    /**
+     * Constructor for a new Madgwick filter with the DEFAULT_BETA gain.
+     */
+    public MadgwickFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    /**
+     * Constructor for a new Madgwick filter.
+     * @param beta the gain of the gradient descent step, in rad/s.
+     */
+    public MadgwickFilter(double beta) {
+        this.beta = beta;
+    }
+
+    @Override
+    protected void update(double ax, double ay, double az, double gx, double gy, double gz, double dt) {
+        // rate of change of the quaternion from the gyroscope
+        double qDot0 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot1 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot2 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot3 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+
+        double accelNorm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (accelNorm > 0.) {
+            ax /= accelNorm;
+            ay /= accelNorm;
+            az /= accelNorm;
+
+            double q0q0 = q0 * q0;
+            double q1q1 = q1 * q1;
+            double q2q2 = q2 * q2;
+            double q3q3 = q3 * q3;
+
+            // gradient of the objective function
+            double s0 = 4. * q0 * q2q2 + 2. * q2 * ax + 4. * q0 * q1q1 - 2. * q1 * ay;
+            double s1 = 4. * q1 * q3q3 - 2. * q3 * ax + 4. * q0q0 * q1 - 2. * q0 * ay - 4. * q1
+                    + 8. * q1 * q1q1 + 8. * q1 * q2q2 + 4. * q1 * az;
+            double s2 = 4. * q0q0 * q2 + 2. * q0 * ax + 4. * q2 * q3q3 - 2. * q3 * ay - 4. * q2
+                    + 8. * q2 * q1q1 + 8. * q2 * q2q2 + 4. * q2 * az;
+            double s3 = 4. * q1q1 * q3 - 2. * q1 * ax + 4. * q2q2 * q3 - 2. * q2 * ay;
+            double stepNorm = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+            if (stepNorm > 0.) {
+                qDot0 -= beta * s0 / stepNorm;
+                qDot1 -= beta * s1 / stepNorm;
+                qDot2 -= beta * s2 / stepNorm;
+                qDot3 -= beta * s3 / stepNorm;
+            }
+        }
+
+        q0 += qDot0 * dt;
+        q1 += qDot1 * dt;
+        q2 += qDot2 * dt;
+        q3 += qDot3 * dt;
+        normalize();
+    }
+}
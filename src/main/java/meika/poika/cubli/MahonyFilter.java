@@ -0,0 +1,102 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Mahony nonlinear complementary filter on SO(3) (IMU version).</b>
+ *
+ * <p>The error between the measured gravity and the gravity predicted by the quaternion
+ * is fed back into the angular speeds through a proportional-integral controller.
+ * The integral term estimates and removes the gyroscope bias.</p>
+ *
+ * <p>R. Mahony, T. Hamel, J.-M. Pflimlin, "Nonlinear Complementary Filters on the Special Orthogonal Group", 2008.</p>
+ */
+public class MahonyFilter extends QuaternionFusionFilter {
+
+    /**
+     * Default proportional gain.
+     */
+    public static final double DEFAULT_KP = 0.5;
+
+    /**
+     * Default integral gain.
+     */
+    public static final double DEFAULT_KI = 0.05;
+
+    private final double kp;
+    private final double ki;
+
+    /**
+     * Integral of the error (gyroscope bias estimate), in rad/s.
+     */
+    private double integralX = 0.;
+    private double integralY = 0.;
+    private double integralZ = 0.;
+
+    /**
+     * Constructor for a new Mahony filter with the default gains.
+     */
+    public MahonyFilter() {
+        this(DEFAULT_KP, DEFAULT_KI);
+    }
+
+    /**
+     * Constructor for a new Mahony filter.
+     * @param kp the proportional gain.
+     * @param ki the integral gain. 0 disables the bias estimation.
+     */
+    public MahonyFilter(double kp, double ki) {
+        this.kp = kp;
+        this.ki = ki;
+    }
+
+    @Override
+    protected void update(double ax, double ay, double az, double gx, double gy, double gz, double dt) {
+        double accelNorm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (accelNorm > 0.) {
+            ax /= accelNorm;
+            ay /= accelNorm;
+            az /= accelNorm;
+
+            // predicted gravity direction (half)
+            double halfVx = q1 * q3 - q0 * q2;
+            double halfVy = q0 * q1 + q2 * q3;
+            double halfVz = q0 * q0 - 0.5 + q3 * q3;
+
+            // error: cross product between the measured and the predicted gravity
+            double halfEx = ay * halfVz - az * halfVy;
+            double halfEy = az * halfVx - ax * halfVz;
+            double halfEz = ax * halfVy - ay * halfVx;
+
+            if (ki > 0.) {
+                integralX += 2. * ki * halfEx * dt;
+                integralY += 2. * ki * halfEy * dt;
+                integralZ += 2. * ki * halfEz * dt;
+                gx += integralX;
+                gy += integralY;
+                gz += integralZ;
+            }
+            gx += 2. * kp * halfEx;
+            gy += 2. * kp * halfEy;
+            gz += 2. * kp * halfEz;
+        }
+
+        gx *= 0.5 * dt;
+        gy *= 0.5 * dt;
+        gz *= 0.5 * dt;
+        double qa = q0;
+        double qb = q1;
+        double qc = q2;
+        q0 += -qb * gx - qc * gy - q3 * gz;
+        q1 += qa * gx + qc * gz - q3 * gy;
+        q2 += qa * gy - qb * gz + q3 * gx;
+        q3 += qa * gz + qb * gy - qc * gx;
+        normalize();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        integralX = 0.;
+        integralY = 0.;
+        integralZ = 0.;
+    }
+}
@@ -0,0 +1,47 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Time source which only moves when it is told to.</b>
+ *
+ * <p>It follows the recorded timestamps during a replay, or the simulated time of a simulation
+ * running faster than real time.</p>
+ */
+public class ManualTimeSource implements TimeSource {
+
+    private volatile long time;
+
+    /**
+     * Constructor for a time source starting at 0.
+     */
+    public ManualTimeSource() {
+        this(0);
+    }
+
+    /**
+     * Constructor for a time source starting at a specific time.
+     * @param time the initial time, in nanoseconds.
+     */
+    public ManualTimeSource(long time) {
+        this.time = time;
+    }
+
+    @Override
+    public long nanoTime() {
+        return time;
+    }
+
+    /**
+     * @param time the new current time, in nanoseconds.
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Moves the time forward.
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void advance(long nanos) {
+        time += nanos;
+    }
+}
@@ -0,0 +1,66 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Motion applied to a simulated MPU6050.</b>
+ *
+ * <p>A profile gives, at any time, what an ideal MPU6050 would measure: the specific force
+ * (acceleration minus gravity, so +1 g on the z axis when lying flat at rest) and the angular speeds
+ * (right-handed), both in the sensor frame, before bias, noise and quantization.</p>
+ *
+ * @see SimulatedMPU6050#setMotionProfile(MotionProfile)
+ */
+@FunctionalInterface
+public interface MotionProfile {
+
+    /**
+     * Computes the ideal measurements at a specific time.
+     * @param time the time since the start of the simulation, in seconds.
+     * @param acceleration the destination of the accelerations, in g, for the x, y and z axis.
+     * @param angularSpeed the destination of the angular speeds, in °/sec, around the x, y and z axis.
+     */
+    void sample(double time, double[] acceleration, double[] angularSpeed);
+
+    /**
+     * @return a profile lying flat at rest.
+     */
+    static MotionProfile stationary() {
+        return tilted(0.);
+    }
+
+    /**
+     * @param angle the rotation, in °, around the x axis.
+     * @return a profile at rest, rotated around the x axis.
+     */
+    static MotionProfile tilted(double angle) {
+        double radians = angle * MPU6050.DEGREE_TO_RADIAN;
+        double y = Math.sin(radians);
+        double z = Math.cos(radians);
+        return (time, acceleration, angularSpeed) -> {
+            acceleration[0] = 0.;
+            acceleration[1] = y;
+            acceleration[2] = z;
+            angularSpeed[0] = 0.;
+            angularSpeed[1] = 0.;
+            angularSpeed[2] = 0.;
+        };
+    }
+
+    /**
+     * A sinusoidal rotation around the x axis, like a pendulum (the linear accelerations are neglected).
+     * @param amplitude the amplitude of the rotation, in °.
+     * @param frequency the frequency of the rotation, in Hz.
+     * @return a profile swinging around the x axis, starting flat.
+     */
+    static MotionProfile swinging(double amplitude, double frequency) {
+        double omega = 2. * Math.PI * frequency;
+        return (time, acceleration, angularSpeed) -> {
+            double radians = amplitude * Math.sin(omega * time) * MPU6050.DEGREE_TO_RADIAN;
+            acceleration[0] = 0.;
+            acceleration[1] = Math.sin(radians);
+            acceleration[2] = Math.cos(radians);
+            angularSpeed[0] = amplitude * omega * Math.cos(omega * time);
+            angularSpeed[1] = 0.;
+            angularSpeed[2] = 0.;
+        };
+    }
+}
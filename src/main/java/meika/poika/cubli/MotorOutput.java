@@ -0,0 +1,38 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Output driving the motor of a reaction wheel.</b>
+ *
+ * <p>The command is a torque demand normalized to the -1..1 interval: its magnitude is the fraction of
+ * the maximum torque of the motor, its sign the direction of the torque applied to the wheel. The body
+ * of the Cubli receives the opposite torque.</p>
+ *
+ * <p>The command is set by the {@link BalanceController}, on the updating thread of the MPU6050, once
+ * per sample: the implementations must neither block nor allocate.</p>
+ */
+public interface MotorOutput extends AutoCloseable {
+
+    /**
+     * Sets the torque demand of the motor.
+     * @param command the normalized torque, clamped to the -1..1 interval.
+     */
+    void setCommand(double command);
+
+    /**
+     * @return the last torque demand, in the -1..1 interval.
+     */
+    double getCommand();
+
+    /**
+     * Stops driving the motor: the wheel spins freely.
+     */
+    default void stop() {
+        setCommand(0.);
+    }
+
+    /**
+     * Stops the motor and releases the output.
+     */
+    @Override
+    void close();
+}
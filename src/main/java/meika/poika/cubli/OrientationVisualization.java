@@ -1,48 +1,301 @@
 package meika.poika.cubli;
 
 import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.locks.LockSupport;
 
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Window showing the orientation of the cube as a shaded 3D cube.</b>
+ *
+ * <p>The window renders actively, in its own thread, at the refresh rate of the display (60 Hz if unknown):
+ * each frame pulls the last processed sample from the pipeline ({@link SensorPipeline#readFrame(SensorFrame)},
+ * a lock-free copy which never delays the sampling thread), then draws the cube rotated by the filtered
+ * angles in the back buffer of a {@link BufferStrategy}, and shows it. Swing repaints are ignored.</p>
+ *
+ * <p>The cube is seen from a fixed camera, in the earth frame (z up): its faces are culled, lit by a fixed
+ * light, and painted from precomputed palettes, so that rendering a frame allocates nothing but its text.</p>
+ */
 public class OrientationVisualization extends JFrame {
-    // angles in degrees
-    private double[] angles = new double[3];
 
     /**
-     * @param listener the listener to be called when the window is closed
+     * Rendering rate used when the refresh rate of the display is unknown, in Hz.
+     */
+    public static final int DEFAULT_REFRESH_RATE = 60;
+
+    /**
+     * Number of shades of each face color.
+     */
+    private static final int SHADES = 64;
+
+    /**
+     * Part of the light reaching the faces turned away from the light source.
+     */
+    private static final double AMBIENT_LIGHT = 0.25;
+
+    /**
+     * Distance of the camera to the center of the cube, in half cube sides.
+     */
+    private static final double CAMERA_DISTANCE = 6.;
+
+    /**
+     * Azimuth and elevation of the camera, in °.
+     */
+    private static final double CAMERA_AZIMUTH = -30.;
+    private static final double CAMERA_ELEVATION = 20.;
+
+    /**
+     * Corners of the cube, in half sides: bit 0 of the index is x, bit 1 is y, bit 2 is z.
      */
-    public OrientationVisualization(WindowListener listener) {
+    private static final double[][] CORNERS = new double[8][3];
+
+    /**
+     * Corners of each face, and their outward normals: +x, -x, +y, -y, +z, -z.
+     */
+    private static final int[][] FACES = {{1, 3, 7, 5}, {0, 4, 6, 2}, {2, 6, 7, 3}, {0, 1, 5, 4}, {4, 5, 7, 6}, {0, 2, 3, 1}};
+    private static final double[][] NORMALS = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+    private static final Color[] FACE_COLORS = {
+            new Color(220, 50, 50), new Color(240, 150, 40),
+            new Color(60, 190, 80), new Color(40, 170, 170),
+            new Color(60, 100, 230), new Color(160, 80, 210)};
+
+    static {
+        for (int i = 0; i < CORNERS.length; i++) {
+            CORNERS[i][X] = (i & 1) != 0 ? 1. : -1.;
+            CORNERS[i][Y] = (i & 2) != 0 ? 1. : -1.;
+            CORNERS[i][Z] = (i & 4) != 0 ? 1. : -1.;
+        }
+    }
+
+    private final SensorPipeline pipeline;
+    private final Canvas canvas = new Canvas();
+    private final long framePeriodNanos;
+    private volatile Thread renderingThread;
+
+    /*
+     * Rendering state, used by the rendering thread only.
+     */
+    private final SensorFrame frame = new SensorFrame();
+    private final Quaternion orientation = new Quaternion();
+    private final Quaternion camera = new Quaternion();
+    private final Quaternion cameraStep = new Quaternion();
+    private final double[] angles = new double[3];
+    private final double[] vector = new double[3];
+    private final double[][] viewCorners = new double[8][3];
+    private final int[] screenX = new int[8];
+    private final int[] screenY = new int[8];
+    private final int[] polygonX = new int[4];
+    private final int[] polygonY = new int[4];
+    private final double[] light = {0.4, -0.6, -0.7}; // from the upper left front, in the view frame
+    private final Color[][] palettes = new Color[FACE_COLORS.length][SHADES];
+    private long frameCount = 0;
+    private long frameRateWindowStart;
+    private long frameRateWindowCount;
+    private volatile double frameRate = 0.;
+
+    /**
+     * Opens the window and starts rendering.
+     * @param pipeline the pipeline whose filtered angles are shown.
+     * @param listener the listener to be called when the window is closed.
+     */
+    public OrientationVisualization(SensorPipeline pipeline, WindowListener listener) {
         super("Cubli Orientation Visualization");
+        this.pipeline = pipeline;
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        setSize(800, 600);
+        setIgnoreRepaint(true);
+        canvas.setIgnoreRepaint(true);
+        canvas.setPreferredSize(new Dimension(800, 600));
+        add(canvas);
+        pack();
         setLocationRelativeTo(null);
         setVisible(true);
-        this.addWindowListener(listener);
-    }
-
-    public void updateAngles(double[] filteredAngles) {
-        this.angles = filteredAngles;
-        repaint();
-    }
-
-    @Override
-    public void paint(java.awt.Graphics g) {
-        super.paint(g);
-        java.awt.Graphics2D g2 = (java.awt.Graphics2D) g;
-        g2.translate(getWidth() / 2, getHeight() / 2);
-        g2.scale(1, -1);
-        g2.setColor(java.awt.Color.BLACK);
-        g2.fillRect(-getWidth() / 2, -getHeight() / 2, getWidth(), getHeight());
-        g2.setColor(java.awt.Color.WHITE);
-        g2.drawLine(-getWidth() / 2, 0, getWidth() / 2, 0);
-        g2.drawLine(0, -getHeight() / 2, 0, getHeight() / 2);
-        g2.setColor(java.awt.Color.RED);
-        g2.drawLine(0, 0, (int) (getWidth() / 2 * Math.cos(Math.toRadians(angles[0]))),
-                (int) (getHeight() / 2 * Math.sin(Math.toRadians(angles[0]))));
-        g2.setColor(java.awt.Color.GREEN);
-        g2.drawLine(0, 0, (int) (getWidth() / 2 * Math.cos(Math.toRadians(angles[1]))),
-                (int) (getHeight() / 2 * Math.sin(Math.toRadians(angles[1]))));
-        g2.setColor(java.awt.Color.BLUE);
-        g2.drawLine(0, 0, (int) (getWidth() / 2 * Math.cos(Math.toRadians(angles[2]))),
-                (int) (getHeight() / 2 * Math.sin(Math.toRadians(angles[2]))));
+        canvas.createBufferStrategy(2);
+        addWindowListener(listener);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                stopRendering();
+            }
+        });
+
+        int refreshRate = getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+        framePeriodNanos = 1_000_000_000L / (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : refreshRate);
+
+        // the camera turns the earth frame into the view frame: x right, y up, z towards the viewer
+        camera.setAxisAngle(1., 0., 0., -90.);
+        cameraStep.setAxisAngle(0., 0., 1., -CAMERA_AZIMUTH);
+        multiply(camera, cameraStep, camera);
+        cameraStep.setAxisAngle(1., 0., 0., CAMERA_ELEVATION);
+        multiply(cameraStep, camera, camera);
+        double norm = Math.sqrt(light[X] * light[X] + light[Y] * light[Y] + light[Z] * light[Z]);
+        for (int axis = X; axis <= Z; axis++)
+            light[axis] /= norm;
+        for (int face = 0; face < FACE_COLORS.length; face++)
+            for (int shade = 0; shade < SHADES; shade++) {
+                float intensity = (float) shade / (SHADES - 1);
+                Color color = FACE_COLORS[face];
+                palettes[face][shade] = new Color(Math.round(color.getRed() * intensity),
+                        Math.round(color.getGreen() * intensity), Math.round(color.getBlue() * intensity));
+            }
+
+        renderingThread = new Thread(this::render, "orientation-renderer");
+        renderingThread.setDaemon(true);
+        renderingThread.start();
+    }
+
+    /**
+     * Opens a window showing the orientation, on the event dispatch thread.
+     * <p>The callers which may run headless only reference this method: AWT is loaded when it is called,
+     * not when they are.</p>
+     * @param pipeline the pipeline whose filtered angles are shown.
+     * @param onClose called when the user closes the window.
+     */
+    public static void attach(SensorPipeline pipeline, Runnable onClose) {
+        SwingUtilities.invokeLater(() -> new OrientationVisualization(pipeline, new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                onClose.run();
+            }
+        }));
+    }
+
+    /**
+     * Stops the rendering thread. It is called when the window is closed.
+     */
+    public void stopRendering() {
+        Thread thread = renderingThread;
+        renderingThread = null;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return the number of frames rendered per second, over the last second.
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    private void render() {
+        long nextFrame = System.nanoTime();
+        frameRateWindowStart = nextFrame;
+        while (renderingThread == Thread.currentThread()) {
+            BufferStrategy strategy = canvas.getBufferStrategy();
+            try {
+                if (strategy != null && canvas.isDisplayable())
+                    renderFrame(strategy);
+            } catch (IllegalStateException e) {
+                // the window was disposed during the frame
+                if (renderingThread != Thread.currentThread())
+                    return;
+                throw e;
+            }
+            updateFrameRate();
+
+            nextFrame += framePeriodNanos;
+            long now = System.nanoTime();
+            if (nextFrame - now < 0)
+                nextFrame = now; // late: the next frame is rendered at once, without catching up
+            else
+                LockSupport.parkNanos(nextFrame - now);
+        }
+    }
+
+    private void renderFrame(BufferStrategy strategy) {
+        pipeline.readFrame(frame);
+        for (int axis = X; axis <= Z; axis++)
+            angles[axis] = frame.getFilteredAngle(axis);
+        orientation.setEulerAngles(angles);
+        project(canvas.getWidth(), canvas.getHeight());
+        do {
+            do {
+                Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    draw(g, canvas.getWidth(), canvas.getHeight());
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+        frameCount++;
+    }
+
+    /**
+     * Rotates the corners of the cube by the orientation, then by the camera, and projects them with perspective.
+     */
+    private void project(int width, int height) {
+        double scale = Math.min(width, height) / 5.;
+        for (int i = 0; i < CORNERS.length; i++) {
+            orientation.rotate(CORNERS[i], vector);
+            camera.rotate(vector, viewCorners[i]);
+            double perspective = CAMERA_DISTANCE / (CAMERA_DISTANCE - viewCorners[i][Z]);
+            screenX[i] = (int) Math.round(width / 2. + viewCorners[i][X] * perspective * scale);
+            screenY[i] = (int) Math.round(height / 2. - viewCorners[i][Y] * perspective * scale);
+        }
+    }
+
+    private void draw(Graphics2D g, int width, int height) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+
+        for (int face = 0; face < FACES.length; face++) {
+            int[] corners = FACES[face];
+            orientation.rotate(NORMALS[face], vector);
+            camera.rotate(vector, vector);
+            // visible if the normal points to the camera, at (0, 0, CAMERA_DISTANCE) in the view frame
+            double toCameraX = 0., toCameraY = 0., toCameraZ = CAMERA_DISTANCE;
+            for (int corner : corners) {
+                toCameraX -= viewCorners[corner][X] / 4.;
+                toCameraY -= viewCorners[corner][Y] / 4.;
+                toCameraZ -= viewCorners[corner][Z] / 4.;
+            }
+            if (vector[X] * toCameraX + vector[Y] * toCameraY + vector[Z] * toCameraZ <= 0.)
+                continue;
+
+            double diffuse = Math.max(0., -(vector[X] * light[X] + vector[Y] * light[Y] + vector[Z] * light[Z]));
+            double intensity = AMBIENT_LIGHT + (1. - AMBIENT_LIGHT) * diffuse;
+            for (int i = 0; i < 4; i++) {
+                polygonX[i] = screenX[corners[i]];
+                polygonY[i] = screenY[corners[i]];
+            }
+            g.setColor(palettes[face][(int) Math.round(intensity * (SHADES - 1))]);
+            g.fillPolygon(polygonX, polygonY, 4);
+            g.setColor(Color.DARK_GRAY);
+            g.drawPolygon(polygonX, polygonY, 4);
+        }
+
+        g.setColor(Color.LIGHT_GRAY);
+        g.drawString(String.format("x %s  y %s  z %s", MPU6050.angleToString(angles[X]),
+                MPU6050.angleToString(angles[Y]), MPU6050.angleToString(angles[Z])), 10, 20);
+        g.drawString(String.format("%.0f fps  sample %d", frameRate, frame.getSequence()), 10, 38);
+    }
+
+    private void updateFrameRate() {
+        long now = System.nanoTime();
+        if (now - frameRateWindowStart >= 1_000_000_000L) {
+            frameRate = (frameCount - frameRateWindowCount) * 1e9 / (now - frameRateWindowStart);
+            frameRateWindowStart = now;
+            frameRateWindowCount = frameCount;
+        }
+    }
+
+    /**
+     * destination = a * b, destination may be a or b.
+     */
+    private static void multiply(Quaternion a, Quaternion b, Quaternion destination) {
+        destination.set(a.getW() * b.getW() - a.getX() * b.getX() - a.getY() * b.getY() - a.getZ() * b.getZ(),
+                a.getW() * b.getX() + a.getX() * b.getW() + a.getY() * b.getZ() - a.getZ() * b.getY(),
+                a.getW() * b.getY() - a.getX() * b.getZ() + a.getY() * b.getW() + a.getZ() * b.getX(),
+                a.getW() * b.getZ() + a.getX() * b.getY() - a.getY() * b.getX() + a.getZ() * b.getW());
     }
 }
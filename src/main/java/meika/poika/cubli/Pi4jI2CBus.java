@@ -0,0 +1,118 @@
+package meika.poika.cubli;
+
+import com.pi4j.context.Context;
+import com.pi4j.io.i2c.I2C;
+import com.pi4j.io.i2c.I2CConfig;
+import com.pi4j.io.i2c.I2CProvider;
+
+/**
+ * <b>An i2c bus of the Raspberry Pi, accessed through Pi4J and the linuxfs i2c provider.</b>
+ */
+public class Pi4jI2CBus implements I2CBus {
+
+    /**
+     * The i2c bus exposed on the GPIO header of the Raspberry Pi (/dev/i2c-1).
+     */
+    public static final int DEFAULT_BUS = 1;
+
+    /**
+     * Id of the Pi4J provider used to create the devices.
+     */
+    public static final String PROVIDER_ID = "linuxfs-i2c";
+
+    /**
+     * The Pi4J context owning the devices.
+     */
+    private final Context context;
+
+    /**
+     * The number of the bus (/dev/i2c-N).
+     */
+    private final int bus;
+
+    /**
+     * Constructor for a specific bus, using the application Pi4J context.
+     * @param bus the number of the bus (/dev/i2c-N).
+     */
+    public Pi4jI2CBus(int bus) {
+        this(CubliApp.getPi4jContext(), bus);
+    }
+
+    /**
+     * Constructor for a specific bus.
+     * @param context the Pi4J context, which must include the linuxfs i2c provider.
+     * @param bus the number of the bus (/dev/i2c-N).
+     */
+    public Pi4jI2CBus(Context context, int bus) {
+        this.context = context;
+        this.bus = bus;
+    }
+
+    /**
+     * @return the number of the bus (/dev/i2c-N).
+     */
+    public int getBus() {
+        return bus;
+    }
+
+    @Override
+    public String getName() {
+        return "i2c-" + bus;
+    }
+
+    @Override
+    public I2CDevice open(int i2cAddress) {
+        I2CProvider provider = context.provider(PROVIDER_ID);
+        // Pi4J ids must be unique in the context
+        I2CConfig config = I2C.newConfigBuilder(context)
+                .id(String.format("I2C-%d-0x%02X", bus, i2cAddress))
+                .bus(bus)
+                .device(i2cAddress)
+                .build();
+        return new Pi4jI2CDevice(provider.create(config), i2cAddress);
+    }
+
+    /**
+     * <b>Adapter of a Pi4J i2c device.</b>
+     */
+    private static class Pi4jI2CDevice implements I2CDevice {
+
+        private final I2C i2c;
+        private final int address;
+
+        private Pi4jI2CDevice(I2C i2c, int address) {
+            this.i2c = i2c;
+            this.address = address;
+        }
+
+        @Override
+        public int getAddress() {
+            return address;
+        }
+
+        @Override
+        public void write(int value) {
+            i2c.write((byte) value);
+        }
+
+        @Override
+        public void writeRegister(int reg, int value) {
+            i2c.writeRegister(reg, value);
+        }
+
+        @Override
+        public int readRegister(int reg) {
+            return i2c.readRegister(reg);
+        }
+
+        @Override
+        public int readRegister(int reg, byte[] buffer, int offset, int length) {
+            return i2c.readRegister(reg, buffer, offset, length);
+        }
+
+        @Override
+        public int writeRegister(int reg, byte[] buffer, int offset, int length) {
+            return i2c.writeRegister(reg, buffer, offset, length);
+        }
+    }
+}
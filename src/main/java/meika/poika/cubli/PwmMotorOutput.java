@@ -0,0 +1,117 @@
+package meika.poika.cubli;
+
+import com.pi4j.context.Context;
+import com.pi4j.io.gpio.digital.DigitalOutput;
+import com.pi4j.io.gpio.digital.DigitalOutputConfig;
+import com.pi4j.io.gpio.digital.DigitalOutputProvider;
+import com.pi4j.io.gpio.digital.DigitalState;
+import com.pi4j.io.pwm.Pwm;
+import com.pi4j.io.pwm.PwmConfig;
+import com.pi4j.io.pwm.PwmProvider;
+import com.pi4j.io.pwm.PwmType;
+import com.pi4j.plugin.gpiod.provider.gpio.digital.GpioDDigitalOutputProvider;
+import com.pi4j.plugin.linuxfs.provider.pwm.LinuxFsPwmProvider;
+
+/**
+ * <b>Motor driven by a hardware PWM channel of the Raspberry Pi and a direction GPIO.</b>
+ *
+ * <p>The driver of the motor (an ESC in current mode, for instance) takes the magnitude of the torque
+ * as the duty cycle of the PWM, and its direction on the direction pin. The PWM is written through the
+ * linuxfs provider (/sys/class/pwm), the direction pin through the gpiod provider.</p>
+ *
+ * <p>Each sysfs write is a system call on the control path: the duty cycle is quantized to
+ * DUTY_CYCLE_STEPS, and only written (through {@link Pwm#on(Number)}) when its step or the direction
+ * changes.</p>
+ */
+public class PwmMotorOutput implements MotorOutput {
+
+    /**
+     * Default PWM frequency, in Hz, above the audible range.
+     */
+    public static final int DEFAULT_FREQUENCY = 20_000;
+
+    /**
+     * Resolution of the duty cycle.
+     */
+    public static final int DUTY_CYCLE_STEPS = 1000;
+
+    /**
+     * The Pi4J context owning the PWM and the GPIO.
+     */
+    private final Context context;
+
+    private final Pwm pwm;
+    private final DigitalOutput direction;
+
+    private double command = 0.;
+    private int dutyCycleStep = 0;
+    private boolean reverse = false;
+
+    /**
+     * Constructor for a motor on a PWM channel of the PWM chip 0, using the application Pi4J context.
+     * @param pwmChannel the channel of the PWM chip (0 for GPIO 18, 1 for GPIO 19 with the pwm-2chan overlay).
+     * @param directionPin the BCM number of the GPIO connected to the direction input of the driver.
+     */
+    public PwmMotorOutput(int pwmChannel, int directionPin) {
+        this(CubliApp.getPi4jContext(), pwmChannel, directionPin, DEFAULT_FREQUENCY);
+    }
+
+    /**
+     * Constructor for a motor on a PWM channel.
+     * @param context the Pi4J context, which must include the linuxfs PWM and gpiod digital output providers.
+     * @param pwmChannel the channel of the PWM chip of the linuxfs provider.
+     * @param directionPin the BCM number of the GPIO connected to the direction input of the driver.
+     * @param frequency the PWM frequency, in Hz.
+     */
+    public PwmMotorOutput(Context context, int pwmChannel, int directionPin, int frequency) {
+        this.context = context;
+        PwmProvider pwmProvider = context.provider(LinuxFsPwmProvider.ID);
+        PwmConfig pwmConfig = Pwm.newConfigBuilder(context)
+                .id("MOTOR-PWM-" + pwmChannel)
+                .address(pwmChannel)
+                .pwmType(PwmType.HARDWARE)
+                .frequency(frequency)
+                .initial(0)
+                .shutdown(0)
+                .build();
+        pwm = pwmProvider.create(pwmConfig);
+        DigitalOutputProvider outputProvider = context.provider(GpioDDigitalOutputProvider.ID);
+        DigitalOutputConfig outputConfig = DigitalOutput.newConfigBuilder(context)
+                .id("MOTOR-DIR-" + directionPin)
+                .address(directionPin)
+                .initial(DigitalState.LOW)
+                .shutdown(DigitalState.LOW)
+                .build();
+        direction = outputProvider.create(outputConfig);
+        pwm.on(0, frequency);
+    }
+
+    @Override
+    public void setCommand(double command) {
+        command = Math.max(-1., Math.min(1., command));
+        this.command = command;
+        int step = (int) Math.round(Math.abs(command) * DUTY_CYCLE_STEPS);
+        boolean reverse = command < 0.;
+        if (step != 0 && reverse != this.reverse) {
+            direction.state(reverse ? DigitalState.HIGH : DigitalState.LOW);
+            this.reverse = reverse;
+        }
+        if (step != dutyCycleStep) {
+            // in %; setDutyCycle only stores the value, on() writes it to sysfs
+            pwm.on(step * 100f / DUTY_CYCLE_STEPS);
+            dutyCycleStep = step;
+        }
+    }
+
+    @Override
+    public double getCommand() {
+        return command;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        context.shutdown(pwm.id());
+        context.shutdown(direction.id());
+    }
+}
@@ -0,0 +1,195 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Unit quaternion representing an orientation.</b>
+ *
+ * <p>The quaternion (w, x, y, z) rotates vectors from the sensor frame into the earth frame.
+ * Unlike three independent Euler angles, it has no singularity (gimbal lock) and doesn't wrap:
+ * it is the state integrated on every sample, and angles are only calculated from it on demand.</p>
+ *
+ * <p>Quaternions are mutable, so they can be reused without allocation.</p>
+ */
+public class Quaternion {
+
+    private double w = 1.;
+    private double x = 0.;
+    private double y = 0.;
+    private double z = 0.;
+
+    /**
+     * @return the scalar component.
+     */
+    public double getW() {
+        return w;
+    }
+
+    /**
+     * @return the x component of the vector part.
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * @return the y component of the vector part.
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return the z component of the vector part.
+     */
+    public double getZ() {
+        return z;
+    }
+
+    /**
+     * Sets the components of the quaternion. They are not normalized.
+     * @param w the scalar component.
+     * @param x the x component of the vector part.
+     * @param y the y component of the vector part.
+     * @param z the z component of the vector part.
+     */
+    public void set(double w, double x, double y, double z) {
+        this.w = w;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    /**
+     * Sets the identity orientation.
+     */
+    public void setIdentity() {
+        set(1., 0., 0., 0.);
+    }
+
+    /**
+     * Copies the components of another quaternion.
+     * @param source the quaternion to copy.
+     */
+    public void copyFrom(Quaternion source) {
+        set(source.w, source.x, source.y, source.z);
+    }
+
+    /**
+     * Sets the rotation of a specific angle around an axis.
+     * @param axisX the x component of the axis.
+     * @param axisY the y component of the axis.
+     * @param axisZ the z component of the axis. The axis doesn't need to be a unit vector, but can't be null.
+     * @param angle the angle of the rotation, in °.
+     */
+    public void setAxisAngle(double axisX, double axisY, double axisZ, double angle) {
+        double norm = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+        if (norm == 0.)
+            throw new IllegalArgumentException("The rotation axis can't be null.");
+        double half = 0.5 * angle * MPU6050.DEGREE_TO_RADIAN;
+        double s = Math.sin(half) / norm;
+        set(Math.cos(half), axisX * s, axisY * s, axisZ * s);
+    }
+
+    /**
+     * Sets the rotation from Euler angles, the inverse of {@link #getEulerAngles(double[])}.
+     * @param angles the roll around x, the pitch around y and the yaw around z, in °.
+     */
+    public void setEulerAngles(double[] angles) {
+        double halfRoll = 0.5 * angles[X] * MPU6050.DEGREE_TO_RADIAN;
+        double halfPitch = 0.5 * angles[Y] * MPU6050.DEGREE_TO_RADIAN;
+        double halfYaw = 0.5 * angles[Z] * MPU6050.DEGREE_TO_RADIAN;
+        double cr = Math.cos(halfRoll), sr = Math.sin(halfRoll);
+        double cp = Math.cos(halfPitch), sp = Math.sin(halfPitch);
+        double cy = Math.cos(halfYaw), sy = Math.sin(halfYaw);
+        set(cr * cp * cy + sr * sp * sy,
+                sr * cp * cy - cr * sp * sy,
+                cr * sp * cy + sr * cp * sy,
+                cr * cp * sy - sr * sp * cy);
+    }
+
+    /**
+     * Rotates a vector by this rotation: destination = q * vector * conjugate(q).
+     * <p>With the attitude of the sensor, it expresses a vector of the sensor frame in the earth frame.</p>
+     * @param vector the x, y and z components of the vector.
+     * @param destination the destination of the rotated vector, which may be vector itself.
+     */
+    public void rotate(double[] vector, double[] destination) {
+        double vx = vector[X];
+        double vy = vector[Y];
+        double vz = vector[Z];
+        // t = 2 * (q.xyz x v), then v + w * t + q.xyz x t
+        double tx = 2. * (y * vz - z * vy);
+        double ty = 2. * (z * vx - x * vz);
+        double tz = 2. * (x * vy - y * vx);
+        destination[X] = vx + w * tx + y * tz - z * ty;
+        destination[Y] = vy + w * ty + z * tx - x * tz;
+        destination[Z] = vz + w * tz + x * ty - y * tx;
+    }
+
+    /**
+     * Rotates the orientation by the angular speeds measured in the sensor frame during dt,
+     * and normalizes the result.
+     * <p>The first order integration q += 0.5 * q * (0, gx, gy, gz) * dt is accurate for the small
+     * rotations between two samples, and the normalization keeps the quaternion a valid rotation.</p>
+     * @param gx the angular speed around the x axis, in rad/s.
+     * @param gy the angular speed around the y axis, in rad/s.
+     * @param gz the angular speed around the z axis, in rad/s.
+     * @param dt the integration time, in seconds.
+     */
+    public void integrate(double gx, double gy, double gz, double dt) {
+        double h = 0.5 * dt;
+        gx *= h;
+        gy *= h;
+        gz *= h;
+        double qw = w;
+        double qx = x;
+        double qy = y;
+        w += -qx * gx - qy * gy - z * gz;
+        x += qw * gx + qy * gz - z * gy;
+        y += qw * gy - qx * gz + z * gx;
+        z += qw * gz + qx * gy - qy * gx;
+        normalize();
+    }
+
+    /**
+     * Scales the quaternion back to a unit norm.
+     */
+    public void normalize() {
+        double inverseNorm = 1. / Math.sqrt(w * w + x * x + y * y + z * z);
+        w *= inverseNorm;
+        x *= inverseNorm;
+        y *= inverseNorm;
+        z *= inverseNorm;
+    }
+
+    /**
+     * Calculates the direction of the gravity in the sensor frame, as the accelerometer measures it at rest.
+     * @param gravity the destination of the unit gravity vector, for the x, y and z axis.
+     */
+    public void getGravity(double[] gravity) {
+        gravity[X] = 2. * (x * z - w * y);
+        gravity[Y] = 2. * (w * x + y * z);
+        gravity[Z] = w * w - x * x - y * y + z * z;
+    }
+
+    /**
+     * Calculates the Euler angles (roll around x, pitch around y, yaw around z, in this order from the earth frame).
+     * <p>The pitch is in the -90..90 interval, the roll and the yaw in the -180..180 interval.</p>
+     * @param angles the destination of the roll, pitch and yaw, in °.
+     */
+    public void getEulerAngles(double[] angles) {
+        double sinPitch = 2. * (w * y - z * x);
+        sinPitch = Math.max(-1., Math.min(1., sinPitch));
+        angles[X] = Math.atan2(2. * (w * x + y * z), 1. - 2. * (x * x + y * y)) * MPU6050.RADIAN_TO_DEGREE;
+        angles[Y] = Math.atan2(sinPitch, Math.sqrt(1. - sinPitch * sinPitch)) * MPU6050.RADIAN_TO_DEGREE;
+        angles[Z] = Math.atan2(2. * (w * z + x * y), 1. - 2. * (y * y + z * z)) * MPU6050.RADIAN_TO_DEGREE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%.6f, %.6f, %.6f, %.6f)", w, x, y, z);
+    }
+}
@@ -0,0 +1,115 @@
+package meika.poika.cubli;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Base of the fusion filters estimating the orientation as a quaternion.</b>
+ *
+ * <p>The quaternion (q0, q1, q2, q3) rotates the sensor frame into the earth frame. Subclasses update it
+ * from the accelerometer and the gyroscope, in the sensor frame, in g and rad/s.</p>
+ *
+ * <p>The reported x and y angles are calculated from the gravity direction predicted by the quaternion,
+ * exactly like the accelerometer angles, so they share their convention. The z angle is the heading.</p>
+ */
+public abstract class QuaternionFusionFilter implements FusionFilter {
+
+    protected double q0 = 1.;
+    protected double q1 = 0.;
+    protected double q2 = 0.;
+    protected double q3 = 0.;
+
+    /**
+     * False until the quaternion is initialized from the first accelerometer values.
+     */
+    private boolean initialized = false;
+
+    @Override
+    public void update(SensorFrame sample, double dt) {
+        // the frames store the z acceleration with an inverted sign
+        double ax = sample.accelAccelerations[X];
+        double ay = sample.accelAccelerations[Y];
+        double az = -sample.accelAccelerations[Z];
+        if (!initialized) {
+            initializeFromGravity(ax, ay, az);
+            return;
+        }
+        update(ax, ay, az,
+                sample.gyroAngularSpeeds[X] * MPU6050.DEGREE_TO_RADIAN,
+                sample.gyroAngularSpeeds[Y] * MPU6050.DEGREE_TO_RADIAN,
+                sample.gyroAngularSpeeds[Z] * MPU6050.DEGREE_TO_RADIAN,
+                dt);
+    }
+
+    /**
+     * Updates the quaternion.
+     * @param ax the acceleration along the x axis, in g.
+     * @param ay the acceleration along the y axis, in g.
+     * @param az the acceleration along the z axis, in g.
+     * @param gx the angular speed around the x axis, in rad/s.
+     * @param gy the angular speed around the y axis, in rad/s.
+     * @param gz the angular speed around the z axis, in rad/s.
+     * @param dt the time elapsed since the previous sample, in seconds.
+     */
+    protected abstract void update(double ax, double ay, double az, double gx, double gy, double gz, double dt);
+
+    @Override
+    public void getAngles(double[] angles) {
+        // gravity direction in the sensor frame, as the accelerometer measures it at rest
+        double vx = 2. * (q1 * q3 - q0 * q2);
+        double vy = 2. * (q0 * q1 + q2 * q3);
+        double vz = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+        angles[X] = AngleMath.fastAccelXAngle(vx, vy, -vz);
+        angles[Y] = AngleMath.fastAccelYAngle(vx, vy, -vz);
+        angles[Z] = FastMath.atan2(2. * (q0 * q3 + q1 * q2), 1. - 2. * (q2 * q2 + q3 * q3)) * MPU6050.RADIAN_TO_DEGREE;
+    }
+
+    /**
+     * Copies the estimated orientation, free of the singularities of the angles.
+     * @param destination the quaternion receiving the orientation.
+     */
+    public void getOrientation(Quaternion destination) {
+        destination.set(q0, q1, q2, q3);
+    }
+
+    @Override
+    public void reset() {
+        q0 = 1.;
+        q1 = 0.;
+        q2 = 0.;
+        q3 = 0.;
+        initialized = false;
+    }
+
+    /**
+     * Scales the quaternion back to a unit norm.
+     */
+    protected void normalize() {
+        double norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 /= norm;
+        q1 /= norm;
+        q2 /= norm;
+        q3 /= norm;
+    }
+
+    /**
+     * Sets the quaternion to the tilt given by the gravity, with a heading of 0,
+     * so the filter doesn't have to converge from an arbitrary orientation.
+     */
+    private void initializeFromGravity(double ax, double ay, double az) {
+        if (ax == 0. && ay == 0. && az == 0.)
+            return;
+        double roll = Math.atan2(ay, az);
+        double pitch = Math.atan2(-ax, Math.sqrt(ay * ay + az * az));
+        double cr = Math.cos(roll / 2.);
+        double sr = Math.sin(roll / 2.);
+        double cp = Math.cos(pitch / 2.);
+        double sp = Math.sin(pitch / 2.);
+        q0 = cr * cp;
+        q1 = sr * cp;
+        q2 = cr * sp;
+        q3 = -sr * sp;
+        initialized = true;
+    }
+}
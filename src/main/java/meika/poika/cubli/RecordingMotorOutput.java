@@ -0,0 +1,111 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Motor output recording the commands instead of driving a motor.</b>
+ *
+ * <p>Runs the control loop without the hardware: on a simulated MPU6050, in a replay, or to check the
+ * commands of a controller. The last capacity commands are kept, with their timestamps, in preallocated
+ * arrays: recording doesn't allocate.</p>
+ */
+public class RecordingMotorOutput implements MotorOutput {
+
+    /**
+     * Default number of commands kept, 10 s at 1 kHz.
+     */
+    public static final int DEFAULT_CAPACITY = 10_000;
+
+    private final TimeSource timeSource;
+    private final double[] commands;
+    private final long[] timestamps;
+
+    private volatile double command = 0.;
+    private volatile long count = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor for an output keeping the DEFAULT_CAPACITY last commands, stamped in {@link TimeSource#SYSTEM} time.
+     */
+    public RecordingMotorOutput() {
+        this(DEFAULT_CAPACITY, TimeSource.SYSTEM);
+    }
+
+    /**
+     * Constructor for a new recording output.
+     * @param capacity the number of commands kept.
+     * @param timeSource the source of the timestamps of the commands.
+     */
+    public RecordingMotorOutput(int capacity, TimeSource timeSource) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1.");
+        this.timeSource = timeSource;
+        this.commands = new double[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    @Override
+    public void setCommand(double command) {
+        if (closed)
+            throw new IllegalStateException("The motor output is closed.");
+        command = Math.max(-1., Math.min(1., command));
+        int index = (int) (count % commands.length);
+        commands[index] = command;
+        timestamps[index] = timeSource.nanoTime();
+        this.command = command;
+        count++;
+    }
+
+    @Override
+    public double getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the number of commands set since the creation, including the ones no longer kept.
+     */
+    public long getCommandCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of commands kept.
+     */
+    public int getCapacity() {
+        return commands.length;
+    }
+
+    /**
+     * @param age 0 for the last command, 1 for the previous one... up to min(getCommandCount(), getCapacity()) - 1.
+     * @return the recorded command.
+     */
+    public double getRecordedCommand(int age) {
+        return commands[index(age)];
+    }
+
+    /**
+     * @param age 0 for the last command, 1 for the previous one... up to min(getCommandCount(), getCapacity()) - 1.
+     * @return the time the command was set, in the time base of the time source.
+     */
+    public long getRecordedTimestampNanos(int age) {
+        return timestamps[index(age)];
+    }
+
+    private int index(int age) {
+        long count = this.count;
+        if (age < 0 || age >= Math.min(count, commands.length))
+            throw new IllegalArgumentException("No recorded command of age " + age + ".");
+        return (int) ((count - 1 - age) % commands.length);
+    }
+
+    /**
+     * @return true once the output is closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        closed = true;
+    }
+}
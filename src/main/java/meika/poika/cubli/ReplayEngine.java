@@ -0,0 +1,140 @@
+package meika.poika.cubli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Feeds recorded samples back through a {@link SensorPipeline}, as fast as the processor allows.</b>
+ *
+ * <p>The raw words of the records go through the same scaling, calibration, integration and fusion
+ * code as the live samples, and the recorded timestamps replace the clock: the integration steps are the
+ * ones of the recording, however fast the replay runs. The time source of the engine follows the
+ * recorded time, for the components which need the current time.</p>
+ *
+ * <p>By default the calibration stored in the header of each segment is applied, so the replay
+ * reproduces the recorded run. Disabling it replays the raw samples with the calibration set on the
+ * pipeline, to compare calibrations; the fusion filter of the pipeline can be replaced in the same way.
+ * The processed samples are observed through the sample listeners of the pipeline.</p>
+ *
+ * <p>A recording started while the updating thread was already running begins with the fusion filter and
+ * the gyroscope bias model in an unknown state: the filtered angles converge to the recorded ones after
+ * the filter settles.</p>
+ */
+public class ReplayEngine {
+
+    private final SensorPipeline pipeline;
+    private final ManualTimeSource timeSource = new ManualTimeSource();
+    private final int[] values = new int[MPU6050.SENSOR_BLOCK_WORDS];
+    private boolean useRecordedCalibration = true;
+
+    /**
+     * Constructor for a replay engine.
+     * @param pipeline the pipeline processing the recorded samples.
+     */
+    public ReplayEngine(SensorPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * @return the pipeline processing the recorded samples.
+     */
+    public SensorPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return the time source following the recorded time, updated before each sample is processed.
+     */
+    public TimeSource getTimeSource() {
+        return timeSource;
+    }
+
+    /**
+     * @param useRecordedCalibration true to apply the gyroscope offsets stored in the segments (default),
+     *                               false to keep those of the pipeline. The recorded ranges are always applied.
+     */
+    public void setUseRecordedCalibration(boolean useRecordedCalibration) {
+        this.useRecordedCalibration = useRecordedCalibration;
+    }
+
+    /**
+     * Replays the segments of one or several recordings, in order.
+     * <p>A segment of index 0 starts a new recording: the time integration restarts from its first sample,
+     * and the recorded offsets seed the pipeline again, as when the recording started.</p>
+     * @param segments the segment files, as listed by {@link FlightRecording#listSegments(Path)}.
+     * @return the number of replayed samples.
+     * @throws IOException if a segment can't be read.
+     */
+    public long replay(List<Path> segments) throws IOException {
+        long replayed = 0;
+        for (Path segment : segments) {
+            FlightRecording recording = new FlightRecording(segment);
+            replayed += replay(recording, replayed == 0 || recording.getSegmentIndex() == 0);
+        }
+        return replayed;
+    }
+
+    /**
+     * Replays one segment.
+     * @param segment the segment file.
+     * @return the number of replayed samples.
+     * @throws IOException if the segment can't be read.
+     */
+    public long replay(Path segment) throws IOException {
+        return replay(new FlightRecording(segment), true);
+    }
+
+    private int replay(FlightRecording recording, boolean first) {
+        if (useRecordedCalibration) {
+            // a tracked bias evolves from the first offsets, as it did while recording
+            if (first || !pipeline.isGyroBiasTracking())
+                pipeline.setGyroOffsets(recording.getGyroOffset(X), recording.getGyroOffset(Y), recording.getGyroOffset(Z));
+        }
+        int count = recording.getRecordCount();
+        if (first && count > 0)
+            // the first sample is integrated over one nominal period
+            pipeline.restart(recording.getTimestampNanos(0) - recording.getSamplePeriodNanos());
+        for (int i = 0; i < count; i++) {
+            long timestamp = recording.getTimestampNanos(i);
+            timeSource.setTime(timestamp);
+            recording.getRawValues(i, values, 0);
+            // the ranges scale the raw words, and can change from one record to the next with the auto-ranging
+            GyroRange gyroRange = recording.getGyroRange(i);
+            AccelRange accelRange = recording.getAccelRange(i);
+            if (gyroRange != pipeline.getGyroRange() || accelRange != pipeline.getAccelRange())
+                pipeline.setRanges(gyroRange, accelRange);
+            pipeline.process(values, 0, timestamp);
+        }
+        return count;
+    }
+
+    /**
+     * Replays the recordings of a directory with each fusion algorithm and prints the replay rate and the final angles.
+     * @param args the directory of the recording segments.
+     * @throws IOException if the recording can't be read.
+     */
+    public static void main(String[] args) throws IOException {
+        List<Path> segments = FlightRecording.listSegments(Paths.get(args.length > 0 ? args[0] : "recordings"));
+        double[] angles = new double[3];
+        SensorFrame frame = new SensorFrame();
+        for (FusionAlgorithm algorithm : FusionAlgorithm.values()) {
+            SensorPipeline pipeline = new SensorPipeline();
+            pipeline.setFusionFilter(algorithm.create());
+            long start = System.nanoTime();
+            long samples = new ReplayEngine(pipeline).replay(segments);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            pipeline.readFrame(frame);
+            for (int axis = X; axis <= Z; axis++)
+                angles[axis] = frame.getFilteredAngle(axis);
+            System.out.printf("%-13s %d samples in %.3f s (%.0f samples/s), final angles %s %s %s%n",
+                    algorithm, samples, seconds, samples / seconds, MPU6050.angleToString(angles[X]),
+                    MPU6050.angleToString(angles[Y]), MPU6050.angleToString(angles[Z]));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package meika.poika.cubli;
+
+/**
+ * <b>A fixed capacity batch of raw MPU6050 samples, as drained from the on-chip FIFO.</b>
+ *
+ * <p>The batch is backed by primitive arrays allocated once, so it can be refilled
+ * indefinitely by the updating thread without creating garbage. Each sample holds
+ * the seven raw words of a sensor data block (indexed by MPU6050.RAW_ACCEL_X..RAW_GYRO_Z)
+ * and its own timestamp, in nanoseconds.</p>
+ *
+ * @see MPU6050#readFifo(SampleBatch)
+ */
+public class SampleBatch {
+
+    /**
+     * Maximum number of samples in the batch.
+     */
+    private final int capacity;
+
+    /**
+     * Raw words of the samples, SENSOR_BLOCK_WORDS consecutive words per sample.
+     */
+    private final int[] rawValues;
+
+    /**
+     * Timestamp of each sample, in nanoseconds ({@link System#nanoTime()} time base).
+     */
+    private final long[] timestamps;
+
+    /**
+     * Number of valid samples in the batch.
+     */
+    private int size = 0;
+
+    /**
+     * True if samples were lost before this batch was read (FIFO overflow).
+     */
+    private boolean overflowed = false;
+
+    /**
+     * Constructor for a new empty batch.
+     * @param capacity the maximum number of samples in the batch. Must be positive.
+     */
+    public SampleBatch(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity of a sample batch must be positive.");
+        this.capacity = capacity;
+        this.rawValues = new int[capacity * MPU6050.SENSOR_BLOCK_WORDS];
+        this.timestamps = new long[capacity];
+    }
+
+    /**
+     * @return the maximum number of samples in the batch.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of valid samples in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if samples were lost just before the first sample of this batch.
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Get a raw word of a sample.
+     * @param sample the index of the sample in the batch, in the 0..size-1 interval.
+     * @param word the index of the word in the sensor data block (MPU6050.RAW_ACCEL_X..RAW_GYRO_Z).
+     * @return the signed raw word.
+     */
+    public int getRawValue(int sample, int word) {
+        return rawValues[sample * MPU6050.SENSOR_BLOCK_WORDS + word];
+    }
+
+    /**
+     * Get the timestamp of a sample.
+     * @param sample the index of the sample in the batch, in the 0..size-1 interval.
+     * @return the timestamp of the sample, in nanoseconds ({@link System#nanoTime()} time base).
+     */
+    public long getTimestampNanos(int sample) {
+        return timestamps[sample];
+    }
+
+    /**
+     * Direct access to the raw words of the batch, SENSOR_BLOCK_WORDS consecutive words per sample.
+     * <p>The words of sample i start at index i * SENSOR_BLOCK_WORDS.</p>
+     * @return the backing array of the raw words.
+     */
+    public int[] rawValues() {
+        return rawValues;
+    }
+
+    /**
+     * Empties the batch.
+     */
+    void clear() {
+        size = 0;
+        overflowed = false;
+    }
+
+    /**
+     * Marks the batch as following a loss of samples.
+     */
+    void markOverflowed() {
+        overflowed = true;
+    }
+
+    /**
+     * Sets the number of valid samples.
+     * @param size the number of valid samples.
+     */
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Direct access to the timestamps of the batch, one per sample.
+     * @return the backing array of the timestamps.
+     */
+    long[] timestamps() {
+        return timestamps;
+    }
+}
@@ -0,0 +1,112 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Reconstructs the timestamps of samples produced at the MPU6050 sample rate.</b>
+ *
+ * <p>Samples drained in batches from the FIFO were produced by the MPU6050 at its own sample rate,
+ * before the host read them. Timestamping them with the read time would lump them together;
+ * spacing them by the nominal period alone would drift, since the internal oscillator of the
+ * MPU6050 is only accurate to a few percent.</p>
+ *
+ * <p>The clock therefore continues the timeline of the previous batch at an estimated period,
+ * and compares the predicted time of the newest sample with the host time of the read
+ * ({@link System#nanoTime()}). A fraction of the difference corrects the timeline (phase) and
+ * another fraction corrects the estimated period (frequency), like a simple phase-locked loop.
+ * The timestamps are monotonic and evenly spaced within a batch.</p>
+ *
+ * <p>After a discontinuity (first batch, FIFO overflow, or an error too large to be drift),
+ * the timeline restarts from the host time.</p>
+ */
+public class SampleClock {
+
+    /**
+     * Fraction of the timing error applied to the timeline at each batch.
+     */
+    private static final double PHASE_GAIN = 0.05;
+
+    /**
+     * Fraction of the timing error, per sample, applied to the estimated period at each batch.
+     */
+    private static final double FREQUENCY_GAIN = 0.005;
+
+    /**
+     * Maximum deviation of the estimated period from the nominal period (MPU6050 oscillator tolerance).
+     */
+    private static final double MAX_PERIOD_DEVIATION = 0.05;
+
+    /**
+     * Timing error, in periods, above which the timeline restarts from the host time.
+     */
+    private static final double RESYNC_THRESHOLD_PERIODS = 20;
+
+    private long nominalPeriodNanos;
+    private double estimatedPeriodNanos;
+    private boolean synced = false;
+    private double lastTimestamp;
+
+    /**
+     * Constructor for a new sample clock.
+     * @param nominalPeriodNanos the nominal sample period, in nanoseconds.
+     */
+    public SampleClock(long nominalPeriodNanos) {
+        setNominalPeriodNanos(nominalPeriodNanos);
+    }
+
+    /**
+     * Sets the nominal sample period, for instance after a sample rate change. The timeline restarts.
+     * @param nominalPeriodNanos the nominal sample period, in nanoseconds.
+     */
+    public void setNominalPeriodNanos(long nominalPeriodNanos) {
+        if (nominalPeriodNanos <= 0)
+            throw new IllegalArgumentException("The sample period must be positive.");
+        this.nominalPeriodNanos = nominalPeriodNanos;
+        this.estimatedPeriodNanos = nominalPeriodNanos;
+        resync();
+    }
+
+    /**
+     * Restarts the timeline from the host time at the next batch, after a loss of samples.
+     */
+    public void resync() {
+        synced = false;
+    }
+
+    /**
+     * @return the estimated actual sample period, in nanoseconds.
+     */
+    public double getEstimatedPeriodNanos() {
+        return estimatedPeriodNanos;
+    }
+
+    /**
+     * Computes the timestamps of a batch of consecutive samples.
+     * @param hostTimeNanos the host time at which the newest sample was known to be available
+     *                      ({@link System#nanoTime()} time base).
+     * @param samples the number of samples in the batch.
+     * @param timestamps the destination of the timestamps, from the oldest sample to the newest.
+     */
+    public void timestampBatch(long hostTimeNanos, int samples, long[] timestamps) {
+        if (samples <= 0)
+            return;
+
+        double newest;
+        double predicted = lastTimestamp + samples * estimatedPeriodNanos;
+        double error = hostTimeNanos - predicted;
+        if (!synced || Math.abs(error) > RESYNC_THRESHOLD_PERIODS * nominalPeriodNanos) {
+            newest = hostTimeNanos;
+            lastTimestamp = newest - samples * estimatedPeriodNanos;
+            synced = true;
+        } else {
+            estimatedPeriodNanos += FREQUENCY_GAIN * error / samples;
+            double maxDeviation = MAX_PERIOD_DEVIATION * nominalPeriodNanos;
+            estimatedPeriodNanos = Math.max(nominalPeriodNanos - maxDeviation,
+                    Math.min(nominalPeriodNanos + maxDeviation, estimatedPeriodNanos));
+            newest = predicted + PHASE_GAIN * error;
+        }
+
+        double step = (newest - lastTimestamp) / samples;
+        for (int i = 0; i < samples; i++)
+            timestamps[i] = (long) (lastTimestamp + (i + 1) * step);
+        lastTimestamp = newest;
+    }
+}
@@ -0,0 +1,18 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Callback invoked by a {@link SensorPipeline} for each processed sample.</b>
+ *
+ * <p>The listener runs on the thread processing the samples (the updating thread of the MPU6050, or the
+ * replay thread), right after the sample is published: it sees every sample with no added latency, but it
+ * delays the next one. It must not block nor allocate, and must copy what it keeps from the frame.</p>
+ */
+@FunctionalInterface
+public interface SampleListener {
+
+    /**
+     * Called with each processed sample.
+     * @param sample the values of the sample. Only valid during the call.
+     */
+    void onSample(SensorFrame sample);
+}
@@ -0,0 +1,230 @@
+package meika.poika.cubli;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * <b>Fixed capacity history of the sensor frames, written by one producer and read by independent cursors.</b>
+ *
+ * <p>The history is stored in arrays allocated once: the raw words and their ranges, the scaled values and
+ * the filtered angles of the last {@link #capacity()} samples. Its memory footprint is therefore fixed,
+ * however long the application runs, and neither publishing nor reading allocates anything.</p>
+ *
+ * <p>The producer (the updating thread of the MPU6050) never waits: when the buffer is full, the oldest
+ * sample is overwritten. Each reader owns a {@link Cursor} which moves through the history at its own pace.
+ * A cursor that falls more than a capacity behind the producer detects it, skips to the oldest sample
+ * still available and counts the lost samples.</p>
+ *
+ * <p>Each slot is protected by its own version, like a {@link SensorFramePublisher}: a reader which copies
+ * a slot while the producer overwrites it notices the change and doesn't return the torn copy.</p>
+ */
+public class SampleRingBuffer {
+
+    private static final VarHandle SLOT_VERSION = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle HEAD;
+
+    static {
+        try {
+            HEAD = MethodHandles.lookup().findVarHandle(SampleRingBuffer.class, "head", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Number of double values stored per sample: accelerations, temperature, angular speeds,
+     * gyroscope attitude (w, x, y, z) and filtered angles.
+     */
+    private static final int DOUBLES_PER_SAMPLE = 3 + 1 + 3 + 4 + 3;
+
+    private static final int RAW_WORDS = MPU6050.SENSOR_BLOCK_WORDS;
+
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * Version of each slot: 2 * position + 1 while the sample at position is written, 2 * position + 2 once written.
+     */
+    private final long[] slotVersions;
+    private final long[] sequences;
+    private final long[] timestamps;
+    private final int[] rawValues;
+    private final GyroRange[] gyroRanges;
+    private final AccelRange[] accelRanges;
+    private final double[] values;
+
+    /**
+     * Position of the next sample to write, i.e. number of samples published so far.
+     */
+    @SuppressWarnings("unused") // accessed through HEAD
+    private volatile long head = 0;
+
+    /**
+     * Constructor for a new empty ring buffer.
+     * @param capacity the number of samples kept in the history. Must be a power of two.
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("The capacity of the ring buffer must be a power of two.");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slotVersions = new long[capacity];
+        this.sequences = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.rawValues = new int[capacity * RAW_WORDS];
+        this.gyroRanges = new GyroRange[capacity];
+        this.accelRanges = new AccelRange[capacity];
+        this.values = new double[capacity * DOUBLES_PER_SAMPLE];
+    }
+
+    /**
+     * @return the number of samples kept in the history.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of samples published since the creation of the buffer.
+     */
+    public long getPublishedCount() {
+        return (long) HEAD.getAcquire(this);
+    }
+
+    /**
+     * Appends a frame to the history, overwriting the oldest sample if the buffer is full.
+     * Must only be called by the single producer thread.
+     * @param frame the frame to append. It is copied.
+     */
+    public void publish(SensorFrame frame) {
+        long position = (long) HEAD.getOpaque(this);
+        int slot = (int) position & mask;
+        SLOT_VERSION.setOpaque(slotVersions, slot, 2 * position + 1);
+        // the odd version must be visible before any value of the slot changes
+        VarHandle.storeStoreFence();
+
+        sequences[slot] = frame.sequence;
+        timestamps[slot] = frame.timestampNanos;
+        System.arraycopy(frame.rawValues, 0, rawValues, slot * RAW_WORDS, RAW_WORDS);
+        gyroRanges[slot] = frame.gyroRange;
+        accelRanges[slot] = frame.accelRange;
+        int i = slot * DOUBLES_PER_SAMPLE;
+        System.arraycopy(frame.accelAccelerations, 0, values, i, 3);
+        values[i + 3] = frame.temperature;
+        System.arraycopy(frame.gyroAngularSpeeds, 0, values, i + 4, 3);
+        Quaternion attitude = frame.gyroAttitude;
+        values[i + 7] = attitude.getW();
+        values[i + 8] = attitude.getX();
+        values[i + 9] = attitude.getY();
+        values[i + 10] = attitude.getZ();
+        System.arraycopy(frame.filteredAngles, 0, values, i + 11, 3);
+
+        SLOT_VERSION.setRelease(slotVersions, slot, 2 * position + 2);
+        HEAD.setRelease(this, position + 1);
+    }
+
+    /**
+     * Creates a cursor positioned on the next sample to be published.
+     * @return a new cursor, to be used by a single reader thread.
+     */
+    public Cursor newCursor() {
+        return new Cursor(getPublishedCount());
+    }
+
+    /**
+     * Copies the sample at a position, if it is still in the buffer.
+     * @return true if the copy is consistent, false if the sample was overwritten.
+     */
+    private boolean read(long position, SensorFrame destination) {
+        int slot = (int) position & mask;
+        long expected = 2 * position + 2;
+        if ((long) SLOT_VERSION.getAcquire(slotVersions, slot) != expected)
+            return false;
+
+        destination.sequence = sequences[slot];
+        destination.timestampNanos = timestamps[slot];
+        System.arraycopy(rawValues, slot * RAW_WORDS, destination.rawValues, 0, RAW_WORDS);
+        destination.gyroRange = gyroRanges[slot];
+        destination.accelRange = accelRanges[slot];
+        int i = slot * DOUBLES_PER_SAMPLE;
+        System.arraycopy(values, i, destination.accelAccelerations, 0, 3);
+        destination.temperature = values[i + 3];
+        System.arraycopy(values, i + 4, destination.gyroAngularSpeeds, 0, 3);
+        destination.gyroAttitude.set(values[i + 7], values[i + 8], values[i + 9], values[i + 10]);
+        System.arraycopy(values, i + 11, destination.filteredAngles, 0, 3);
+
+        // the values must be read before the version is checked again
+        VarHandle.loadLoadFence();
+        return (long) SLOT_VERSION.getOpaque(slotVersions, slot) == expected;
+    }
+
+    /**
+     * <b>Read position of one reader in the history.</b>
+     *
+     * <p>A cursor never blocks the producer nor the other cursors. It is not thread safe:
+     * each reader thread uses its own cursor.</p>
+     */
+    public class Cursor {
+
+        /**
+         * Position of the next sample to read.
+         */
+        private long position;
+
+        /**
+         * Number of samples overwritten before this cursor could read them.
+         */
+        private long lostCount = 0;
+
+        private Cursor(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Copies the next sample into destination and moves past it.
+         * <p>If the cursor fell behind by more than the capacity, it first skips to the oldest
+         * sample still available, and the skipped samples are added to the lost count.</p>
+         * @param destination the frame receiving the values.
+         * @return true if a sample was copied, false if no new sample is available.
+         */
+        public boolean poll(SensorFrame destination) {
+            while (true) {
+                long published = getPublishedCount();
+                if (position >= published)
+                    return false;
+                long oldest = published - capacity;
+                if (position < oldest) {
+                    lostCount += oldest - position;
+                    position = oldest;
+                }
+                if (read(position, destination)) {
+                    position++;
+                    return true;
+                }
+                // overwritten while copying: the producer has moved on, catch up.
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * @return the number of samples published but not read yet by this cursor (may exceed the capacity).
+         */
+        public long available() {
+            return Math.max(0, getPublishedCount() - position);
+        }
+
+        /**
+         * @return the number of samples overwritten before this cursor could read them.
+         */
+        public long getLostCount() {
+            return lostCount;
+        }
+
+        /**
+         * Moves the cursor past all the published samples: the next poll only returns new samples.
+         */
+        public void skipToLatest() {
+            position = getPublishedCount();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package meika.poika.cubli;
+
+/**
+ * <b>All the values derived from one MPU6050 sample.</b>
+ *
+ * <p>A frame is a mutable container: the updating thread fills its own frame for each sample
+ * and publishes it, and readers copy the published frame into frames they own
+ * (see {@link SensorFramePublisher}). Frames can therefore be reused indefinitely without allocation.</p>
+ *
+ * <p>Vector values are indexed by axis: {@link #X}, {@link #Y} and {@link #Z}.</p>
+ */
+public class SensorFrame {
+
+    /** Index of the x axis. */
+    public static final int X = 0;
+    /** Index of the y axis. */
+    public static final int Y = 1;
+    /** Index of the z axis. */
+    public static final int Z = 2;
+
+    /**
+     * Sequence number of the sample, starting at 1. 0 if the frame was never filled.
+     */
+    long sequence = 0;
+
+    /**
+     * Timestamp of the sample, in nanoseconds ({@link System#nanoTime()} time base).
+     */
+    long timestampNanos = 0;
+
+    /**
+     * Raw words of the sensor data block (MPU6050.RAW_ACCEL_X..RAW_GYRO_Z).
+     */
+    final int[] rawValues = new int[MPU6050.SENSOR_BLOCK_WORDS];
+
+    /**
+     * Full scale range of the gyroscope when the sample was measured.
+     */
+    GyroRange gyroRange = GyroRange.DPS_250;
+
+    /**
+     * Full scale range of the accelerometer when the sample was measured.
+     */
+    AccelRange accelRange = AccelRange.G_2;
+
+    /**
+     * Accelerations, in g.
+     */
+    final double[] accelAccelerations = new double[3];
+
+    /**
+     * Temperature, in °C.
+     */
+    double temperature = 0.;
+
+    /**
+     * Angular speeds, in °/sec, corrected with the gyroscope offsets.
+     */
+    final double[] gyroAngularSpeeds = new double[3];
+
+    /**
+     * Orientation integrated from the gyroscope, from the orientation at the start of the updating thread
+     * (or of the replayed recording), see {@link SensorPipeline#restart(long)}.
+     * <p>The angles are only calculated from it on demand.</p>
+     */
+    final Quaternion gyroAttitude = new Quaternion();
+
+    /**
+     * Angles, in °, filtered with the accelerometer and the gyroscope values.
+     */
+    final double[] filteredAngles = new double[3];
+
+    /**
+     * Copies all the values of another frame into this frame.
+     * @param source the frame to copy.
+     */
+    public void copyFrom(SensorFrame source) {
+        sequence = source.sequence;
+        timestampNanos = source.timestampNanos;
+        System.arraycopy(source.rawValues, 0, rawValues, 0, rawValues.length);
+        gyroRange = source.gyroRange;
+        accelRange = source.accelRange;
+        System.arraycopy(source.accelAccelerations, 0, accelAccelerations, 0, 3);
+        temperature = source.temperature;
+        System.arraycopy(source.gyroAngularSpeeds, 0, gyroAngularSpeeds, 0, 3);
+        gyroAttitude.copyFrom(source.gyroAttitude);
+        System.arraycopy(source.filteredAngles, 0, filteredAngles, 0, 3);
+    }
+
+    /**
+     * @return the sequence number of the sample, starting at 1. 0 if the frame was never filled.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the timestamp of the sample, in nanoseconds ({@link System#nanoTime()} time base).
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @param word the index of the word in the sensor data block (MPU6050.RAW_ACCEL_X..RAW_GYRO_Z).
+     * @return the raw signed word.
+     */
+    public int getRawValue(int word) {
+        return rawValues[word];
+    }
+
+    /**
+     * @return the full scale range of the gyroscope when the sample was measured, which scales its raw words.
+     */
+    public GyroRange getGyroRange() {
+        return gyroRange;
+    }
+
+    /**
+     * @return the full scale range of the accelerometer when the sample was measured, which scales its raw words.
+     */
+    public AccelRange getAccelRange() {
+        return accelRange;
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the acceleration, in g, along the axis.
+     */
+    public double getAccelAcceleration(int axis) {
+        return accelAccelerations[axis];
+    }
+
+    /**
+     * The angle is calculated on demand from the accelerations (see {@link AngleMath}).
+     * @param axis X, Y or Z.
+     * @return the angle, in °, calculated from the accelerometer for the axis.
+     */
+    public double getAccelAngle(int axis) {
+        double x = accelAccelerations[X];
+        double y = accelAccelerations[Y];
+        double z = accelAccelerations[Z];
+        switch (axis) {
+            case X:
+                return AngleMath.accelXAngle(x, y, z);
+            case Y:
+                return AngleMath.accelYAngle(x, y, z);
+            case Z:
+                return MPU6050.ACCEL_Z_ANGLE;
+            default:
+                throw new IllegalArgumentException("Unknown axis: " + axis);
+        }
+    }
+
+    /**
+     * Calculates the angles, in °, from the accelerometer for the x, y and z axis.
+     * @param angles the destination of the angles. Its length must be at least 3.
+     */
+    public void getAccelAngles(double[] angles) {
+        for (int axis = X; axis <= Z; axis++)
+            angles[axis] = getAccelAngle(axis);
+    }
+
+    /**
+     * @return the temperature, in °C.
+     */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the angular speed, in °/sec, around the axis.
+     */
+    public double getGyroAngularSpeed(int axis) {
+        return gyroAngularSpeeds[axis];
+    }
+
+    /**
+     * Calculates the angles, in °, integrated from the gyroscope for the x, y and z axis.
+     * <p>They are the Euler angles (roll, pitch, yaw) of the gyroscope attitude,
+     * see {@link Quaternion#getEulerAngles(double[])}.</p>
+     * @param angles the destination of the angles. Its length must be at least 3.
+     */
+    public void getGyroAngles(double[] angles) {
+        gyroAttitude.getEulerAngles(angles);
+    }
+
+    /**
+     * Copies the orientation integrated from the gyroscope.
+     * @param destination the quaternion receiving the orientation.
+     */
+    public void getGyroAttitude(Quaternion destination) {
+        destination.copyFrom(gyroAttitude);
+    }
+
+    /**
+     * @param axis X, Y or Z.
+     * @return the angle, in °, filtered with the accelerometer and the gyroscope values for the axis.
+     */
+    public double getFilteredAngle(int axis) {
+        return filteredAngles[axis];
+    }
+}
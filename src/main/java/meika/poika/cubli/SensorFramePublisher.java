@@ -0,0 +1,81 @@
+package meika.poika.cubli;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * <b>Publishes the frames of a single writer thread to any number of reader threads, without locks.</b>
+ *
+ * <p>This is a sequence lock (seqlock): the writer makes the version odd, copies the frame,
+ * then makes the version even again. A reader copies the frame between two reads of the version,
+ * and retries if the version was odd or has changed, which means the copy may be torn.
+ * Readers therefore always get all the values of one single sample, across all axes and
+ * quantities.</p>
+ *
+ * <p>The writer never waits for the readers, and nothing is allocated on either side.
+ * A reader only retries when it overlaps with a publication, which is short compared to
+ * the sample period.</p>
+ */
+public class SensorFramePublisher {
+
+    private static final VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(SensorFramePublisher.class, "version", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The published frame, only accessed between version checks.
+     */
+    private final SensorFrame shared = new SensorFrame();
+
+    /**
+     * Odd while a publication is in progress. Incremented by two at each publication.
+     */
+    @SuppressWarnings("unused") // accessed through VERSION
+    private volatile long version = 0;
+
+    /**
+     * Publishes a frame. Must only be called by the single writer thread.
+     * @param frame the frame to publish. It is copied, and can be reused right away.
+     */
+    public void publish(SensorFrame frame) {
+        long v = (long) VERSION.getOpaque(this);
+        VERSION.setOpaque(this, v + 1);
+        // the odd version must be visible before any value of the frame changes
+        VarHandle.storeStoreFence();
+        shared.copyFrom(frame);
+        VERSION.setRelease(this, v + 2);
+    }
+
+    /**
+     * Copies the last published frame.
+     * @param destination the frame receiving the values.
+     * @return the sequence number of the copied sample, 0 if nothing was published yet.
+     */
+    public long read(SensorFrame destination) {
+        while (true) {
+            long before = (long) VERSION.getAcquire(this);
+            if ((before & 1) == 0) {
+                destination.copyFrom(shared);
+                // the values must be read before the version is checked again
+                VarHandle.loadLoadFence();
+                if ((long) VERSION.getOpaque(this) == before)
+                    return destination.sequence;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return the number of frames published so far. Readers can compare it with the
+     * sequence number of their copy to detect new data without copying.
+     */
+    public long getPublishedCount() {
+        return (long) VERSION.getAcquire(this) >>> 1;
+    }
+}
@@ -0,0 +1,401 @@
+package meika.poika.cubli;
+
+import java.util.Arrays;
+
+import static meika.poika.cubli.MPU6050.*;
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>Processing of the raw MPU6050 samples: scaling, calibration, gyroscope attitude and sensor fusion.</b>
+ *
+ * <p>The pipeline doesn't know where the samples come from nor what time it is: the raw words and their
+ * timestamp are its only inputs. The same code therefore processes the samples read by an {@link MPU6050}
+ * on the i2c bus (live, in {@link System#nanoTime()} time) and the samples read from a recording by a
+ * {@link ReplayEngine} (in recorded time, as fast as the processor allows).</p>
+ *
+ * <p>The gyroscope offsets follow the temperature and are refined during the stationary periods
+ * ({@link GyroBiasModel}), so long runs don't need a recalibration.</p>
+ *
+ * <p>Each processed sample is published to the readers ({@link #readFrame(SensorFrame)}), appended to
+ * the history, and passed to the sample listeners. {@link #process(int[], int, long)} must always be
+ * called by the same thread.</p>
+ */
+public class SensorPipeline {
+
+    /**
+     * Values of the sample being processed, and state of the gyroscope integration.
+     * <p><i>(only accessed by the processing thread)</i></p>
+     */
+    private final SensorFrame frame = new SensorFrame();
+
+    /**
+     * Publishes the processed samples to the readers.
+     */
+    private final SensorFramePublisher publisher = new SensorFramePublisher();
+
+    /**
+     * History of the processed samples.
+     */
+    private final SampleRingBuffer history;
+
+    /**
+     * Sensor fusion algorithm producing the filtered angles.
+     * Replaced at runtime by other threads, taken into account at the next sample.
+     */
+    private volatile FusionFilter fusionFilter = new ComplementaryFilter();
+
+    /**
+     * The fusion filter used for the previous sample, to detect a replacement.
+     * <p><i>(only accessed by the processing thread)</i></p>
+     */
+    private FusionFilter activeFusionFilter = null;
+
+    /**
+     * Duration of each fusion filter update, measured in {@link System#nanoTime()} time whatever the
+     * time base of the samples, as it measures the processor cost.
+     */
+    private final LatencyHistogram fusionCostHistogram = new LatencyHistogram();
+
+    /**
+     * Called with each processed sample. The array is replaced, never modified,
+     * so the processing thread iterates it without lock nor iterator.
+     */
+    private volatile SampleListener[] listeners = new SampleListener[0];
+
+    /**
+     * Timestamp of the last processed sample, in nanoseconds.
+     */
+    private long lastSampleTimestamp = 0;
+
+    /**
+     * Full scale ranges of the next samples, with their sensitivities. The holder is replaced, never modified,
+     * so the processing thread reads the four values of one setRanges call.
+     */
+    private volatile Ranges ranges = new Ranges(GyroRange.DPS_250, AccelRange.G_2);
+
+    /**
+     * Offsets of the angular speeds, as a function of the temperature.
+     * <p><i>(only accessed by the processing thread, or while it is stopped)</i></p>
+     */
+    private final GyroBiasModel gyroBiasModel = new GyroBiasModel();
+
+    /**
+     * True to update the gyroscope offsets from the stationary periods, false to keep the calibrated ones.
+     */
+    private volatile boolean gyroBiasTracking = true;
+
+    /**
+     * Constructor for a pipeline keeping the DEFAULT_HISTORY_CAPACITY last samples.
+     */
+    public SensorPipeline() {
+        this(DEFAULT_HISTORY_CAPACITY);
+    }
+
+    /**
+     * Constructor for a new pipeline.
+     * @param historyCapacity the number of samples kept in the history. Must be a power of two.
+     */
+    public SensorPipeline(int historyCapacity) {
+        this.history = new SampleRingBuffer(historyCapacity);
+    }
+
+    /**
+     * Sets the full scale ranges of the next samples, whose sensitivities convert the raw words.
+     * The processed frames are tagged with them. They apply from the next sample processed.
+     * @param gyroRange the range of the gyroscope (FS_SEL).
+     * @param accelRange the range of the accelerometer (AFS_SEL).
+     */
+    public void setRanges(GyroRange gyroRange, AccelRange accelRange) {
+        if (gyroRange == null || accelRange == null)
+            throw new IllegalArgumentException("The ranges can't be null.");
+        this.ranges = new Ranges(gyroRange, accelRange);
+    }
+
+    /**
+     * @return the full scale range of the gyroscope for the next samples.
+     */
+    public GyroRange getGyroRange() {
+        return ranges.gyroRange;
+    }
+
+    /**
+     * @return the full scale range of the accelerometer for the next samples.
+     */
+    public AccelRange getAccelRange() {
+        return ranges.accelRange;
+    }
+
+    /**
+     * Sets the offsets subtracted from the angular speeds, measured at the temperature of the next sample.
+     * @param x the offset around the x axis, in °/sec.
+     * @param y the offset around the y axis, in °/sec.
+     * @param z the offset around the z axis, in °/sec.
+     * @see #setGyroOffsets(double, double, double, double)
+     */
+    public void setGyroOffsets(double x, double y, double z) {
+        setGyroOffsets(x, y, z, Double.NaN);
+    }
+
+    /**
+     * Sets the offsets subtracted from the angular speeds, measured at a specific temperature.
+     * <p>The offsets seed the gyroscope bias model: when the bias tracking is enabled, they are then
+     * updated from the stationary periods and the temperature. Must be called by the processing thread,
+     * or while no sample is processed.</p>
+     * @param x the offset around the x axis, in °/sec.
+     * @param y the offset around the y axis, in °/sec.
+     * @param z the offset around the z axis, in °/sec.
+     * @param temperature the temperature of the chip when the offsets were measured, in °C.
+     * @see GyroBiasModel
+     */
+    public void setGyroOffsets(double x, double y, double z, double temperature) {
+        gyroBiasModel.seed(x, y, z, temperature);
+    }
+
+    /**
+     * Enables or disables the tracking of the gyroscope offsets (enabled by default).
+     * <p>Disabled, the offsets set last are applied unchanged.</p>
+     * @param tracking true to update the offsets from the stationary periods and the temperature.
+     */
+    public void setGyroBiasTracking(boolean tracking) {
+        gyroBiasTracking = tracking;
+    }
+
+    /**
+     * @return true if the gyroscope offsets are updated from the stationary periods and the temperature.
+     */
+    public boolean isGyroBiasTracking() {
+        return gyroBiasTracking;
+    }
+
+    /**
+     * Copies the offsets currently subtracted from the angular speeds.
+     * <p>Read without synchronization with the processing thread: the axes may come from consecutive samples.</p>
+     * @param offsets the destination of the offsets for the x, y and z axis, in °/sec.
+     */
+    public void getGyroOffsets(double[] offsets) {
+        for (int axis = X; axis <= Z; axis++)
+            offsets[axis] = gyroBiasModel.getBias(axis);
+    }
+
+    /**
+     * @return the gyroscope bias model, only to be read by the processing thread or while it is stopped.
+     */
+    public GyroBiasModel getGyroBiasModel() {
+        return gyroBiasModel;
+    }
+
+    /**
+     * Restarts the time integration: the next sample is integrated from a specific time,
+     * instead of from the previous sample, and the gyroscope attitude from the identity.
+     * Must be called while no sample is processed.
+     * @param timestamp the time of the start, in the time base of the samples.
+     */
+    public void restart(long timestamp) {
+        lastSampleTimestamp = timestamp;
+        frame.gyroAttitude.setIdentity();
+    }
+
+    /**
+     * Processes one sample: it is scaled, calibrated, integrated and filtered, then published.
+     * @param values the raw words of the sample.
+     * @param offset the index of the RAW_ACCEL_X word of the sample in values.
+     * @param timestamp the timestamp of the sample, in nanoseconds.
+     */
+    public void process(int[] values, int offset, long timestamp) {
+        Ranges ranges = this.ranges;
+        double accelLSBSensitivity = ranges.accelLSBSensitivity;
+        double gyroLSBSensitivity = ranges.gyroLSBSensitivity;
+        double dt = nextSample(timestamp, ranges);
+        System.arraycopy(values, offset, frame.rawValues, 0, SENSOR_BLOCK_WORDS);
+
+        // Accelerometer
+        double[] accelerations = frame.accelAccelerations;
+        accelerations[X] = values[offset + RAW_ACCEL_X] / accelLSBSensitivity;
+        accelerations[Y] = values[offset + RAW_ACCEL_Y] / accelLSBSensitivity;
+        accelerations[Z] = -values[offset + RAW_ACCEL_Z] / accelLSBSensitivity;
+        // the accelerometer angles are only calculated on demand, from the accelerations
+
+        // Temperature
+        frame.temperature = rawToTemperature(values[offset + RAW_TEMP]);
+
+        // Gyroscope
+        double gyroX = values[offset + RAW_GYRO_X] / gyroLSBSensitivity;
+        double gyroY = values[offset + RAW_GYRO_Y] / gyroLSBSensitivity;
+        double gyroZ = values[offset + RAW_GYRO_Z] / gyroLSBSensitivity;
+        if (gyroBiasTracking)
+            gyroBiasModel.update(gyroX, gyroY, gyroZ, frame.temperature, accelerations);
+        double[] angularSpeeds = frame.gyroAngularSpeeds;
+        angularSpeeds[X] = gyroX - gyroBiasModel.getBias(X);
+        angularSpeeds[Y] = gyroY - gyroBiasModel.getBias(Y);
+        angularSpeeds[Z] = gyroZ - gyroBiasModel.getBias(Z);
+        integrateAndPublish(dt);
+    }
+
+    /**
+     * Processes one sample already scaled and calibrated, for instance combined from several sensors:
+     * it is integrated and filtered, then published. The gyroscope bias model is not applied.
+     * <p>The raw words of the published frame are derived from the values with the sensitivities of
+     * the pipeline, so the sample can still be recorded; the angular speeds stay corrected.</p>
+     * @param accelerations the accelerations for the x, y and z axis, in g.
+     * @param temperature the temperature, in °C.
+     * @param angularSpeeds the calibrated angular speeds for the x, y and z axis, in °/sec.
+     * @param timestamp the timestamp of the sample, in nanoseconds.
+     */
+    public void processScaled(double[] accelerations, double temperature, double[] angularSpeeds, long timestamp) {
+        Ranges ranges = this.ranges;
+        double accelLSBSensitivity = ranges.accelLSBSensitivity;
+        double gyroLSBSensitivity = ranges.gyroLSBSensitivity;
+        double dt = nextSample(timestamp, ranges);
+        int[] raw = frame.rawValues;
+        raw[RAW_ACCEL_X] = toRawWord(accelerations[X] * accelLSBSensitivity);
+        raw[RAW_ACCEL_Y] = toRawWord(accelerations[Y] * accelLSBSensitivity);
+        raw[RAW_ACCEL_Z] = toRawWord(-accelerations[Z] * accelLSBSensitivity);
+        raw[RAW_TEMP] = toRawWord((temperature - 36.53) * 340.);
+        raw[RAW_GYRO_X] = toRawWord(angularSpeeds[X] * gyroLSBSensitivity);
+        raw[RAW_GYRO_Y] = toRawWord(angularSpeeds[Y] * gyroLSBSensitivity);
+        raw[RAW_GYRO_Z] = toRawWord(angularSpeeds[Z] * gyroLSBSensitivity);
+        System.arraycopy(accelerations, 0, frame.accelAccelerations, 0, 3);
+        frame.temperature = temperature;
+        System.arraycopy(angularSpeeds, 0, frame.gyroAngularSpeeds, 0, 3);
+        integrateAndPublish(dt);
+    }
+
+    private static int toRawWord(double value) {
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+
+    /**
+     * Starts a new frame.
+     * @param timestamp the timestamp of the sample, in nanoseconds.
+     * @param ranges the ranges of the sample.
+     * @return the time elapsed since the previous sample, in seconds.
+     */
+    private double nextSample(long timestamp, Ranges ranges) {
+        double dt = Math.max(0, timestamp - lastSampleTimestamp) / 1e9; // s
+        lastSampleTimestamp = timestamp;
+        frame.sequence++;
+        frame.timestampNanos = timestamp;
+        frame.gyroRange = ranges.gyroRange;
+        frame.accelRange = ranges.accelRange;
+        return dt;
+    }
+
+    /**
+     * Integrates the angular speeds of the frame, runs the fusion filter and publishes the frame.
+     * @param dt the time elapsed since the previous sample, in seconds.
+     */
+    private void integrateAndPublish(double dt) {
+        double[] angularSpeeds = frame.gyroAngularSpeeds;
+        // angular speed * time = rotation, accumulated in a quaternion
+        frame.gyroAttitude.integrate(angularSpeeds[X] * DEGREE_TO_RADIAN, angularSpeeds[Y] * DEGREE_TO_RADIAN,
+                angularSpeeds[Z] * DEGREE_TO_RADIAN, dt);
+
+        // Sensor fusion
+        FusionFilter filter = fusionFilter;
+        if (filter != activeFusionFilter) {
+            filter.reset();
+            fusionCostHistogram.reset();
+            activeFusionFilter = filter;
+        }
+        long fusionStart = System.nanoTime();
+        filter.update(frame, dt);
+        filter.getAngles(frame.filteredAngles);
+        fusionCostHistogram.record(System.nanoTime() - fusionStart);
+
+        publisher.publish(frame);
+        history.publish(frame);
+        SampleListener[] sampleListeners = listeners;
+        for (int i = 0; i < sampleListeners.length; i++)
+            sampleListeners[i].onSample(frame);
+    }
+
+    /**
+     * Selects the sensor fusion algorithm producing the filtered angles.
+     * <p>It can be changed while samples are processed: the new filter is reset and
+     * used from the next sample on.</p>
+     * @param filter the fusion filter, used by the processing thread only.
+     * @see FusionAlgorithm
+     */
+    public void setFusionFilter(FusionFilter filter) {
+        if (filter == null)
+            throw new IllegalArgumentException("The fusion filter can't be null.");
+        fusionFilter = filter;
+    }
+
+    /**
+     * @return the sensor fusion algorithm producing the filtered angles.
+     */
+    public FusionFilter getFusionFilter() {
+        return fusionFilter;
+    }
+
+    /**
+     * Get the distribution of the duration of the updates of the current fusion filter.
+     * The histogram is cleared when the filter is replaced.
+     * @return the histogram of the update durations, in nanoseconds.
+     */
+    public LatencyHistogram getFusionCostHistogram() {
+        return fusionCostHistogram;
+    }
+
+    /**
+     * Adds a listener called with each processed sample, on the processing thread.
+     * @param listener the listener.
+     */
+    public synchronized void addSampleListener(SampleListener listener) {
+        SampleListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * @param listener the listener to remove.
+     */
+    public synchronized void removeSampleListener(SampleListener listener) {
+        listeners = Arrays.stream(listeners).filter(l -> l != listener).toArray(SampleListener[]::new);
+    }
+
+    /**
+     * Copies all the values of the last processed sample into a frame.
+     * @param destination the frame receiving the values.
+     * @return the sequence number of the sample, 0 if no sample was processed yet.
+     * @see SensorFramePublisher
+     */
+    public long readFrame(SensorFrame destination) {
+        return publisher.read(destination);
+    }
+
+    /**
+     * @return the number of samples processed so far.
+     */
+    public long getSampleCount() {
+        return publisher.getPublishedCount();
+    }
+
+    /**
+     * @return the history of the last processed samples.
+     */
+    public SampleRingBuffer getHistory() {
+        return history;
+    }
+
+    /**
+     * <b>Full scale ranges and their sensitivities, set together.</b>
+     */
+    private static final class Ranges {
+
+        final GyroRange gyroRange;
+        final AccelRange accelRange;
+        final double gyroLSBSensitivity;
+        final double accelLSBSensitivity;
+
+        Ranges(GyroRange gyroRange, AccelRange accelRange) {
+            this.gyroRange = gyroRange;
+            this.accelRange = accelRange;
+            this.gyroLSBSensitivity = gyroRange.getLSBSensitivity();
+            this.accelLSBSensitivity = accelRange.getLSBSensitivity();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package meika.poika.cubli;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <b>An in-memory i2c bus hosting simulated devices.</b>
+ *
+ * <p>Devices are attached at their address; opening an address without a device fails,
+ * like a device not answering on a real bus.</p>
+ */
+public class SimulatedI2CBus implements I2CBus {
+
+    private final Map<Integer, I2CDevice> devices = new HashMap<>();
+    private final String name;
+
+    /**
+     * Constructor for a new bus named "simulated", hosting some devices.
+     * @param devices the devices to attach.
+     */
+    public SimulatedI2CBus(I2CDevice... devices) {
+        this("simulated", devices);
+    }
+
+    /**
+     * Constructor for a new named bus hosting some devices, to simulate several buses.
+     * @param name the name of the bus, unique among the simulated buses.
+     * @param devices the devices to attach.
+     */
+    public SimulatedI2CBus(String name, I2CDevice... devices) {
+        this.name = name;
+        for (I2CDevice device : devices)
+            attach(device);
+    }
+
+    /**
+     * Attaches a device at its address.
+     * @param device the device to attach.
+     */
+    public synchronized void attach(I2CDevice device) {
+        if (devices.putIfAbsent(device.getAddress(), device) != null)
+            throw new IllegalArgumentException("A device is already attached at address " + device.getAddress() + ".");
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized I2CDevice open(int i2cAddress) {
+        I2CDevice device = devices.get(i2cAddress);
+        if (device == null)
+            throw new RuntimeException("No device at i2c address " + i2cAddress + ".");
+        return device;
+    }
+}
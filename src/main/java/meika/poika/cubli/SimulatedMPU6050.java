@@ -0,0 +1,536 @@
+package meika.poika.cubli;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static meika.poika.cubli.MPU6050.*;
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+
+/**
+ * <b>In-memory simulation of the MPU6050 register map.</b>
+ *
+ * <p>The simulated chip behaves like the real one as seen from the i2c bus: the configuration registers
+ * (sample rate divider, DLPF, full scale ranges, power management, FIFO and interrupt settings) are
+ * honoured, the sensor data registers are refreshed at the sample rate, the FIFO fills up and overflows,
+ * and the DATA_RDY interrupt is raised on each sample ({@link #getDataReadySignal()}).</p>
+ *
+ * <p>The measurements follow a {@link MotionProfile}, plus a constant bias and a gaussian noise per
+ * sensor, and are quantized with the selected LSB sensitivity. The samples are produced lazily: each
+ * transaction first generates the samples due since the previous one, from the time of a {@link TimeSource}:
+ * {@link System#nanoTime()} by default, or a simulated time to run faster than real time
+ * (see {@link CubliSimulator}).</p>
+ *
+ * <p>Each transaction takes the time the bytes would take on the bus (9 clock cycles per byte, including
+ * the address and register bytes), so a pipeline running on the simulator has realistic i2c costs.
+ * The wait is a spin, as the transfers are too short for the scheduler.</p>
+ */
+public class SimulatedMPU6050 implements I2CDevice {
+
+    /**
+     * Default RMS noise of the accelerometer, in g (400 µg/√Hz over 100 Hz [datasheet 1 - p.13]).
+     */
+    public static final double DEFAULT_ACCEL_NOISE = 0.004;
+
+    /**
+     * Default RMS noise of the gyroscope, in °/sec (total RMS noise at 100 Hz [datasheet 1 - p.12]).
+     */
+    public static final double DEFAULT_GYRO_NOISE = 0.05;
+
+    /**
+     * Default temperature of the chip, in °C.
+     */
+    public static final double DEFAULT_TEMPERATURE = 25.;
+
+    /**
+     * Default clock of the simulated bus: i2c fast mode, 400 kHz.
+     */
+    public static final int DEFAULT_BUS_CLOCK_HZ = 400_000;
+
+    /**
+     * Clock cycles per byte on the bus: 8 data bits and the acknowledge bit.
+     */
+    private static final int CYCLES_PER_BYTE = 9;
+
+    private static final int REGISTER_COUNT = 0x80;
+    private static final int REG_WHO_AM_I = 0x75;
+    private static final int WHO_AM_I = 0x68;
+
+    /**
+     * PWR_MGMT_1 bits: DEVICE_RESET and SLEEP. The chip starts in sleep mode.
+     */
+    private static final int PWR_MGMT_1_DEVICE_RESET = 0x80;
+    private static final int PWR_MGMT_1_SLEEP = 0x40;
+
+    /**
+     * USER_CTRL bits clearing themselves: FIFO_RESET, I2C_MST_RESET and SIG_COND_RESET.
+     */
+    private static final int USER_CTRL_RESET_BITS = 0x07;
+
+    /**
+     * INT_PIN_CFG INT_RD_CLEAR bit: the interrupt status is cleared by any read.
+     */
+    private static final int INT_PIN_CFG_INT_RD_CLEAR = 0x10;
+
+    /**
+     * INT_STATUS bits: FIFO_OFLOW_INT and DATA_RDY_INT.
+     */
+    private static final int INT_STATUS_FIFO_OFLOW = 0x10;
+    private static final int INT_STATUS_DATA_RDY = 0x01;
+
+    /**
+     * FIFO_EN bits, for the sensors written in the FIFO (in the order of their registers).
+     */
+    private static final int FIFO_EN_TEMP = 0x80;
+    private static final int FIFO_EN_GYRO_X = 0x40;
+    private static final int FIFO_EN_GYRO_Y = 0x20;
+    private static final int FIFO_EN_GYRO_Z = 0x10;
+    private static final int FIFO_EN_ACCEL = 0x08;
+
+    /**
+     * Maximum number of samples generated at once, after a long period without transaction:
+     * enough to overflow the FIFO, older samples wouldn't be observable.
+     */
+    private static final int MAX_CATCH_UP_SAMPLES = FIFO_SIZE / 2 + 1;
+
+    private static final double[] ACCEL_SENSITIVITIES = {16384., 8192., 4096., 2048.};
+    private static final double[] GYRO_SENSITIVITIES = {131., 65.5, 32.8, 16.4};
+
+    private final int address;
+    private final byte[] registers = new byte[REGISTER_COUNT];
+    private final Random random;
+
+    /**
+     * Circular FIFO buffer.
+     */
+    private final byte[] fifo = new byte[FIFO_SIZE];
+    private int fifoHead = 0;
+    private int fifoCount = 0;
+
+    private MotionProfile motionProfile = MotionProfile.stationary();
+    private final double[] accelBias = new double[3];
+    private final double[] gyroBias = new double[3];
+    private double accelNoise = DEFAULT_ACCEL_NOISE;
+    private double gyroNoise = DEFAULT_GYRO_NOISE;
+    private double temperature = DEFAULT_TEMPERATURE;
+    private int busClockHz = DEFAULT_BUS_CLOCK_HZ;
+
+    /**
+     * Source of the time of the samples.
+     */
+    private final TimeSource timeSource;
+
+    /**
+     * Time origin of the motion profile.
+     */
+    private final long startTime;
+
+    /**
+     * Time of the next sample, 0 while the chip sleeps.
+     */
+    private long nextSampleTime = 0;
+
+    /**
+     * True if a sample was produced with DATA_RDY enabled since the last wake up of the data ready signal.
+     */
+    private boolean dataReadyEdge = false;
+
+    private final double[] acceleration = new double[3];
+    private final double[] angularSpeed = new double[3];
+    private final int[] sample = new int[SENSOR_BLOCK_WORDS];
+
+    private final DataReadySignal dataReadySignal = new SimulatedDataReadySignal();
+
+    /**
+     * Constructor for a simulated MPU6050 at the default address, with a fixed noise seed.
+     */
+    public SimulatedMPU6050() {
+        this(DEFAULT_MPU6050_ADDRESS, 0L);
+    }
+
+    /**
+     * Constructor for a simulated MPU6050.
+     * @param address the i2c address of the chip (0x68 or 0x69).
+     * @param seed the seed of the noise, so runs can be reproduced.
+     */
+    public SimulatedMPU6050(int address, long seed) {
+        this(address, seed, TimeSource.SYSTEM);
+    }
+
+    /**
+     * Constructor for a simulated MPU6050 whose samples follow a specific time source.
+     * <p>With a simulated time, the samples are produced as the time source is moved forward, and the
+     * transactions should be instantaneous (see {@link #setBusClockHz(int)}).</p>
+     * @param address the i2c address of the chip (0x68 or 0x69).
+     * @param seed the seed of the noise, so runs can be reproduced.
+     * @param timeSource the source of the time of the samples.
+     */
+    public SimulatedMPU6050(int address, long seed, TimeSource timeSource) {
+        this.address = address;
+        this.random = new Random(seed);
+        this.timeSource = timeSource;
+        this.startTime = timeSource.nanoTime();
+        resetRegisters();
+    }
+
+    /* -----------------------------------------------------------------------
+     *                           SIMULATION SETTINGS
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * Sets the motion measured by the chip.
+     * @param motionProfile the motion, from the creation of the simulator.
+     */
+    public synchronized void setMotionProfile(MotionProfile motionProfile) {
+        this.motionProfile = motionProfile;
+    }
+
+    /**
+     * Sets the constant bias added to the accelerometer.
+     * @param x the bias along the x axis, in g.
+     * @param y the bias along the y axis, in g.
+     * @param z the bias along the z axis, in g.
+     */
+    public synchronized void setAccelBias(double x, double y, double z) {
+        accelBias[X] = x;
+        accelBias[Y] = y;
+        accelBias[Z] = z;
+    }
+
+    /**
+     * Sets the constant bias added to the gyroscope.
+     * @param x the bias around the x axis, in °/sec.
+     * @param y the bias around the y axis, in °/sec.
+     * @param z the bias around the z axis, in °/sec.
+     */
+    public synchronized void setGyroBias(double x, double y, double z) {
+        gyroBias[X] = x;
+        gyroBias[Y] = y;
+        gyroBias[Z] = z;
+    }
+
+    /**
+     * Sets the RMS noise of the sensors, 0 for noiseless measurements.
+     * @param accelNoise the noise of the accelerometer, in g.
+     * @param gyroNoise the noise of the gyroscope, in °/sec.
+     */
+    public synchronized void setNoise(double accelNoise, double gyroNoise) {
+        if (accelNoise < 0 || gyroNoise < 0)
+            throw new IllegalArgumentException("The noise must be positive.");
+        this.accelNoise = accelNoise;
+        this.gyroNoise = gyroNoise;
+    }
+
+    /**
+     * @param temperature the temperature of the chip, in °C.
+     */
+    public synchronized void setTemperature(double temperature) {
+        this.temperature = temperature;
+    }
+
+    /**
+     * Sets the clock of the simulated bus, which gives the duration of the transactions.
+     * @param busClockHz the clock, in Hz. 0 for instantaneous transactions.
+     */
+    public synchronized void setBusClockHz(int busClockHz) {
+        if (busClockHz < 0)
+            throw new IllegalArgumentException("The bus clock must be positive.");
+        this.busClockHz = busClockHz;
+    }
+
+    /**
+     * Get the signal of the INT pin: it wakes up at each sample while DATA_RDY_EN is set in INT_ENABLE.
+     * @return the data ready signal of the simulated chip.
+     * @see MPU6050#setDataReadySignal(DataReadySignal)
+     */
+    public DataReadySignal getDataReadySignal() {
+        return dataReadySignal;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              I2C DEVICE
+     * -----------------------------------------------------------------------*/
+
+    @Override
+    public int getAddress() {
+        return address;
+    }
+
+    @Override
+    public void write(int value) {
+        // sets the register pointer of the chip, nothing is stored
+        transfer(2);
+    }
+
+    @Override
+    public void writeRegister(int reg, int value) {
+        synchronized (this) {
+            generateSamples(timeSource.nanoTime());
+            writeRegisterValue(reg & (REGISTER_COUNT - 1), value & 0xFF);
+        }
+        transfer(3);
+    }
+
+    @Override
+    public int readRegister(int reg) {
+        int value;
+        synchronized (this) {
+            generateSamples(timeSource.nanoTime());
+            value = readRegisterValue(reg & (REGISTER_COUNT - 1));
+            clearInterruptStatusOnRead(reg);
+        }
+        transfer(4);
+        return value;
+    }
+
+    @Override
+    public int readRegister(int reg, byte[] buffer, int offset, int length) {
+        synchronized (this) {
+            generateSamples(timeSource.nanoTime());
+            for (int i = 0; i < length; i++) {
+                // the register pointer doesn't move past FIFO_R_W, so bursts drain the FIFO
+                int r = reg == MPU6050_REG_ADDR_FIFO_R_W ? reg : (reg + i) & (REGISTER_COUNT - 1);
+                buffer[offset + i] = (byte) readRegisterValue(r);
+            }
+            clearInterruptStatusOnRead(reg);
+        }
+        transfer(3 + length);
+        return length;
+    }
+
+    @Override
+    public int writeRegister(int reg, byte[] buffer, int offset, int length) {
+        synchronized (this) {
+            generateSamples(timeSource.nanoTime());
+            for (int i = 0; i < length; i++) {
+                int r = reg == MPU6050_REG_ADDR_FIFO_R_W ? reg : (reg + i) & (REGISTER_COUNT - 1);
+                writeRegisterValue(r, buffer[offset + i] & 0xFF);
+            }
+        }
+        transfer(2 + length);
+        return length;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              REGISTER MAP
+     * -----------------------------------------------------------------------*/
+
+    private void resetRegisters() {
+        Arrays.fill(registers, (byte) 0);
+        registers[MPU6050_REG_ADDR_PWR_MGMT_1] = (byte) PWR_MGMT_1_SLEEP;
+        registers[REG_WHO_AM_I] = (byte) WHO_AM_I;
+        fifoHead = 0;
+        fifoCount = 0;
+        nextSampleTime = 0;
+        dataReadyEdge = false;
+    }
+
+    private void writeRegisterValue(int reg, int value) {
+        switch (reg) {
+            case MPU6050_REG_ADDR_PWR_MGMT_1:
+                if ((value & PWR_MGMT_1_DEVICE_RESET) != 0) {
+                    resetRegisters();
+                    return;
+                }
+                registers[reg] = (byte) value;
+                if ((value & PWR_MGMT_1_SLEEP) != 0)
+                    nextSampleTime = 0;
+                else if (nextSampleTime == 0)
+                    nextSampleTime = timeSource.nanoTime() + getSamplePeriodNanos();
+                return;
+            case MPU6050_REG_ADDR_USER_CTRL:
+                if ((value & USER_CTRL_FIFO_RESET) != 0) {
+                    fifoHead = 0;
+                    fifoCount = 0;
+                }
+                registers[reg] = (byte) (value & ~USER_CTRL_RESET_BITS);
+                return;
+            case MPU6050_REG_ADDR_FIFO_R_W:
+                pushFifo(value);
+                return;
+            case MPU6050_REG_ADDR_INT_STATUS:
+            case MPU6050_REG_ADDR_FIFO_COUNT_H:
+            case MPU6050_REG_ADDR_FIFO_COUNT_L:
+            case REG_WHO_AM_I:
+                // read only
+                return;
+            default:
+                if (reg >= MPU6050_REG_ADDR_ACCEL_XOUT_H && reg <= MPU6050_REG_ADDR_GYRO_ZOUT_L)
+                    return; // read only
+                registers[reg] = (byte) value;
+        }
+    }
+
+    private int readRegisterValue(int reg) {
+        switch (reg) {
+            case MPU6050_REG_ADDR_FIFO_COUNT_H:
+                return fifoCount >> 8;
+            case MPU6050_REG_ADDR_FIFO_COUNT_L:
+                return fifoCount & 0xFF;
+            case MPU6050_REG_ADDR_FIFO_R_W:
+                if (fifoCount == 0)
+                    return 0;
+                int value = fifo[fifoHead] & 0xFF;
+                fifoHead = (fifoHead + 1) % FIFO_SIZE;
+                fifoCount--;
+                return value;
+            default:
+                return registers[reg] & 0xFF;
+        }
+    }
+
+    /**
+     * Reading INT_STATUS clears it, and so does any read if INT_RD_CLEAR is set [datasheet 2 - p.26].
+     */
+    private void clearInterruptStatusOnRead(int reg) {
+        if (reg == MPU6050_REG_ADDR_INT_STATUS
+                || (registers[MPU6050_REG_ADDR_INT_PIN_CFG] & INT_PIN_CFG_INT_RD_CLEAR) != 0)
+            registers[MPU6050_REG_ADDR_INT_STATUS] = 0;
+    }
+
+    /* -----------------------------------------------------------------------
+     *                              SAMPLING
+     * -----------------------------------------------------------------------*/
+
+    /**
+     * @return the sample period configured by SMPLRT_DIV and DLPF_CFG, in nanoseconds.
+     */
+    public synchronized long getSamplePeriodNanos() {
+        int dlpfCfg = registers[MPU6050_REG_ADDR_CONFIG] & 0x07;
+        int gyroscopeOutputRate = dlpfCfg == 0 || dlpfCfg == 7 ? 8000 : 1000;
+        int smplrtDiv = registers[MPU6050_REG_ADDR_SMPRT_DIV] & 0xFF;
+        return 1_000_000_000L * (1 + smplrtDiv) / gyroscopeOutputRate;
+    }
+
+    /**
+     * Produces all the samples due at a specific time.
+     */
+    private void generateSamples(long now) {
+        if (nextSampleTime == 0 || now < nextSampleTime)
+            return;
+        long period = getSamplePeriodNanos();
+        long due = (now - nextSampleTime) / period + 1;
+        if (due > MAX_CATCH_UP_SAMPLES) {
+            nextSampleTime += (due - MAX_CATCH_UP_SAMPLES) * period;
+            due = MAX_CATCH_UP_SAMPLES;
+        }
+        for (long i = 0; i < due; i++) {
+            generateSample(nextSampleTime);
+            nextSampleTime += period;
+        }
+    }
+
+    /**
+     * Produces one sample: the sensor data registers, the FIFO and the interrupt status are updated.
+     */
+    private void generateSample(long time) {
+        motionProfile.sample((time - startTime) * 1e-9, acceleration, angularSpeed);
+        double accelSensitivity = ACCEL_SENSITIVITIES[(registers[MPU6050_REG_ADDR_ACCEL_CONFIG] >> 3) & 0x03];
+        double gyroSensitivity = GYRO_SENSITIVITIES[(registers[MPU6050_REG_ADDR_GYRO_CONFIG] >> 3) & 0x03];
+        for (int axis = X; axis <= Z; axis++) {
+            double a = acceleration[axis] + accelBias[axis] + accelNoise * random.nextGaussian();
+            double g = angularSpeed[axis] + gyroBias[axis] + gyroNoise * random.nextGaussian();
+            sample[RAW_ACCEL_X + axis] = quantize(a * accelSensitivity);
+            sample[RAW_GYRO_X + axis] = quantize(g * gyroSensitivity);
+        }
+        // [datasheet 2 - p.30] Temperature in degrees C = TEMP_OUT / 340 + 36.53
+        sample[RAW_TEMP] = quantize((temperature - 36.53) * 340.);
+
+        for (int w = 0; w < SENSOR_BLOCK_WORDS; w++) {
+            registers[MPU6050_REG_ADDR_ACCEL_XOUT_H + 2 * w] = (byte) (sample[w] >> 8);
+            registers[MPU6050_REG_ADDR_ACCEL_XOUT_H + 2 * w + 1] = (byte) sample[w];
+        }
+
+        if ((registers[MPU6050_REG_ADDR_USER_CTRL] & USER_CTRL_FIFO_EN) != 0) {
+            int fifoEn = registers[MPU6050_REG_ADDR_FIFO_EN];
+            if ((fifoEn & FIFO_EN_ACCEL) != 0) {
+                pushFifoWord(sample[RAW_ACCEL_X]);
+                pushFifoWord(sample[RAW_ACCEL_Y]);
+                pushFifoWord(sample[RAW_ACCEL_Z]);
+            }
+            if ((fifoEn & FIFO_EN_TEMP) != 0)
+                pushFifoWord(sample[RAW_TEMP]);
+            if ((fifoEn & FIFO_EN_GYRO_X) != 0)
+                pushFifoWord(sample[RAW_GYRO_X]);
+            if ((fifoEn & FIFO_EN_GYRO_Y) != 0)
+                pushFifoWord(sample[RAW_GYRO_Y]);
+            if ((fifoEn & FIFO_EN_GYRO_Z) != 0)
+                pushFifoWord(sample[RAW_GYRO_Z]);
+        }
+
+        registers[MPU6050_REG_ADDR_INT_STATUS] |= INT_STATUS_DATA_RDY;
+        if ((registers[MPU6050_REG_ADDR_INT_ENABLE] & INT_ENABLE_DATA_RDY_EN) != 0)
+            dataReadyEdge = true;
+    }
+
+    private static int quantize(double value) {
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+
+    private void pushFifoWord(int word) {
+        pushFifo(word >> 8);
+        pushFifo(word);
+    }
+
+    /**
+     * Writes a byte in the FIFO. When the FIFO is full, the oldest byte is lost [datasheet 2 - p.27].
+     */
+    private void pushFifo(int value) {
+        if (fifoCount == FIFO_SIZE) {
+            fifoHead = (fifoHead + 1) % FIFO_SIZE;
+            fifoCount--;
+            registers[MPU6050_REG_ADDR_INT_STATUS] |= INT_STATUS_FIFO_OFLOW;
+        }
+        fifo[(fifoHead + fifoCount) % FIFO_SIZE] = (byte) value;
+        fifoCount++;
+    }
+
+    /**
+     * Spins for the duration of a transaction of a specific number of bytes on the bus.
+     */
+    private void transfer(int bytes) {
+        int clock = busClockHz;
+        if (clock == 0)
+            return;
+        long end = System.nanoTime() + 1_000_000_000L * CYCLES_PER_BYTE * bytes / clock;
+        while (System.nanoTime() < end)
+            Thread.onSpinWait();
+    }
+
+    /**
+     * <b>INT pin of the simulated chip.</b>
+     *
+     * <p>The waiting thread is parked until the next sample is due, then the sample is generated.</p>
+     */
+    private class SimulatedDataReadySignal implements DataReadySignal {
+
+        @Override
+        public boolean awaitDataReady(long timeoutNanos) throws InterruptedException {
+            long deadline = timeSource.nanoTime() + timeoutNanos;
+            while (true) {
+                long now = timeSource.nanoTime();
+                long wakeUp;
+                synchronized (SimulatedMPU6050.this) {
+                    generateSamples(now);
+                    if (dataReadyEdge) {
+                        dataReadyEdge = false;
+                        return true;
+                    }
+                    wakeUp = nextSampleTime == 0 ? deadline : Math.min(nextSampleTime, deadline);
+                }
+                if (now >= deadline)
+                    return false;
+                LockSupport.parkNanos(wakeUp - now);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package meika.poika.cubli;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <b>Data ready signal triggered by software.</b>
+ *
+ * <p>Each call to {@link #trigger()} wakes the waiting thread up. It stands in for the INT pin
+ * when no GPIO is available, and is the building block of {@link GpioDataReadySignal}.</p>
+ *
+ * <p>Triggering and waiting don't allocate: the pending notification is a single flag and
+ * the waiting thread is parked.</p>
+ */
+public class SoftwareDataReadySignal implements DataReadySignal {
+
+    /**
+     * True if a notification has not been consumed yet.
+     */
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    /**
+     * The thread currently waiting for a notification, if any.
+     */
+    private volatile Thread waiter = null;
+
+    /**
+     * Signals that new data is ready, waking the waiting thread up.
+     */
+    public void trigger() {
+        pending.set(true);
+        Thread thread = waiter;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    @Override
+    public boolean awaitDataReady(long timeoutNanos) throws InterruptedException {
+        if (pending.getAndSet(false))
+            return true;
+
+        waiter = Thread.currentThread();
+        try {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long remaining = timeoutNanos;
+            while (remaining > 0) {
+                // trigger() sets the flag before unparking, so checking it after registering
+                // the waiter can't miss a notification.
+                if (pending.getAndSet(false))
+                    return true;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                remaining = deadline - System.nanoTime();
+            }
+            return pending.getAndSet(false);
+        } finally {
+            waiter = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+}
@@ -0,0 +1,313 @@
+package meika.poika.cubli;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static meika.poika.cubli.FlightRecorder.*;
+import static meika.poika.cubli.SensorFrame.X;
+import static meika.poika.cubli.SensorFrame.Y;
+import static meika.poika.cubli.SensorFrame.Z;
+import static meika.poika.cubli.TelemetryServer.*;
+
+/**
+ * <b>Blocking client of a {@link TelemetryServer}, over TCP or UDP.</b>
+ *
+ * <p>The client subscribes with a decimation, then {@link #receive(Frame)} returns the frames one by one.
+ * The hellos of the server are consumed on the way: they update the sample period and the decimation.
+ * Over UDP, the subscription is renewed while frames are received.</p>
+ */
+public class TelemetryClient implements AutoCloseable {
+
+    /**
+     * Time a UDP receive waits before renewing the subscription, in ms.
+     */
+    private static final int UDP_RECEIVE_TIMEOUT_MILLIS = 1000;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DatagramSocket datagramSocket;
+    private final SocketAddress server;
+    private final byte[] bytes = new byte[Math.max(HELLO_SIZE, MAX_DATAGRAM_FRAMES * FRAME_SIZE)];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer command = ByteBuffer.allocate(COMMAND_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int datagramLength = 0;
+    private int datagramPosition = 0;
+    private long lastSubscription;
+    private int decimation;
+    private long samplePeriodNanos = 0;
+
+    private TelemetryClient(Socket socket, DatagramSocket datagramSocket, SocketAddress server) throws IOException {
+        this.socket = socket;
+        this.input = socket == null ? null : new DataInputStream(socket.getInputStream());
+        this.datagramSocket = datagramSocket;
+        this.server = server;
+    }
+
+    /**
+     * Connects to a server over TCP, and subscribes.
+     * @param host the host of the server.
+     * @param port the port of the server.
+     * @param decimation 1 to receive every sample, n to receive one sample out of n.
+     * @return the connected client.
+     * @throws IOException if the server can't be reached.
+     */
+    public static TelemetryClient connectTcp(String host, int port, int decimation) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        TelemetryClient client = new TelemetryClient(socket, null, socket.getRemoteSocketAddress());
+        client.setDecimation(decimation);
+        return client;
+    }
+
+    /**
+     * Subscribes to a server over UDP.
+     * @param host the host of the server.
+     * @param port the port of the server.
+     * @param decimation 1 to receive every sample, n to receive one sample out of n.
+     * @return the subscribed client.
+     * @throws IOException if the socket can't be opened.
+     */
+    public static TelemetryClient subscribeUdp(String host, int port, int decimation) throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        socket.setSoTimeout(UDP_RECEIVE_TIMEOUT_MILLIS);
+        TelemetryClient client = new TelemetryClient(null, socket, new InetSocketAddress(host, port));
+        client.setDecimation(decimation);
+        return client;
+    }
+
+    /**
+     * Changes the decimation of the subscription. The frames already sent keep coming with the previous one.
+     * @param decimation 1 to receive every sample, n to receive one sample out of n.
+     * @throws IOException if the command can't be sent.
+     */
+    public void setDecimation(int decimation) throws IOException {
+        if (decimation < 1)
+            throw new IllegalArgumentException("The decimation must be at least 1.");
+        this.decimation = decimation;
+        sendCommand(COMMAND_SUBSCRIBE, decimation);
+    }
+
+    /**
+     * @return the decimation of the subscription.
+     */
+    public int getDecimation() {
+        return decimation;
+    }
+
+    /**
+     * @return the nominal sample period of the MPU6050, in ns, 0 until the hello of the server is received.
+     */
+    public long getSamplePeriodNanos() {
+        return samplePeriodNanos;
+    }
+
+    /**
+     * Waits for the next frame.
+     * @param frame the destination of the frame.
+     * @return false if the server closed the connection (TCP).
+     * @throws IOException if the connection failed.
+     */
+    public boolean receive(Frame frame) throws IOException {
+        return socket != null ? receiveTcp(frame) : receiveUdp(frame);
+    }
+
+    private boolean receiveTcp(Frame frame) throws IOException {
+        try {
+            while (true) {
+                // a hello starts with MAGIC, a frame with its timestamp
+                input.readFully(bytes, 0, 8);
+                if (buffer.getLong(0) == TelemetryServer.MAGIC) {
+                    input.readFully(bytes, 8, HELLO_SIZE - 8);
+                    readHello(0);
+                } else {
+                    input.readFully(bytes, 8, FRAME_SIZE - 8);
+                    frame.decode(buffer, 0);
+                    return true;
+                }
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private boolean receiveUdp(Frame frame) throws IOException {
+        while (datagramPosition + FRAME_SIZE > datagramLength) {
+            if (System.nanoTime() - lastSubscription > UDP_SUBSCRIPTION_TIMEOUT_NANOS / 2)
+                sendCommand(COMMAND_SUBSCRIBE, decimation);
+            DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+            try {
+                datagramSocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            datagramPosition = 0;
+            datagramLength = packet.getLength();
+            if (datagramLength == HELLO_SIZE && buffer.getLong(0) == TelemetryServer.MAGIC) {
+                readHello(0);
+                datagramLength = 0;
+            } else {
+                datagramLength -= datagramLength % FRAME_SIZE;
+            }
+        }
+        frame.decode(buffer, datagramPosition);
+        datagramPosition += FRAME_SIZE;
+        return true;
+    }
+
+    private void readHello(int position) throws IOException {
+        if (buffer.getInt(position + 8) != TelemetryServer.VERSION || buffer.getInt(position + 12) != FRAME_SIZE)
+            throw new IOException("Unsupported telemetry version.");
+        samplePeriodNanos = buffer.getLong(position + 16);
+        decimation = buffer.getInt(position + 24);
+    }
+
+    private void sendCommand(int code, int argument) throws IOException {
+        command.clear();
+        command.putInt(code).putInt(argument);
+        if (socket != null) {
+            OutputStream output = socket.getOutputStream();
+            output.write(command.array());
+            output.flush();
+        } else {
+            datagramSocket.send(new DatagramPacket(command.array(), COMMAND_SIZE, server));
+            lastSubscription = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ends the subscription and closes the connection.
+     * @throws IOException if the connection can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        } else {
+            sendCommand(COMMAND_UNSUBSCRIBE, 0);
+            datagramSocket.close();
+        }
+    }
+
+    /**
+     * <b>One telemetry frame: a processed sample, as encoded by the server.</b>
+     */
+    public static class Frame {
+
+        private long timestampNanos;
+        private long sequence;
+        private final int[] rawValues = new int[MPU6050.SENSOR_BLOCK_WORDS];
+        private int flags;
+        private final double[] filteredAngles = new double[3];
+
+        void decode(ByteBuffer buffer, int position) {
+            timestampNanos = buffer.getLong(position + RECORD_TIMESTAMP);
+            sequence = buffer.getLong(position + RECORD_SEQUENCE);
+            for (int w = 0; w < MPU6050.SENSOR_BLOCK_WORDS; w++)
+                rawValues[w] = buffer.getShort(position + RECORD_RAW_VALUES + 2 * w);
+            flags = buffer.getShort(position + RECORD_FLAGS) & 0xFFFF;
+            for (int axis = X; axis <= Z; axis++)
+                filteredAngles[axis] = buffer.getFloat(position + RECORD_FILTERED_ANGLES + 4 * axis);
+        }
+
+        /**
+         * @return the timestamp of the sample, in ns, in the time base of the server.
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        /**
+         * @return the sequence number of the sample.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @param word MPU6050.RAW_ACCEL_X..RAW_GYRO_Z.
+         * @return the raw word of the sample.
+         */
+        public int getRawValue(int word) {
+            return rawValues[word];
+        }
+
+        /**
+         * @return true if samples were lost or dropped since the previous frame received by this client.
+         */
+        public boolean isSamplesLost() {
+            return (flags & FLAG_SAMPLES_LOST) != 0;
+        }
+
+        /**
+         * @return the full scale range of the gyroscope of the raw words.
+         */
+        public GyroRange getGyroRange() {
+            return GyroRange.fromFsSel(flags >> FLAGS_GYRO_RANGE_SHIFT & 0x03);
+        }
+
+        /**
+         * @return the full scale range of the accelerometer of the raw words.
+         */
+        public AccelRange getAccelRange() {
+            return AccelRange.fromAfsSel(flags >> FLAGS_ACCEL_RANGE_SHIFT & 0x03);
+        }
+
+        /**
+         * @param axis X, Y or Z.
+         * @return the acceleration along the axis, in g.
+         */
+        public double getAcceleration(int axis) {
+            return rawValues[MPU6050.RAW_ACCEL_X + axis] / getAccelRange().getLSBSensitivity();
+        }
+
+        /**
+         * @param axis X, Y or Z.
+         * @return the angular speed around the axis, in °/sec, without the offset correction.
+         */
+        public double getAngularSpeed(int axis) {
+            return rawValues[MPU6050.RAW_GYRO_X + axis] / getGyroRange().getLSBSensitivity();
+        }
+
+        /**
+         * @param axis X, Y or Z.
+         * @return the filtered angle for the axis, in °.
+         */
+        public double getFilteredAngle(int axis) {
+            return filteredAngles[axis];
+        }
+    }
+
+    /**
+     * Prints the frames streamed by a server.
+     * @param args the host, then optionally the port, the decimation and "udp".
+     * @throws IOException if the server can't be reached.
+     */
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int decimation = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        boolean udp = args.length > 3 && args[3].equalsIgnoreCase("udp");
+        Frame frame = new Frame();
+        try (TelemetryClient client = udp ? subscribeUdp(host, port, decimation) : connectTcp(host, port, decimation)) {
+            while (client.receive(frame)) {
+                System.out.printf("#%d%s accel %s %s %s gyro %s %s %s filtered %s %s %s%n",
+                        frame.getSequence(), frame.isSamplesLost() ? " (lost)" : "",
+                        MPU6050.accelToString(frame.getAcceleration(X)), MPU6050.accelToString(frame.getAcceleration(Y)),
+                        MPU6050.accelToString(frame.getAcceleration(Z)), MPU6050.angularSpeedToString(frame.getAngularSpeed(X)),
+                        MPU6050.angularSpeedToString(frame.getAngularSpeed(Y)), MPU6050.angularSpeedToString(frame.getAngularSpeed(Z)),
+                        MPU6050.angleToString(frame.getFilteredAngle(X)), MPU6050.angleToString(frame.getFilteredAngle(Y)),
+                        MPU6050.angleToString(frame.getFilteredAngle(Z)));
+            }
+        }
+    }
+}
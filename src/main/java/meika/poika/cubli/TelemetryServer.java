@@ -0,0 +1,565 @@
+package meika.poika.cubli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static meika.poika.cubli.FlightRecorder.FLAG_SAMPLES_LOST;
+import static meika.poika.cubli.FlightRecorder.RECORD_FLAGS;
+
+/**
+ * <b>Streams the processed samples of an MPU6050 to TCP and UDP subscribers, in compact binary frames.</b>
+ *
+ * <p>The server runs a single thread around an NIO selector, and reads the samples through a cursor on the
+ * history of the MPU6050 ({@link MPU6050#getHistory()}), as the {@link FlightRecorder} does: the updating
+ * thread only publishes in the history, and never waits for the network. Each sample is encoded once,
+ * then copied into the queue of each subscriber which wants it.</p>
+ *
+ * <p>Each subscriber has its own decimation: it receives the samples whose sequence number is a multiple of it.
+ * A subscriber whose queue is full (slow client, congested link) misses the next frames, and the next frame
+ * it receives is flagged with FLAG_SAMPLES_LOST, as are the frames following samples lost in the history.</p>
+ *
+ * <p><b>Protocol</b> (little endian). TCP and UDP listen on the same port.
+ * <pre>
+ * command (client to server, COMMAND_SIZE bytes)
+ *          0  int     COMMAND_SUBSCRIBE or COMMAND_UNSUBSCRIBE
+ *          4  int     decimation, at least 1 (ignored by COMMAND_UNSUBSCRIBE)
+ * hello (server to client, HELLO_SIZE bytes, in reply to each COMMAND_SUBSCRIBE)
+ *          0  long    MAGIC
+ *          8  int     VERSION
+ *         12  int     FRAME_SIZE
+ *         16  long    nominal sample period, in ns
+ *         24  int     decimation
+ *         28  int     reserved
+ * frame (server to client, FRAME_SIZE bytes): the record layout of the {@link FlightRecorder}
+ * </pre>
+ * A TCP client connects, sends COMMAND_SUBSCRIBE, and can change its decimation with another one. Its stream is
+ * the hello, then whole frames, and again a hello after each COMMAND_SUBSCRIBE: the first long tells them apart,
+ * MAGIC is not a plausible timestamp. A UDP client sends COMMAND_SUBSCRIBE
+ * in a datagram, and receives a hello datagram, then datagrams of up to MAX_DATAGRAM_FRAMES frames. It must
+ * subscribe again within UDP_SUBSCRIPTION_TIMEOUT_NANOS, or its subscription expires.</p>
+ *
+ * <p>The subscriptions are not authenticated, and a UDP subscription sends a stream of frames to whatever
+ * source address the datagram claims: the server listens on the loopback interface by default, and should
+ * only be bound to other interfaces on a trusted network.</p>
+ *
+ * @see TelemetryClient
+ */
+public class TelemetryServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TelemetryServer.class);
+
+    /**
+     * Default port, for TCP and UDP.
+     */
+    public static final int DEFAULT_PORT = 5760;
+
+    /**
+     * "CUBLITM1" in ASCII, read as a little endian long.
+     */
+    public static final long MAGIC = 0x314D54494C425543L;
+    public static final int VERSION = 1;
+    public static final int HELLO_SIZE = 32;
+    public static final int FRAME_SIZE = FlightRecorder.RECORD_SIZE;
+    public static final int COMMAND_SIZE = 8;
+
+    /**
+     * Position of the decimation in the hello.
+     */
+    private static final int HELLO_DECIMATION = 24;
+
+    /**
+     * Command subscribing with a decimation, or changing the decimation of the subscription.
+     */
+    public static final int COMMAND_SUBSCRIBE = 1;
+
+    /**
+     * Command ending the subscription (UDP, a TCP client closes its connection).
+     */
+    public static final int COMMAND_UNSUBSCRIBE = 2;
+
+    /**
+     * Number of frames queued per subscriber, beyond which the frames are dropped.
+     */
+    public static final int QUEUE_FRAMES = 64;
+
+    /**
+     * Largest number of frames per datagram: 768 bytes, far below the usual MTU.
+     */
+    public static final int MAX_DATAGRAM_FRAMES = 16;
+
+    /**
+     * Time after which a UDP subscription which wasn't renewed expires, in ns.
+     */
+    public static final long UDP_SUBSCRIPTION_TIMEOUT_NANOS = 10_000_000_000L;
+
+    /**
+     * Longest wait of the server thread for network events, between two drains of the history.
+     */
+    private static final long POLL_INTERVAL_MILLIS = 5;
+
+    private final MPU6050 mpu6050;
+    private final InetAddress bindAddress;
+    private final int requestedPort;
+    private final SensorFrame frame = new SensorFrame();
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer commandBuffer = ByteBuffer.allocate(COMMAND_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final Map<SocketAddress, UdpSubscriber> udpSubscribers = new HashMap<>();
+
+    private Selector selector;
+    private ServerSocketChannel tcpChannel;
+    private DatagramChannel udpChannel;
+    private SampleRingBuffer.Cursor cursor;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private volatile int subscriberCount = 0;
+    private volatile long sentFrameCount = 0;
+    private volatile long droppedFrameCount = 0;
+
+    /**
+     * Constructor for a telemetry server on DEFAULT_PORT of the loopback interface.
+     * @param mpu6050 the MPU6050 whose samples are streamed.
+     */
+    public TelemetryServer(MPU6050 mpu6050) {
+        this(mpu6050, InetAddress.getLoopbackAddress(), DEFAULT_PORT);
+    }
+
+    /**
+     * Constructor for a telemetry server on a specific port of the loopback interface.
+     * @param mpu6050 the MPU6050 whose samples are streamed.
+     * @param port the TCP and UDP port, 0 for a free port (see getPort()).
+     */
+    public TelemetryServer(MPU6050 mpu6050, int port) {
+        this(mpu6050, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Constructor for a telemetry server on a specific address and port.
+     * @param mpu6050 the MPU6050 whose samples are streamed.
+     * @param bindAddress the address of the interface to listen on, the wildcard address for all of them.
+     * @param port the TCP and UDP port, 0 for a free port (see getPort()).
+     */
+    public TelemetryServer(MPU6050 mpu6050, InetAddress bindAddress, int port) {
+        if (bindAddress == null)
+            throw new IllegalArgumentException("The bind address can't be null.");
+        this.mpu6050 = mpu6050;
+        this.bindAddress = bindAddress;
+        this.requestedPort = port;
+    }
+
+    /**
+     * Binds the port and starts streaming, from the next sample processed by the MPU6050.
+     * @throws IOException if the port can't be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        selector = Selector.open();
+        try {
+            tcpChannel = ServerSocketChannel.open();
+            tcpChannel.bind(new InetSocketAddress(bindAddress, requestedPort));
+            tcpChannel.configureBlocking(false);
+            tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+            udpChannel = DatagramChannel.open();
+            udpChannel.bind(new InetSocketAddress(bindAddress, tcpChannel.socket().getLocalPort()));
+            udpChannel.configureBlocking(false);
+            udpChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+        cursor = mpu6050.getHistory().newCursor();
+        running = true;
+        thread = new Thread(this::serve, "telemetry-server");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("Telemetry streamed on TCP and UDP {}:{}", bindAddress.getHostAddress(), getPort());
+    }
+
+    /**
+     * Stops streaming and closes the connections.
+     * <p>If the current thread is interrupted while waiting for the server thread, close returns at once, with
+     * the interrupt status set.</p>
+     */
+    @Override
+    public synchronized void close() {
+        if (!running)
+            return;
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * @return the TCP and UDP port of the server.
+     */
+    public int getPort() {
+        return tcpChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of TCP and UDP subscribers.
+     */
+    public int getSubscriberCount() {
+        return subscriberCount;
+    }
+
+    /**
+     * @return the number of frames queued for the subscribers.
+     */
+    public long getSentFrameCount() {
+        return sentFrameCount;
+    }
+
+    /**
+     * @return the number of frames dropped because the queue of a subscriber was full.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    /**
+     * Loop of the server thread.
+     */
+    private void serve() {
+        try {
+            while (running) {
+                selector.select(POLL_INTERVAL_MILLIS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                drain();
+                expireUdpSubscribers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            LOG.error("Telemetry stopped", e);
+            running = false;
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid())
+            return;
+        if (key.channel() == tcpChannel) {
+            accept();
+        } else if (key.channel() == udpChannel) {
+            receiveDatagrams();
+        } else {
+            TcpSubscriber subscriber = (TcpSubscriber) key.attachment();
+            try {
+                if (key.isReadable())
+                    subscriber.receive();
+                if (key.isValid() && key.isWritable())
+                    subscriber.flush();
+            } catch (IOException e) {
+                // the client went away: only this subscriber is concerned
+                remove(subscriber);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = tcpChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        TcpSubscriber subscriber = new TcpSubscriber(channel);
+        subscriber.key = channel.register(selector, SelectionKey.OP_READ, subscriber);
+        LOG.info("Telemetry client connected from {}", channel.getRemoteAddress());
+    }
+
+    private void receiveDatagrams() throws IOException {
+        while (true) {
+            commandBuffer.clear();
+            SocketAddress address = udpChannel.receive(commandBuffer);
+            if (address == null)
+                return;
+            if (commandBuffer.position() != COMMAND_SIZE)
+                continue;
+            int command = commandBuffer.getInt(0);
+            int decimation = commandBuffer.getInt(4);
+            UdpSubscriber subscriber = udpSubscribers.get(address);
+            if (command == COMMAND_SUBSCRIBE && decimation >= 1) {
+                if (subscriber == null) {
+                    subscriber = new UdpSubscriber(address);
+                    udpSubscribers.put(address, subscriber);
+                    add(subscriber);
+                    LOG.info("Telemetry client subscribed from {}", address);
+                }
+                subscriber.lastRenewal = System.nanoTime();
+                subscriber.subscribe(decimation);
+            } else if (command == COMMAND_UNSUBSCRIBE && subscriber != null) {
+                remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Queues the samples waiting in the history for the subscribers, then sends what the network accepts.
+     */
+    private void drain() {
+        long lost = cursor.getLostCount();
+        while (cursor.poll(frame)) {
+            boolean samplesLost = cursor.getLostCount() != lost;
+            lost = cursor.getLostCount();
+            if (subscribers.isEmpty())
+                continue;
+            // encoded once, whatever the number of subscribers
+            FlightRecorder.writeRecord(frameBuffer, 0, frame, FlightRecorder.rangeFlags(frame));
+            for (int i = 0; i < subscribers.size(); i++) {
+                Subscriber subscriber = subscribers.get(i);
+                if (samplesLost)
+                    subscriber.lost = true;
+                if (frame.sequence % subscriber.decimation == 0)
+                    subscriber.queue(frameBuffer);
+            }
+        }
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            Subscriber subscriber = subscribers.get(i);
+            try {
+                subscriber.flush();
+            } catch (IOException e) {
+                remove(subscriber);
+            }
+        }
+    }
+
+    private void expireUdpSubscribers() {
+        long now = System.nanoTime();
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            Subscriber subscriber = subscribers.get(i);
+            if (subscriber instanceof UdpSubscriber
+                    && now - ((UdpSubscriber) subscriber).lastRenewal > UDP_SUBSCRIPTION_TIMEOUT_NANOS)
+                remove(subscriber);
+        }
+    }
+
+    private void add(Subscriber subscriber) {
+        subscribers.add(subscriber);
+        subscriberCount = subscribers.size();
+    }
+
+    private void remove(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        subscriberCount = subscribers.size();
+        subscriber.close();
+    }
+
+    private void closeChannels() {
+        for (Subscriber subscriber : subscribers)
+            subscriber.close();
+        subscribers.clear();
+        udpSubscribers.clear();
+        subscriberCount = 0;
+        try {
+            if (tcpChannel != null)
+                tcpChannel.close();
+            if (udpChannel != null)
+                udpChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("Cannot close the telemetry channels: {}", e.toString());
+        }
+    }
+
+    /**
+     * <b>A client receiving frames, with its decimation and its queue.</b>
+     * <p><i>(used by the server thread only)</i></p>
+     */
+    private abstract class Subscriber {
+
+        /**
+         * Frames waiting to be sent, in write mode; a hello may precede them.
+         */
+        final ByteBuffer queue;
+        int decimation = 1;
+        boolean lost = false;
+
+        Subscriber(int capacity) {
+            queue = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void subscribe(int decimation) {
+            this.decimation = decimation;
+            if (queue.remaining() < HELLO_SIZE)
+                return;
+            queue.putLong(MAGIC);
+            queue.putInt(VERSION);
+            queue.putInt(FRAME_SIZE);
+            queue.putLong(mpu6050.getSamplePeriodNanos());
+            queue.putInt(decimation);
+            queue.putInt(0);
+        }
+
+        void queue(ByteBuffer encodedFrame) {
+            if (queue.remaining() < FRAME_SIZE) {
+                lost = true;
+                droppedFrameCount++;
+                return;
+            }
+            int position = queue.position();
+            queue.put(encodedFrame.array(), 0, FRAME_SIZE);
+            if (lost) {
+                queue.putShort(position + RECORD_FLAGS, (short) (queue.getShort(position + RECORD_FLAGS) | FLAG_SAMPLES_LOST));
+                lost = false;
+            }
+            sentFrameCount++;
+        }
+
+        abstract void flush() throws IOException;
+
+        abstract void close();
+    }
+
+    /**
+     * <b>A TCP client: the frames are written as the socket accepts them.</b>
+     */
+    private final class TcpSubscriber extends Subscriber {
+
+        private final SocketChannel channel;
+        private final ByteBuffer commands = ByteBuffer.allocate(COMMAND_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private SelectionKey key;
+        private boolean subscribed = false;
+
+        TcpSubscriber(SocketChannel channel) {
+            super(HELLO_SIZE + QUEUE_FRAMES * FRAME_SIZE);
+            this.channel = channel;
+        }
+
+        void receive() throws IOException {
+            while (true) {
+                int read = channel.read(commands);
+                if (read < 0)
+                    throw new IOException("Connection closed by the client.");
+                if (commands.hasRemaining())
+                    return;
+                int command = commands.getInt(0);
+                int decimation = commands.getInt(4);
+                commands.clear();
+                if (command == COMMAND_SUBSCRIBE && decimation >= 1) {
+                    if (!subscribed) {
+                        subscribed = true;
+                        add(this);
+                    }
+                    subscribe(decimation);
+                } else if (command == COMMAND_UNSUBSCRIBE) {
+                    throw new IOException("Unsubscribed.");
+                }
+            }
+        }
+
+        @Override
+        void flush() throws IOException {
+            queue.flip();
+            channel.write(queue);
+            queue.compact();
+            // waits for the socket to accept more only when something is left
+            key.interestOps(queue.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        @Override
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to do with this client
+            }
+            if (!subscribed)
+                return;
+            subscribed = false;
+            LOG.info("Telemetry client disconnected");
+        }
+    }
+
+    /**
+     * <b>A UDP client: the queue is sent in datagrams of whole frames, what the socket can't take is dropped.</b>
+     */
+    private final class UdpSubscriber extends Subscriber {
+
+        private final SocketAddress address;
+        private final ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM_FRAMES * FRAME_SIZE);
+        long lastRenewal;
+
+        UdpSubscriber(SocketAddress address) {
+            super(HELLO_SIZE + QUEUE_FRAMES * FRAME_SIZE);
+            this.address = address;
+        }
+
+        @Override
+        void subscribe(int decimation) {
+            if (queue.position() % FRAME_SIZE == 0) {
+                super.subscribe(decimation);
+            } else {
+                // the hello of the previous command is still waiting: it takes the new decimation
+                this.decimation = decimation;
+                queue.putInt(HELLO_DECIMATION, decimation);
+            }
+        }
+
+        @Override
+        void flush() throws IOException {
+            queue.flip();
+            // a hello travels alone, and stays first in the queue until it is sent
+            if (queue.remaining() % FRAME_SIZE != 0 && !send(HELLO_SIZE)) {
+                queue.compact();
+                return;
+            }
+            while (queue.hasRemaining()) {
+                if (!send(Math.min(queue.remaining(), MAX_DATAGRAM_FRAMES * FRAME_SIZE)))
+                    break;
+            }
+            if (queue.hasRemaining()) {
+                // the socket buffer is full: the late frames are not worth sending
+                droppedFrameCount += queue.remaining() / FRAME_SIZE;
+                lost = true;
+            }
+            queue.clear();
+        }
+
+        private boolean send(int length) throws IOException {
+            datagram.clear();
+            datagram.put(queue.array(), queue.position(), length);
+            datagram.flip();
+            if (udpChannel.send(datagram, address) == 0)
+                return false;
+            queue.position(queue.position() + length);
+            return true;
+        }
+
+        @Override
+        void close() {
+            udpSubscribers.remove(address);
+        }
+    }
+}
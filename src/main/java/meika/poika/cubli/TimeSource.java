@@ -0,0 +1,21 @@
+package meika.poika.cubli;
+
+/**
+ * <b>Source of the time stamping the samples, in nanoseconds.</b>
+ *
+ * <p>On the hardware, the samples are stamped with {@link #SYSTEM}. Replays and simulations
+ * substitute a {@link ManualTimeSource}, driven by the recorded or simulated time.</p>
+ */
+@FunctionalInterface
+public interface TimeSource {
+
+    /**
+     * The {@link System#nanoTime()} time base.
+     */
+    TimeSource SYSTEM = System::nanoTime;
+
+    /**
+     * @return the current time, in nanoseconds. Only differences between two values are meaningful.
+     */
+    long nanoTime();
+}